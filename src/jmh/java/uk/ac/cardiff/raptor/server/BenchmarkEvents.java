@@ -0,0 +1,59 @@
+package uk.ac.cardiff.raptor.server;
+
+import org.joda.time.DateTime;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.model.event.EzproxyAuthenticationEvent;
+import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.model.event.auxiliary.EventMetadata;
+import uk.ac.cardiff.model.event.auxiliary.PrincipalInformation;
+
+/**
+ * Creates the {@link Event}s benchmarks run against, populated as the mock
+ * events of the tests are.
+ * 
+ * @author philsmart
+ *
+ */
+public final class BenchmarkEvents {
+
+	private BenchmarkEvents() {
+	}
+
+	public static ShibbolethIdpAuthenticationEvent shibEvent(final String user) {
+		final ShibbolethIdpAuthenticationEvent event = new ShibbolethIdpAuthenticationEvent();
+		event.setPrincipalName(user);
+		event.setEventTime(new DateTime());
+		event.setAttributes(new String[] { "attr1,attr2,attr2" });
+		event.setResourceId("https://myfakeservice.com/");
+		event.setResourceHost("localhost");
+		event.setServiceId("http://idp.org.uk/shibboleth");
+		event.setPrincipalInformation(new PrincipalInformation());
+		event.setEventMetadata(metadata());
+		event.setEventId(event.getHashCode());
+		return event;
+	}
+
+	public static EzproxyAuthenticationEvent ezproxyEvent(final String user) {
+		final EzproxyAuthenticationEvent event = new EzproxyAuthenticationEvent();
+		event.setPrincipalName(user);
+		event.setEventTime(new DateTime());
+		event.setRequesterIp("192.1678.0.1");
+		event.setResourceId("https://myfakeservice.com/");
+		event.setResourceHost("localhost");
+		event.setServiceId("http://ezproxy.org.uk");
+		event.setPrincipalInformation(new PrincipalInformation());
+		event.setEventMetadata(metadata());
+		event.setEventId(event.getHashCode());
+		return event;
+	}
+
+	private static EventMetadata metadata() {
+		final EventMetadata meta = new EventMetadata();
+		meta.setRaptorEntityId("http://localhost.test");
+		meta.setOrganisationName("CU Test");
+		meta.setServiceName("local test service");
+		return meta;
+	}
+
+}
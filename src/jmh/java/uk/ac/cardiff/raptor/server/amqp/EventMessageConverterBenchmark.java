@@ -0,0 +1,103 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.DefaultClassMapper;
+import org.springframework.amqp.support.converter.JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.model.event.EzproxyAuthenticationEvent;
+import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.raptor.server.BenchmarkEvents;
+
+/**
+ * The cost of converting an AMQP delivery to an {@link Event} with the
+ * {@link EventMessageConverter}, configured as the {@code eventMsgConverter} in
+ * event-enrich-store.xml, for each type of event received in each
+ * {@link EventFormat}. The Jackson 1 {@link JsonMessageConverter} it replaced
+ * is measured alongside, reading the same JSON messages.
+ * 
+ * @author philsmart
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventMessageConverterBenchmark {
+
+	@Param({ "JSON", "SMILE", "CBOR" })
+	private EventFormat format;
+
+	private MessageConverter converter;
+
+	private JsonMessageConverter jackson1Converter;
+
+	private Message shibMessage;
+
+	private Message ezproxyMessage;
+
+	private Message shibJsonMessage;
+
+	private Message ezproxyJsonMessage;
+
+	@Setup
+	public void setup() {
+		final EventMessageConverter eventConverter = new EventMessageConverter();
+		eventConverter.setAllowedTypes(
+				Arrays.asList(ShibbolethIdpAuthenticationEvent.class, EzproxyAuthenticationEvent.class));
+		eventConverter.setDefaultType(Event.class);
+		eventConverter.setWriteFormat(format);
+		converter = eventConverter;
+
+		final DefaultClassMapper classMapper = new DefaultClassMapper();
+		classMapper.setDefaultType(Event.class);
+		jackson1Converter = new JsonMessageConverter();
+		jackson1Converter.setClassMapper(classMapper);
+
+		shibMessage = converter.toMessage(BenchmarkEvents.shibEvent("usernameone"), new MessageProperties());
+		ezproxyMessage = converter.toMessage(BenchmarkEvents.ezproxyEvent("usernameone"), new MessageProperties());
+		shibJsonMessage = jackson1Converter.toMessage(BenchmarkEvents.shibEvent("usernameone"),
+				new MessageProperties());
+		ezproxyJsonMessage = jackson1Converter.toMessage(BenchmarkEvents.ezproxyEvent("usernameone"),
+				new MessageProperties());
+	}
+
+	@Benchmark
+	public Object fromShibMessage() {
+		return converter.fromMessage(shibMessage);
+	}
+
+	@Benchmark
+	public Object fromEzproxyMessage() {
+		return converter.fromMessage(ezproxyMessage);
+	}
+
+	@Benchmark
+	public Object fromShibMessageJackson1() {
+		return jackson1Converter.fromMessage(shibJsonMessage);
+	}
+
+	@Benchmark
+	public Object fromEzproxyMessageJackson1() {
+		return jackson1Converter.fromMessage(ezproxyJsonMessage);
+	}
+
+}
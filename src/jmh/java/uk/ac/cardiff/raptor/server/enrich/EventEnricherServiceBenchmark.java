@@ -0,0 +1,96 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import uk.ac.cardiff.model.event.AuthenticationEvent;
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.model.event.EzproxyAuthenticationEvent;
+import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.raptor.server.BenchmarkEvents;
+import uk.ac.cardiff.raptor.server.dao.EventBatch;
+
+/**
+ * The cost of dispatching {@link Event}s to their enrichers through the
+ * {@link EventEnricherService}, one at a time and as a batch. The enrichers do
+ * nothing, so only the dispatch is measured. As configured, an enricher for
+ * each event class and one for their {@link AuthenticationEvent} superclass.
+ * 
+ * @author philsmart
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventEnricherServiceBenchmark {
+
+	private static final int BATCH_SIZE = 50;
+
+	private EventEnricherService service;
+
+	private EventEnricherService batchService;
+
+	private Message<Event> shibMessage;
+
+	private Message<Event> ezproxyMessage;
+
+	private EventBatch batch;
+
+	@Setup
+	public void setup() {
+		final List<AbstractEventAttributeEnricher> enrichers = Arrays.asList(
+				enricherFor(ShibbolethIdpAuthenticationEvent.class), enricherFor(EzproxyAuthenticationEvent.class),
+				enricherFor(AuthenticationEvent.class));
+		service = new EventEnricherService(enrichers);
+		batchService = new EventEnricherService(enrichers);
+		batchService.setBatchLookups(true);
+
+		shibMessage = MessageBuilder.<Event> withPayload(BenchmarkEvents.shibEvent("usernameone")).build();
+		ezproxyMessage = MessageBuilder.<Event> withPayload(BenchmarkEvents.ezproxyEvent("usernameone")).build();
+		final List<Message<Event>> messages = new ArrayList<>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			messages.add(i % 2 == 0 ? shibMessage : ezproxyMessage);
+		}
+		batch = new EventBatch(messages);
+	}
+
+	private AbstractEventAttributeEnricher enricherFor(final Class<? extends Event> forClass) {
+		final AbstractEventAttributeEnricher enricher = new NoOperationEventAttributeEnricher();
+		enricher.setForClass(forClass);
+		return enricher;
+	}
+
+	@Benchmark
+	public Object enrichShib() {
+		return service.enrich(shibMessage);
+	}
+
+	@Benchmark
+	public Object enrichEzproxy() {
+		return service.enrich(ezproxyMessage);
+	}
+
+	@Benchmark
+	public Object enrichBatch() {
+		return batchService.enrichBatch(batch);
+	}
+
+}
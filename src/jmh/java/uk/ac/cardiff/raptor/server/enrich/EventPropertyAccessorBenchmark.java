@@ -0,0 +1,74 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.beans.PropertyDescriptor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.model.event.auxiliary.PrincipalInformation;
+
+/**
+ * The per {@link uk.ac.cardiff.model.event.Event} cost of reading the principal
+ * name and writing the principal information, by bean introspection on each
+ * event as enrichers used to, and through a resolved
+ * {@link EventPropertyAccessor}.
+ * 
+ * @author philsmart
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventPropertyAccessorBenchmark {
+
+	private ShibbolethIdpAuthenticationEvent event;
+
+	private PrincipalInformation information;
+
+	@Setup
+	public void setup() {
+		event = new ShibbolethIdpAuthenticationEvent();
+		event.setPrincipalName("usernameone");
+		information = new PrincipalInformation();
+		information.setSchool("schoolOne");
+		information.setAffiliation("P");
+	}
+
+	@Benchmark
+	public Object introspectedGet() throws Exception {
+		final PropertyDescriptor property = new PropertyDescriptor("principalName", event.getClass());
+		return property.getReadMethod().invoke(event);
+	}
+
+	@Benchmark
+	public Object accessorGet() {
+		return EventPropertyAccessor.of(event.getClass(), "principalName").get(event);
+	}
+
+	@Benchmark
+	public Object introspectedSet() throws Exception {
+		final PropertyDescriptor property = new PropertyDescriptor("principalInformation", event.getClass());
+		property.getWriteMethod().invoke(event, information);
+		return event;
+	}
+
+	@Benchmark
+	public Object accessorSet() {
+		EventPropertyAccessor.of(event.getClass(), "principalInformation").set(event, information);
+		return event;
+	}
+
+}
@@ -0,0 +1,79 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+import uk.ac.cardiff.model.event.auxiliary.PrincipalInformation;
+
+/**
+ * The cost of a principal cache hit, and of a miss that loads and evicts an
+ * entry, with every AMQP consumer thread reading the one cache at once. The
+ * cache is built as the enrichers build theirs, with a loader that answers
+ * immediately so only the cache is measured.
+ * 
+ * @author philsmart
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class PrincipalCacheBenchmark {
+
+	private static final int PRINCIPALS = 10000;
+
+	private String[] principals;
+
+	private LoadingCache<String, PrincipalInformation> cache;
+
+	private final AtomicLong missed = new AtomicLong();
+
+	@Setup
+	public void setup() {
+		final NoOperationEventAttributeEnricher enricher = new NoOperationEventAttributeEnricher();
+		enricher.setCacheMaximumSize(PRINCIPALS);
+		cache = enricher.principalCacheBuilder().build(this::load);
+
+		principals = new String[PRINCIPALS];
+		for (int i = 0; i < PRINCIPALS; i++) {
+			principals[i] = "username" + i;
+			cache.get(principals[i]);
+		}
+	}
+
+	private PrincipalInformation load(final String principal) {
+		final PrincipalInformation information = new PrincipalInformation();
+		information.setSchool("schoolOne");
+		information.setAffiliation("P");
+		return information;
+	}
+
+	@Benchmark
+	public Object hit() {
+		return cache.get(principals[ThreadLocalRandom.current().nextInt(PRINCIPALS)]);
+	}
+
+	@Benchmark
+	public Object miss() {
+		return cache.get("missed" + missed.incrementAndGet());
+	}
+
+}
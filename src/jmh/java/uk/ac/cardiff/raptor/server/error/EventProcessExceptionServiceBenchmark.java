@@ -0,0 +1,69 @@
+package uk.ac.cardiff.raptor.server.error;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandlingException;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.BenchmarkEvents;
+
+/**
+ * The cost of rebuilding a failed {@link Event} {@link Message} for the retry
+ * queue, for its first failure and for a failure of an event that has already
+ * been retried.
+ * 
+ * @author philsmart
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventProcessExceptionServiceBenchmark {
+
+	private EventProcessExceptionService service;
+
+	private Message<MessageHandlingException> firstFailure;
+
+	private Message<MessageHandlingException> retriedFailure;
+
+	@Setup
+	public void setup() {
+		service = new EventProcessExceptionService();
+
+		final Message<Event> failed = MessageBuilder.<Event> withPayload(BenchmarkEvents.shibEvent("usernameone"))
+				.setHeader("amqp_receivedRoutingKey", "raptor.event").setHeader("amqp_deliveryTag", 1L).build();
+		firstFailure = failure(failed);
+		retriedFailure = failure(MessageBuilder.fromMessage(failed).setHeader(ProcessingErrorConstants.RETRY_COUNT, 2)
+				.setHeader(ProcessingErrorConstants.ERROR_HEADER, "Could not store event").build());
+	}
+
+	private Message<MessageHandlingException> failure(final Message<Event> failed) {
+		return MessageBuilder.withPayload(new MessageHandlingException(failed, "Could not store event")).build();
+	}
+
+	@Benchmark
+	public Object rebuildFirstFailure() {
+		return service.handle(firstFailure);
+	}
+
+	@Benchmark
+	public Object rebuildRetriedFailure() {
+		return service.handle(retriedFailure);
+	}
+
+}
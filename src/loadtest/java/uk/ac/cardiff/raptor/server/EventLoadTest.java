@@ -0,0 +1,298 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+import org.joda.time.DateTime;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.amqp.QpidBrokerTest;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.AbstractEventAttributeEnricher;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+import uk.ac.cardiff.raptor.server.metrics.PipelineLatencies;
+import uk.ac.cardiff.raptor.server.metrics.PipelineStage;
+import uk.ac.cardiff.raptor.server.metrics.StageLatency;
+
+@TestPropertySource(locations = "/application-test.properties", properties = {
+		"logging.config=classpath:logback-loadtest.xml", "amqp.event.start=true", "amqp.event.retry.start=false",
+		"amqp.event.consumers.concurrent=${loadtest.consumers:4}", "amqp.event.consumers.max=${loadtest.consumers:4}",
+		"amqp.event.prefetch=${loadtest.prefetch:100}", "raptor.store.batch.size=${loadtest.batch-size:50}",
+		"raptor.store.batch.linger-ms=100", "attribute.enrich.batch-lookups=${loadtest.batch-lookups:true}",
+		"amqp.event.ack-before-store=true", "raptor.latency.window-ms=86400000", "raptor.latency.log-summary=false" })
+public class EventLoadTest extends BaseServerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(EventLoadTest.class);
+
+	private static final String[] AFFILIATIONS = { "P", "S", "R" };
+
+	private static QpidBrokerTest broker;
+
+	private final long events = Long.getLong("loadtest.events", 1000000);
+
+	private final int principals = Integer.getInteger("loadtest.principals", 10000);
+
+	private final double zipfExponent = Double.parseDouble(System.getProperty("loadtest.zipf-exponent", "1.0"));
+
+	private final double duplicateRate = Double.parseDouble(System.getProperty("loadtest.duplicate-rate", "0.05"));
+
+	private final double shibRatio = Double.parseDouble(System.getProperty("loadtest.shib-ratio", "0.7"));
+
+	private final int publishers = Integer.getInteger("loadtest.publishers", 2);
+
+	private final long seed = Long.getLong("loadtest.seed", 42);
+
+	private final long drainTimeoutMs = Long.getLong("loadtest.drain-timeout-ms", 120000);
+
+	@Inject
+	private AmqpTemplate amqp;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricherService;
+
+	@Inject
+	private PipelineLatencies latencies;
+
+	@Inject
+	private LdapTemplate ldap;
+
+	@Value("${amqp.event.queue}")
+	private String queue;
+
+	private final AtomicInteger eventIds = new AtomicInteger();
+
+	private final ObjectMapper mapper = new ObjectMapper().registerModule(new JodaModule());
+
+	@BeforeClass
+	public static void startup() throws Exception {
+		broker = new QpidBrokerTest();
+		broker.startBroker();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		broker.stopBroker();
+	}
+
+	/**
+	 * Publishes {@code events} synthetic events to the event queue, and waits
+	 * for every distinct event to be stored. Fails if they are not all stored
+	 * before no more have been stored for {@code drainTimeoutMs}.
+	 */
+	@Test
+	public void sustainedLoad() throws Exception {
+		log.info("Load test of [{}] events from [{}] publishers, [{}] principals with zipf exponent [{}], "
+				+ "duplicate rate [{}], shibboleth ratio [{}], seed [{}]", events, publishers, principals,
+				zipfExponent, duplicateRate, shibRatio, seed);
+		bindPrincipals();
+		repo.deleteAll();
+		latencies.roll();
+		for (final AbstractEventAttributeEnricher enricher : enricherService.getEnrichers()) {
+			enricher.getLookupTelemetry().reset();
+		}
+		final Map<String, long[]> gcBefore = collections();
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+
+		final long start = System.nanoTime();
+		final long distinct = publish();
+		final long published = System.nanoTime();
+		log.info("Published [{}] events, [{}] distinct, in [{}ms], [{}] events/s", events, distinct,
+				TimeUnit.NANOSECONDS.toMillis(published - start), rate(events, published - start));
+
+		long stored = repo.count();
+		long storedAt = System.nanoTime();
+		while (stored < distinct && System.nanoTime() - storedAt < TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs)) {
+			Thread.sleep(200);
+			final long count = repo.count();
+			if (count > stored) {
+				stored = count;
+				storedAt = System.nanoTime();
+			}
+		}
+		latencies.roll();
+
+		log.info("Stored [{}] of [{}] distinct events in [{}ms], sustained throughput [{}] events/s", stored,
+				distinct, TimeUnit.NANOSECONDS.toMillis(storedAt - start), rate(stored, storedAt - start));
+		reportLatencies();
+		reportLookups();
+		reportMemory(gcBefore);
+
+		Assert.assertEquals(distinct, stored);
+	}
+
+	/**
+	 * Binds an entry for every principal, found by the Shibboleth enricher by
+	 * its cn and by the Ezproxy enricher by its l.
+	 */
+	private void bindPrincipals() {
+		for (int i = 0; i < principals; i++) {
+			final Attributes attributes = new BasicAttributes();
+			final BasicAttribute objectClass = new BasicAttribute("objectClass");
+			objectClass.add("top");
+			objectClass.add("person");
+			objectClass.add("organizationalPerson");
+			objectClass.add("inetOrgPerson");
+			attributes.put(objectClass);
+			attributes.put("cn", principal(i));
+			attributes.put("sn", "LoadUser");
+			attributes.put("l", principal(i));
+			attributes.put("description", "school" + i % 20);
+			attributes.put("businessCategory", AFFILIATIONS[i % AFFILIATIONS.length]);
+			ldap.bind("cn=" + principal(i) + ",o=people", null, attributes);
+		}
+		log.info("Bound [{}] principals to the directory", principals);
+	}
+
+	/**
+	 * Publishes the events from {@code publishers} threads, each with its own
+	 * share of the events and a {@link Random} seeded from {@code seed}, so a
+	 * run can be repeated.
+	 * 
+	 * @return the number of distinct events published.
+	 */
+	private long publish() throws Exception {
+		final ZipfSampler zipf = new ZipfSampler(principals, zipfExponent);
+		final ExecutorService pool = Executors.newFixedThreadPool(publishers);
+		try {
+			final List<Future<Long>> duplicates = new ArrayList<>();
+			for (int i = 0; i < publishers; i++) {
+				final long share = events / publishers + (i < events % publishers ? 1 : 0);
+				final Random random = new Random(seed + i);
+				duplicates.add(pool.submit(() -> publish(share, random, zipf)));
+			}
+			long duplicated = 0;
+			for (final Future<Long> published : duplicates) {
+				duplicated += published.get();
+			}
+			return events - duplicated;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the number of duplicates published, each a resend of one of the
+	 *         last 1024 events this thread published.
+	 */
+	private long publish(final long share, final Random random, final ZipfSampler zipf) throws Exception {
+		final Message[] recent = new Message[1024];
+		int sent = 0;
+		long duplicates = 0;
+		for (long i = 0; i < share; i++) {
+			final Message message;
+			if (sent > 0 && random.nextDouble() < duplicateRate) {
+				message = recent[random.nextInt(Math.min(sent, recent.length))];
+				duplicates++;
+			} else {
+				final String principal = principal(zipf.sample(random));
+				message = toMessage(random.nextDouble() < shibRatio ? mockShibEvent(principal)
+						: mockEzproxyEvent(principal));
+				recent[sent++ % recent.length] = message;
+			}
+			amqp.send(queue, message);
+		}
+		return duplicates;
+	}
+
+	private Message toMessage(final Event event) throws Exception {
+		event.setEventId(eventIds.incrementAndGet());
+		event.setEventTime(new DateTime());
+		final MessageProperties properties = new MessageProperties();
+		properties.setContentType("application/json");
+		properties.setHeader("__TypeId__", event.getClass().getName());
+		return new Message(mapper.writeValueAsBytes(event), properties);
+	}
+
+	private static String principal(final int rank) {
+		return "loaduser" + rank;
+	}
+
+	private static long rate(final long count, final long nanos) {
+		return nanos == 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	private void reportLatencies() {
+		for (final PipelineStage stage : PipelineStage.values()) {
+			final StageLatency latency = latencies.getStage(stage);
+			log.info("  {} latency count [{}] p50 [{}ms] p99 [{}ms] p999 [{}ms] max [{}ms]", stage, latency.getCount(),
+					latency.getP50Ms(), latency.getP99Ms(), latency.getP999Ms(), latency.getMaxMs());
+		}
+	}
+
+	private void reportLookups() {
+		for (final AbstractEventAttributeEnricher enricher : enricherService.getEnrichers()) {
+			log.info("  {} for [{}] made [{}] directory lookups, p99 [{}ms], cache hit rate [{}], [{}] cached",
+					enricher.getClass().getSimpleName(), enricher.getForClass().getSimpleName(),
+					enricher.getLookupTelemetry().getCount(), enricher.getLookupTelemetry().getLatencyMs(99),
+					enricher.getCacheStats().hitRate(), enricher.getCacheEstimatedSize());
+		}
+	}
+
+	private void reportMemory(final Map<String, long[]> gcBefore) {
+		for (final Map.Entry<String, long[]> collector : collections().entrySet()) {
+			final long[] before = gcBefore.getOrDefault(collector.getKey(), new long[2]);
+			log.info("  GC [{}] made [{}] collections taking [{}ms]", collector.getKey(),
+					collector.getValue()[0] - before[0], collector.getValue()[1] - before[1]);
+		}
+		long peak = 0;
+		long used = 0;
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+				used += pool.getUsage().getUsed();
+			}
+		}
+		log.info("  Heap used [{}MB], sum of the peak of each heap pool [{}MB], max [{}MB]", used >> 20, peak >> 20,
+				Runtime.getRuntime().maxMemory() >> 20);
+	}
+
+	/**
+	 * @return the collection count and time of each garbage collector.
+	 */
+	private static Map<String, long[]> collections() {
+		final Map<String, long[]> collections = new HashMap<>();
+		for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			collections.put(collector.getName(),
+					new long[] { collector.getCollectionCount(), collector.getCollectionTime() });
+		}
+		return collections;
+	}
+
+}
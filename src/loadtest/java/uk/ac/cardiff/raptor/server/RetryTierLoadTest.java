@@ -0,0 +1,136 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.Properties;
+
+import javax.inject.Inject;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.amqp.RetryTiers;
+import uk.ac.cardiff.raptor.server.error.ProcessingErrorConstants;
+
+@TestPropertySource(locations = "/application-test.properties", properties = {
+		"logging.config=classpath:logback-loadtest.xml", "amqp.event.start=false", "amqp.event.retry.start=false",
+		"amqp.hostUrl=${loadtest.rabbit.url}", "amqp.username=${loadtest.rabbit.username:guest}",
+		"amqp.password=${loadtest.rabbit.password:guest}", "amqp.event.queue=raptor.harvest.tier-test",
+		"amqp.event.queue.retry=raptor.harvest.tier-test-retry", "amqp.event.retry.tiers=1000,2000" })
+public class RetryTierLoadTest extends BaseServerTest {
+
+	private static final String EVENT_QUEUE = "raptor.harvest.tier-test";
+
+	private static final String RETRY_QUEUE = "raptor.harvest.tier-test-retry";
+
+	private static CachingConnectionFactory setupConnectionFactory;
+
+	@Inject
+	private ConnectionFactory rabbitConnectionFactory;
+
+	@Inject
+	private MessageConverter eventMsgConverter;
+
+	@Inject
+	private RetryTiers retryTiers;
+
+	@Inject
+	MessageChannel sendToRetryChnl;
+
+	/**
+	 * Skipped unless a RabbitMQ broker is given, as the embedded Qpid broker
+	 * does not dead-letter expired messages, e.g.
+	 * {@code mvn -Ploadtest test -Dtest=RetryTierLoadTest -Dloadtest.rabbit.url=localhost:5672}.
+	 * Declares the exchange the tier queues are bound to, and the test queues,
+	 * before the server connects, as it fails to connect if it cannot declare
+	 * the tiers.
+	 */
+	@BeforeClass
+	public static void declareExchange() {
+		final String url = System.getProperty("loadtest.rabbit.url");
+		Assume.assumeNotNull(url);
+		setupConnectionFactory = new CachingConnectionFactory();
+		setupConnectionFactory.setAddresses(url);
+		setupConnectionFactory.setUsername(System.getProperty("loadtest.rabbit.username", "guest"));
+		setupConnectionFactory.setPassword(System.getProperty("loadtest.rabbit.password", "guest"));
+
+		final RabbitAdmin admin = new RabbitAdmin(setupConnectionFactory);
+		final DirectExchange exchange = new DirectExchange("raptor");
+		admin.declareExchange(exchange);
+		for (final String name : new String[] { EVENT_QUEUE, RETRY_QUEUE }) {
+			final Queue queue = new Queue(name);
+			admin.declareQueue(queue);
+			admin.declareBinding(BindingBuilder.bind(queue).to(exchange).with(name));
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		if (setupConnectionFactory != null) {
+			setupConnectionFactory.destroy();
+		}
+	}
+
+	@Before
+	public void purgeQueues() {
+		final RabbitAdmin admin = new RabbitAdmin(setupConnectionFactory);
+		admin.purgeQueue(EVENT_QUEUE, false);
+		admin.purgeQueue(RETRY_QUEUE, false);
+		for (final String tier : retryTiers.getQueueNames()) {
+			admin.purgeQueue(tier, false);
+		}
+	}
+
+	@Test
+	public void testFirstRetryWaitsOnFirstTier() throws Exception {
+		assertRetriedThroughTier(1, RETRY_QUEUE + ".1000ms", 1000);
+	}
+
+	@Test
+	public void testLaterRetriesWaitOnLastTier() throws Exception {
+		assertRetriedThroughTier(5, RETRY_QUEUE + ".2000ms", 2000);
+	}
+
+	/**
+	 * Sends a failed event to be retried, and checks it waits on the given tier
+	 * queue and is dead-lettered back to the event queue once its delay has
+	 * passed.
+	 */
+	private void assertRetriedThroughTier(final int retryCount, final String tier, final long delay)
+			throws Exception {
+		final Event mockEvent = mockShibEvent("usernameone");
+		final long sent = System.currentTimeMillis();
+		sendToRetryChnl.send(MessageBuilder.withPayload(mockEvent)
+				.setHeader(ProcessingErrorConstants.RETRY_COUNT, retryCount)
+				.setHeader(ProcessingErrorConstants.ERROR_HEADER, "no real error").build());
+
+		final Properties waiting = new RabbitAdmin(setupConnectionFactory).getQueueProperties(tier);
+		Assert.assertNotNull("Tier queue [" + tier + "] was not declared", waiting);
+
+		final Message back = new RabbitTemplate(rabbitConnectionFactory).receive(EVENT_QUEUE, delay + 5000);
+		final long waited = System.currentTimeMillis() - sent;
+		Assert.assertNotNull("Event was not dead-lettered back to the event queue", back);
+		Assert.assertTrue("Event returned after " + waited + "ms, before the tier delay", waited >= delay - 100);
+		Assert.assertEquals(retryCount,
+				back.getMessageProperties().getHeaders().get(ProcessingErrorConstants.RETRY_COUNT));
+
+		final Object read = eventMsgConverter.fromMessage(back);
+		Assert.assertEquals(mockEvent.getEventId(), ((Event) read).getEventId());
+	}
+
+}
@@ -0,0 +1,46 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples ranks from 0 to n - 1 with Zipf popularity, the rank k chosen with
+ * probability proportional to 1 / (k + 1)^exponent. An exponent of 0 samples
+ * every rank equally, around 1 a few ranks are sampled most of the time, as a
+ * few principals make most of the authentications.
+ * 
+ * @author philsmart
+ *
+ */
+public class ZipfSampler {
+
+	private final double[] cumulative;
+
+	public ZipfSampler(final int n, final double exponent) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Must sample at least one rank, was " + n);
+		}
+		cumulative = new double[n];
+		double total = 0;
+		for (int k = 0; k < n; k++) {
+			total += 1 / Math.pow(k + 1, exponent);
+			cumulative[k] = total;
+		}
+		for (int k = 0; k < n; k++) {
+			cumulative[k] /= total;
+		}
+	}
+
+	/**
+	 * @param random
+	 *            the source of randomness, so a run can be repeated from its
+	 *            seed.
+	 * @return a rank, from 0 to n - 1.
+	 */
+	public int sample(final Random random) {
+		final int found = Arrays.binarySearch(cumulative, random.nextDouble());
+		final int rank = found >= 0 ? found : -found - 1;
+		return Math.min(rank, cumulative.length - 1);
+	}
+
+}
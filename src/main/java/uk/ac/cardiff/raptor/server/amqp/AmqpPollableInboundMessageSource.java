@@ -13,6 +13,7 @@ import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.amqp.support.converter.SimpleMessageConverter;
 import org.springframework.integration.amqp.support.AmqpHeaderMapper;
 import org.springframework.integration.amqp.support.DefaultAmqpHeaderMapper;
+import org.springframework.integration.core.MessageSelector;
 import org.springframework.integration.core.MessageSource;
 import org.springframework.messaging.support.MessageBuilder;
 
@@ -20,6 +21,12 @@ import uk.ac.cardiff.model.event.Event;
 
 /**
  * A custom pollable AMQP message source.
+ * <p>
+ * If a {@code dueSelector} is set, a message it does not accept ends the
+ * current poll, the next {@link #receive()} returning null. Messages are
+ * queued in the order they became due, so a poll can drain every message that
+ * is due without cycling through those behind one that is not.
+ * </p>
  * 
  * @author philsmart
  *
@@ -36,6 +43,17 @@ public class AmqpPollableInboundMessageSource implements MessageSource<Event> {
 
 	private String amqpQueue;
 
+	/**
+	 * Accepts messages that are due, optional.
+	 */
+	private volatile MessageSelector dueSelector;
+
+	/**
+	 * Set once a message that is not due has been received, so the next
+	 * {@link #receive()} ends the poll.
+	 */
+	private volatile boolean endPoll;
+
 	@PostConstruct
 	public void init() {
 
@@ -47,6 +65,11 @@ public class AmqpPollableInboundMessageSource implements MessageSource<Event> {
 
 	@Override
 	public org.springframework.messaging.Message<Event> receive() {
+		if (endPoll) {
+			endPoll = false;
+			log.trace("Ending poll of [{}] at an event that is not due", amqpQueue);
+			return null;
+		}
 		log.trace("Polling Amqp Queue");
 
 		final Message message = amqp.receive(amqpQueue);
@@ -62,7 +85,12 @@ public class AmqpPollableInboundMessageSource implements MessageSource<Event> {
 			log.debug("AMQP Inbound has recieved message[{},{}]", messageObject, headers);
 
 			if (messageObject instanceof Event) {
-				return MessageBuilder.withPayload((Event) messageObject).copyHeaders(headers).build();
+				final org.springframework.messaging.Message<Event> event = MessageBuilder
+						.withPayload((Event) messageObject).copyHeaders(headers).build();
+				if (dueSelector != null && dueSelector.accept(event) == false) {
+					endPoll = true;
+				}
+				return event;
 			}
 		}
 
@@ -99,6 +127,21 @@ public class AmqpPollableInboundMessageSource implements MessageSource<Event> {
 		this.amqpQueue = amqpQueue;
 	}
 
+	/**
+	 * @return the dueSelector
+	 */
+	public MessageSelector getDueSelector() {
+		return dueSelector;
+	}
+
+	/**
+	 * @param dueSelector
+	 *            the dueSelector to set
+	 */
+	public void setDueSelector(final MessageSelector dueSelector) {
+		this.dueSelector = dueSelector;
+	}
+
 	/**
 	 * @return the amqpMessageConverter
 	 */
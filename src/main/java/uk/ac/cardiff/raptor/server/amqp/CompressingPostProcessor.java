@@ -0,0 +1,114 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.springframework.amqp.AmqpIOException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * Compresses the body of each message published, so that it is decompressed
+ * by a {@link DecompressingPostProcessor}, or by the decompressing post
+ * processors of Spring AMQP for {@link PayloadCompression#GZIP}. A message that
+ * is already compressed, or whose body is smaller than {@code minimumSize}, is
+ * published unchanged. The body is compressed into the {@link PooledBuffers}
+ * of the publishing thread.
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class CompressingPostProcessor implements MessagePostProcessor {
+
+	private volatile PayloadCompression compression = PayloadCompression.LZ4;
+
+	/**
+	 * Bodies smaller than this, in bytes, are not worth compressing.
+	 */
+	private volatile int minimumSize = 256;
+
+	/**
+	 * If false, messages are published unchanged.
+	 */
+	private volatile boolean enabled = true;
+
+	@Override
+	public Message postProcessMessage(final Message message) {
+		final MessageProperties properties = message.getMessageProperties();
+		final String contentEncoding = properties.getContentEncoding();
+		if (enabled == false || message.getBody().length < minimumSize
+				|| PayloadCompression.forContentEncoding(contentEncoding) != null) {
+			return message;
+		}
+		final PayloadCompression compression = this.compression;
+		final byte[] body;
+		final ByteArrayOutputStream buffer = PooledBuffers.acquire();
+		try {
+			try (OutputStream out = compression.compressing(buffer)) {
+				out.write(message.getBody());
+			}
+			body = buffer.toByteArray();
+		} catch (final IOException e) {
+			throw new AmqpIOException(e);
+		} finally {
+			PooledBuffers.release();
+		}
+
+		properties.setContentEncoding(compression.getContentEncoding()
+				+ (contentEncoding == null ? "" : PayloadCompression.ENCODING_DELIMITER + contentEncoding));
+		properties.setContentLength(body.length);
+		return new Message(body, properties);
+	}
+
+	/**
+	 * @return the compression
+	 */
+	public PayloadCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @param compression
+	 *            the compression to set
+	 */
+	public void setCompression(final PayloadCompression compression) {
+		this.compression = Objects.requireNonNull(compression);
+	}
+
+	/**
+	 * @return the minimumSize
+	 */
+	public int getMinimumSize() {
+		return minimumSize;
+	}
+
+	/**
+	 * @param minimumSize
+	 *            the minimumSize to set
+	 */
+	public void setMinimumSize(final int minimumSize) {
+		this.minimumSize = minimumSize;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *            the enabled to set
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+}
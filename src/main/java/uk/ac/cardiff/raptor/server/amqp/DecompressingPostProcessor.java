@@ -0,0 +1,82 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * Decompresses the body of a message received with a content encoding of one
+ * of the {@link PayloadCompression}s, and restores the encoding of the
+ * uncompressed body, if any. Any other message is returned unchanged. The
+ * body is decompressed through the {@link PooledBuffers} of the receiving
+ * thread.
+ * <p>
+ * A body that can not be decompressed, or is larger than
+ * {@code maxDecompressedSize} once decompressed, will never be read, so it is
+ * rejected with an {@link AmqpRejectAndDontRequeueException} rather than
+ * redelivered.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class DecompressingPostProcessor implements MessagePostProcessor {
+
+	private static final Logger log = LoggerFactory.getLogger(DecompressingPostProcessor.class);
+
+	/**
+	 * The most bytes a body may decompress to, 16MB by default.
+	 */
+	private long maxDecompressedSize = 16 * 1024 * 1024;
+
+	@Override
+	public Message postProcessMessage(final Message message) {
+		final MessageProperties properties = message.getMessageProperties();
+		final String contentEncoding = properties.getContentEncoding();
+		final PayloadCompression compression = PayloadCompression.forContentEncoding(contentEncoding);
+		if (compression == null) {
+			return message;
+		}
+		final byte[] body;
+		try (InputStream in = compression.decompressing(new ByteArrayInputStream(message.getBody()))) {
+			body = PooledBuffers.readFully(in, maxDecompressedSize);
+		} catch (final IOException e) {
+			log.warn("Rejecting message with content encoding [{}], its body could not be decompressed",
+					contentEncoding, e);
+			throw new AmqpRejectAndDontRequeueException("Could not decompress " + compression + " message body", e);
+		}
+		log.trace("Decompressed {} message body from [{}] to [{}] bytes", compression, message.getBody().length,
+				body.length);
+
+		final int delimiter = contentEncoding.indexOf(PayloadCompression.ENCODING_DELIMITER);
+		properties.setContentEncoding(delimiter < 0 ? null : contentEncoding.substring(delimiter + 1));
+		properties.setContentLength(body.length);
+		return new Message(body, properties);
+	}
+
+	/**
+	 * @return the maxDecompressedSize
+	 */
+	public long getMaxDecompressedSize() {
+		return maxDecompressedSize;
+	}
+
+	/**
+	 * @param maxDecompressedSize
+	 *            the maxDecompressedSize to set
+	 */
+	public void setMaxDecompressedSize(final long maxDecompressedSize) {
+		this.maxDecompressedSize = maxDecompressedSize;
+	}
+
+}
@@ -0,0 +1,124 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.util.Collection;
+import java.util.Objects;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.annotation.ServiceActivator;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandlingException;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.support.ErrorMessage;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * Sends each {@link Event} of a batch message, as read by the
+ * {@link EventMessageConverter}, to the {@code outputChannel} as a message of
+ * its own with the headers of the batch. A message holding a single
+ * {@link Event} is sent on unchanged.
+ * <p>
+ * Each {@link Event} is sent in turn on the calling thread, so the AMQP
+ * delivery of the batch is only acknowledged once every {@link Event} in it
+ * has been passed on by the calling thread. By default that is once each has
+ * been stored. With a store batch size above 1 or asynchronous enrichment,
+ * which both require amqp.event.ack-before-store, {@link Event}s of the batch
+ * may still be held in memory when it is acknowledged, and are lost if the
+ * server stops. If an {@link Event} fails, an {@link ErrorMessage} is sent
+ * to the {@code errorChannel} and the rest of the batch is still sent, as the
+ * AMQP inbound adapter would have done had each {@link Event} been delivered
+ * on its own. If sending to the {@code errorChannel} fails too, e.g. to roll
+ * back a transacted listener, the exception is rethrown and the whole batch is
+ * redelivered.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class EventBatchSplitter {
+
+	private static final Logger log = LoggerFactory.getLogger(EventBatchSplitter.class);
+
+	private volatile MessageChannel outputChannel;
+
+	/**
+	 * The channel an {@link ErrorMessage} is sent to when an {@link Event} in a
+	 * batch fails. If null, the exception is rethrown instead, and the rest of
+	 * the batch is not sent.
+	 */
+	private volatile MessageChannel errorChannel;
+
+	@PostConstruct
+	public void init() {
+		Objects.requireNonNull(outputChannel, "EventBatchSplitter requires an output channel");
+	}
+
+	/**
+	 * @param message
+	 *            a message holding an {@link Event}, or a {@link Collection} of
+	 *            {@link Event}s.
+	 */
+	@ServiceActivator
+	public void split(final Message<?> message) {
+		if (message.getPayload() instanceof Collection == false) {
+			outputChannel.send(message);
+			return;
+		}
+		final Collection<?> events = (Collection<?>) message.getPayload();
+		log.debug("Splitting batch of [{}] events", events.size());
+		for (final Object event : events) {
+			final Message<?> eventMessage = MessageBuilder.withPayload(event).copyHeaders(message.getHeaders())
+					.build();
+			try {
+				outputChannel.send(eventMessage);
+
+			} catch (final MessagingException e) {
+				final MessagingException failure = e instanceof MessageHandlingException ? e
+						: new MessageHandlingException(eventMessage, "Could not handle event from batch", e);
+				if (errorChannel == null) {
+					throw failure;
+				}
+				log.error("Event [{}] from batch failed, sending to error channel", event, e);
+				errorChannel.send(new ErrorMessage(failure));
+			}
+		}
+	}
+
+	/**
+	 * @return the outputChannel
+	 */
+	public MessageChannel getOutputChannel() {
+		return outputChannel;
+	}
+
+	/**
+	 * @param outputChannel
+	 *            the outputChannel to set
+	 */
+	public void setOutputChannel(final MessageChannel outputChannel) {
+		this.outputChannel = outputChannel;
+	}
+
+	/**
+	 * @return the errorChannel
+	 */
+	public MessageChannel getErrorChannel() {
+		return errorChannel;
+	}
+
+	/**
+	 * @param errorChannel
+	 *            the errorChannel to set
+	 */
+	public void setErrorChannel(final MessageChannel errorChannel) {
+		this.errorChannel = errorChannel;
+	}
+
+}
@@ -0,0 +1,84 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+
+/**
+ * The encodings an {@link uk.ac.cardiff.model.event.Event} may be sent in,
+ * each identified by the AMQP content type of the message. Smile and CBOR are
+ * binary encodings of the same data model as JSON, so an event has the same
+ * fields, and the same {@code __TypeId__}, in each.
+ * 
+ * @author philsmart
+ *
+ */
+public enum EventFormat {
+
+	JSON("application/json"),
+
+	/** The binary JSON format of Jackson. */
+	SMILE("application/x-jackson-smile"),
+
+	/** Concise Binary Object Representation, RFC 7049. */
+	CBOR("application/cbor");
+
+	private final String contentType;
+
+	private EventFormat(final String contentType) {
+		this.contentType = contentType;
+	}
+
+	/**
+	 * @return the AMQP content type of a message in this format.
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return a new {@link ObjectMapper} that reads and writes this format, with
+	 *         the {@link JodaModule} registered.
+	 */
+	public ObjectMapper createMapper() {
+		final JsonFactory factory;
+		switch (this) {
+		case SMILE:
+			factory = new SmileFactory();
+			break;
+		case CBOR:
+			factory = new CBORFactory();
+			break;
+		default:
+			factory = new JsonFactory();
+		}
+		return new ObjectMapper(factory).registerModule(new JodaModule());
+	}
+
+	/**
+	 * @param contentType
+	 *            the AMQP content type of a message, which may have parameters.
+	 * @return the format of the message, {@link #JSON} if it has no content type
+	 *         or any JSON content type, or null if the content type is not one
+	 *         of the formats.
+	 */
+	@Nullable
+	public static EventFormat forContentType(@Nullable final String contentType) {
+		if (contentType == null) {
+			return JSON;
+		}
+		final int parameters = contentType.indexOf(';');
+		final String mediaType = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim();
+		for (final EventFormat format : values()) {
+			if (format.contentType.equalsIgnoreCase(mediaType)) {
+				return format;
+			}
+		}
+		return mediaType.contains("json") ? JSON : null;
+	}
+
+}
@@ -0,0 +1,264 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.AbstractJavaTypeMapper;
+import org.springframework.amqp.support.converter.AbstractMessageConverter;
+import org.springframework.amqp.support.converter.DefaultClassMapper;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * Converts AMQP messages to and from {@link Event}s with Jackson 2. The
+ * {@link Event} class is chosen by the {@link #TYPE_ID_HEADER}, which must be
+ * the class name of one of the {@code allowedTypes}; no class is loaded by
+ * name. A message of any other type is rejected.
+ * <p>
+ * A message is read in the {@link EventFormat} of its content type, so JSON,
+ * Smile and CBOR are all accepted, and events are written in the
+ * {@code writeFormat}. An {@link ObjectReader} is built once for each allowed
+ * type in each format, and the body is parsed directly from its bytes. Joda
+ * {@link org.joda.time.DateTime}s are read from and written as timestamps, as
+ * the Jackson 1
+ * {@link org.springframework.amqp.support.converter.JsonMessageConverter} did.
+ * </p>
+ * <p>
+ * A message may instead hold a batch of events of one allowed type, as an
+ * array, in which case its {@link #TYPE_ID_HEADER} is one of the
+ * {@link #BATCH_TYPE_IDS} and its {@link #CONTENT_TYPE_ID_HEADER} names the
+ * type of the events, as the {@link AbstractJavaTypeMapper} sets them for a
+ * {@link List}. The batch is read as a {@link List} of {@link Event}s, and
+ * written the same way.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class EventMessageConverter extends AbstractMessageConverter {
+
+	private static final Logger log = LoggerFactory.getLogger(EventMessageConverter.class);
+
+	/**
+	 * The header naming the class of the {@link Event} in the message body, as
+	 * set by the {@link DefaultClassMapper}.
+	 */
+	public static final String TYPE_ID_HEADER = DefaultClassMapper.DEFAULT_CLASSID_FIELD_NAME;
+
+	/**
+	 * The header naming the class of the {@link Event}s in a batch.
+	 */
+	public static final String CONTENT_TYPE_ID_HEADER = AbstractJavaTypeMapper.DEFAULT_CONTENT_CLASSID_FIELD_NAME;
+
+	/**
+	 * The {@link #TYPE_ID_HEADER}s of a message holding a batch of events.
+	 */
+	public static final Set<String> BATCH_TYPE_IDS = Collections
+			.unmodifiableSet(new HashSet<>(Arrays.asList(ArrayList.class.getName(), List.class.getName())));
+
+	private final Map<EventFormat, ObjectMapper> mappers = new EnumMap<>(EventFormat.class);
+
+	/**
+	 * The reader of each allowed type in each format, by its type id. Replaced,
+	 * never modified.
+	 */
+	private volatile Map<EventFormat, Map<String, ObjectReader>> readers;
+
+	/**
+	 * The reader of a batch of each allowed type in each format, by the type id
+	 * of its events. Replaced, never modified.
+	 */
+	private volatile Map<EventFormat, Map<String, ObjectReader>> batchReaders;
+
+	/**
+	 * The reader in each format of a message without a {@link #TYPE_ID_HEADER},
+	 * empty if such a message is rejected. Replaced, never modified.
+	 */
+	private volatile Map<EventFormat, ObjectReader> defaultReaders = Collections.emptyMap();
+
+	private final Map<EventFormat, ObjectWriter> writers = new EnumMap<>(EventFormat.class);
+
+	private volatile EventFormat writeFormat = EventFormat.JSON;
+
+	public EventMessageConverter() {
+		for (final EventFormat format : EventFormat.values()) {
+			final ObjectMapper mapper = format.createMapper();
+			mappers.put(format, mapper);
+			writers.put(format, mapper.writer());
+		}
+		setAllowedTypes(Collections.emptyList());
+	}
+
+	@Override
+	protected Message createMessage(final Object object, final MessageProperties messageProperties) {
+		final EventFormat format = writeFormat;
+		final byte[] body;
+		try {
+			body = writers.get(format).writeValueAsBytes(object);
+		} catch (final JsonProcessingException e) {
+			throw new MessageConversionException("Could not write [" + object.getClass().getName() + "] as " + format,
+					e);
+		}
+		messageProperties.setContentType(format.getContentType());
+		// an encoding mapped from the headers of a JSON event does not apply to a binary one
+		messageProperties.setContentEncoding(format == EventFormat.JSON ? StandardCharsets.UTF_8.name() : null);
+		messageProperties.setContentLength(body.length);
+		if (object instanceof List) {
+			final List<?> batch = (List<?>) object;
+			messageProperties.setHeader(TYPE_ID_HEADER, ArrayList.class.getName());
+			if (batch.isEmpty() == false) {
+				messageProperties.setHeader(CONTENT_TYPE_ID_HEADER, batch.get(0).getClass().getName());
+			}
+		} else {
+			messageProperties.setHeader(TYPE_ID_HEADER, object.getClass().getName());
+		}
+		return new Message(body, messageProperties);
+	}
+
+	/**
+	 * @return the {@link Event} in the body of the message, or the {@link List}
+	 *         of {@link Event}s if it holds a batch.
+	 * @throws MessageConversionException
+	 *             if the content type or the type of the message is not allowed,
+	 *             or its body can not be read as that type.
+	 */
+	@Override
+	public Object fromMessage(final Message message) throws MessageConversionException {
+		final MessageProperties properties = message.getMessageProperties();
+		final String contentType = properties.getContentType();
+		final EventFormat format = EventFormat.forContentType(contentType);
+		if (format == null) {
+			throw new MessageConversionException("Can not read an event from content type [" + contentType + "]");
+		}
+		final Object typeId = properties.getHeaders().get(TYPE_ID_HEADER);
+		final ObjectReader reader = typeId != null && BATCH_TYPE_IDS.contains(typeId.toString())
+				? batchReaderFor(format, properties.getHeaders().get(CONTENT_TYPE_ID_HEADER))
+				: readerFor(format, typeId);
+		final String encoding = properties.getContentEncoding();
+		try {
+			if (format != EventFormat.JSON || encoding == null
+					|| StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+				return reader.readValue(message.getBody());
+			}
+			return reader.readValue(new String(message.getBody(), Charset.forName(encoding)));
+
+		} catch (final IOException e) {
+			throw new MessageConversionException("Could not read the event from the " + format + " message body", e);
+		}
+	}
+
+	private ObjectReader readerFor(final EventFormat format, final Object typeId) {
+		if (typeId == null) {
+			final ObjectReader reader = defaultReaders.get(format);
+			if (reader == null) {
+				throw new MessageConversionException("Message has no " + TYPE_ID_HEADER + " header");
+			}
+			return reader;
+		}
+		final ObjectReader reader = readers.get(format).get(typeId.toString());
+		if (reader == null) {
+			log.warn("Rejecting message of type [{}], which is not an allowed event type", typeId);
+			throw new MessageConversionException("Event type [" + typeId + "] is not allowed");
+		}
+		return reader;
+	}
+
+	private ObjectReader batchReaderFor(final EventFormat format, final Object contentTypeId) {
+		if (contentTypeId == null) {
+			throw new MessageConversionException("Batch message has no " + CONTENT_TYPE_ID_HEADER + " header");
+		}
+		final ObjectReader reader = batchReaders.get(format).get(contentTypeId.toString());
+		if (reader == null) {
+			log.warn("Rejecting batch of type [{}], which is not an allowed event type", contentTypeId);
+			throw new MessageConversionException("Event type [" + contentTypeId + "] is not allowed");
+		}
+		return reader;
+	}
+
+	/**
+	 * @return the type ids that are allowed, the class name of each allowed
+	 *         type.
+	 */
+	public List<String> getAllowedTypeIds() {
+		return Collections.unmodifiableList(new ArrayList<>(readers.get(EventFormat.JSON).keySet()));
+	}
+
+	/**
+	 * @param allowedTypes
+	 *            the {@link Event} classes a message may contain.
+	 */
+	public void setAllowedTypes(final List<Class<? extends Event>> allowedTypes) {
+		final Map<EventFormat, Map<String, ObjectReader>> byFormat = new EnumMap<>(EventFormat.class);
+		final Map<EventFormat, Map<String, ObjectReader>> batchesByFormat = new EnumMap<>(EventFormat.class);
+		for (final EventFormat format : EventFormat.values()) {
+			final ObjectMapper mapper = mappers.get(format);
+			final Map<String, ObjectReader> byTypeId = new HashMap<>();
+			final Map<String, ObjectReader> batchesByTypeId = new HashMap<>();
+			for (final Class<? extends Event> type : allowedTypes) {
+				byTypeId.put(type.getName(), mapper.readerFor(type));
+				batchesByTypeId.put(type.getName(),
+						mapper.readerFor(mapper.getTypeFactory().constructCollectionType(List.class, type)));
+			}
+			byFormat.put(format, byTypeId);
+			batchesByFormat.put(format, batchesByTypeId);
+		}
+		readers = byFormat;
+		batchReaders = batchesByFormat;
+	}
+
+	/**
+	 * @param defaultType
+	 *            the {@link Event} class of a message without a
+	 *            {@link #TYPE_ID_HEADER}, by default such a message is rejected.
+	 */
+	public void setDefaultType(final Class<? extends Event> defaultType) {
+		final Map<EventFormat, ObjectReader> byFormat = new EnumMap<>(EventFormat.class);
+		if (defaultType != null) {
+			for (final EventFormat format : EventFormat.values()) {
+				byFormat.put(format, mappers.get(format).readerFor(defaultType));
+			}
+		}
+		defaultReaders = byFormat;
+	}
+
+	/**
+	 * @return the writeFormat
+	 */
+	public EventFormat getWriteFormat() {
+		return writeFormat;
+	}
+
+	/**
+	 * @param writeFormat
+	 *            the {@link EventFormat} events are written in, by default
+	 *            {@link EventFormat#JSON}.
+	 */
+	public void setWriteFormat(final EventFormat writeFormat) {
+		this.writeFormat = Objects.requireNonNull(writeFormat);
+	}
+
+}
@@ -0,0 +1,97 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * The compressions the body of an AMQP message may have, each identified by
+ * the first part of the content encoding of the message. As for the
+ * compressing post processors of Spring AMQP, the content encoding of a
+ * compressed message is the compression, then a {@code :} and the encoding of
+ * the uncompressed body if it had one, e.g. {@code gzip:UTF-8}.
+ * 
+ * @author philsmart
+ *
+ */
+public enum PayloadCompression {
+
+	GZIP("gzip") {
+		@Override
+		OutputStream compressing(final OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+
+		@Override
+		InputStream decompressing(final InputStream in) throws IOException {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+	},
+
+	/**
+	 * The LZ4 frame format, with 64KB blocks. Faster than {@link #GZIP} to
+	 * compress and decompress, but compresses less.
+	 */
+	LZ4("lz4") {
+		@Override
+		OutputStream compressing(final OutputStream out) throws IOException {
+			return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+		}
+
+		@Override
+		InputStream decompressing(final InputStream in) throws IOException {
+			return new LZ4FrameInputStream(in);
+		}
+	};
+
+	/** Separates the compression from the encoding of the uncompressed body. */
+	public static final char ENCODING_DELIMITER = ':';
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String contentEncoding;
+
+	private PayloadCompression(final String contentEncoding) {
+		this.contentEncoding = contentEncoding;
+	}
+
+	/**
+	 * @return the content encoding of a message compressed this way.
+	 */
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	abstract OutputStream compressing(OutputStream out) throws IOException;
+
+	abstract InputStream decompressing(InputStream in) throws IOException;
+
+	/**
+	 * @param contentEncoding
+	 *            the content encoding of a message.
+	 * @return the compression of the message, or null if it has no content
+	 *         encoding or is not compressed.
+	 */
+	@Nullable
+	public static PayloadCompression forContentEncoding(@Nullable final String contentEncoding) {
+		if (contentEncoding == null) {
+			return null;
+		}
+		final int delimiter = contentEncoding.indexOf(ENCODING_DELIMITER);
+		final String compression = delimiter < 0 ? contentEncoding : contentEncoding.substring(0, delimiter);
+		for (final PayloadCompression candidate : values()) {
+			if (candidate.contentEncoding.equalsIgnoreCase(compression.trim())) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,79 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffer for each thread that compresses or decompresses message bodies, so
+ * a body is built up in a buffer that is reused rather than grown from empty
+ * for every message. Only the final copy of the body is allocated. A buffer
+ * that grows beyond {@link #MAX_RETAINED} is discarded after use, so one large
+ * message does not pin memory to a consumer thread.
+ * 
+ * @author philsmart
+ *
+ */
+final class PooledBuffers {
+
+	static final int MAX_RETAINED = 1 << 20;
+
+	private static final int INITIAL_SIZE = 16 * 1024;
+
+	private static final ThreadLocal<PooledBuffers> buffers = ThreadLocal.withInitial(PooledBuffers::new);
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_SIZE);
+
+	private final byte[] chunk = new byte[8192];
+
+	private PooledBuffers() {
+	}
+
+	/**
+	 * @return the empty output buffer of this thread, which must be
+	 *         {@link #release()}d once its contents have been copied.
+	 */
+	static ByteArrayOutputStream acquire() {
+		final ByteArrayOutputStream out = buffers.get().out;
+		out.reset();
+		return out;
+	}
+
+	/**
+	 * Discards the buffer of this thread if it has grown beyond
+	 * {@link #MAX_RETAINED}.
+	 */
+	static void release() {
+		if (buffers.get().out.size() > MAX_RETAINED) {
+			buffers.remove();
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 *            the most bytes to read, so a small compressed body can not
+	 *            expand to fill the heap.
+	 * @return every byte remaining in the stream, read through the buffers of
+	 *         this thread.
+	 * @throws IOException
+	 *             if the stream can not be read, or has more than
+	 *             {@code maxSize} bytes remaining.
+	 */
+	static byte[] readFully(final InputStream in, final long maxSize) throws IOException {
+		final PooledBuffers pooled = buffers.get();
+		final ByteArrayOutputStream out = acquire();
+		try {
+			int read;
+			while ((read = in.read(pooled.chunk)) != -1) {
+				if (out.size() + (long) read > maxSize) {
+					throw new IOException("Body is larger than the maximum of [" + maxSize + "] bytes");
+				}
+				out.write(pooled.chunk, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			release();
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Binding.DestinationType;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Queue;
+
+import uk.ac.cardiff.raptor.server.error.ProcessingErrorConstants;
+
+/**
+ * Chooses the queue a failed event is re-queued on, by how many times it has
+ * been retried. Each tier is a queue with a message TTL of its delay and no
+ * consumers, so the broker holds each event for the delay and then
+ * dead-letters it back to the {@code eventQueue}. An event is placed on the
+ * first tier the first time it fails, the second tier the second time, and on
+ * the last tier every time after that.
+ * <p>
+ * With no tiers, every failed event is placed on the {@code retryQueue}, to be
+ * polled and filtered by its retry timestamp.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class RetryTiers {
+
+	private static final Logger log = LoggerFactory.getLogger(RetryTiers.class);
+
+	/**
+	 * The delay of each tier in milliseconds, in the order they are used.
+	 */
+	private volatile long[] delays = new long[0];
+
+	private String exchange;
+
+	private String eventQueue;
+
+	private String retryQueue;
+
+	@PostConstruct
+	public void init() {
+		Objects.requireNonNull(exchange, "RetryTiers requires an exchange");
+		Objects.requireNonNull(eventQueue, "RetryTiers requires an event queue name");
+		Objects.requireNonNull(retryQueue, "RetryTiers requires a retry queue name");
+		for (final long delay : delays) {
+			if (delay <= 0) {
+				throw new IllegalStateException("Retry tier delays must be positive, not [" + delay + "]");
+			}
+		}
+		if (delays.length == 0) {
+			log.info("No retry tiers, failed events are placed on retry queue [{}]", retryQueue);
+		} else {
+			log.info("Failed events are retried through tiers {}, then back to [{}]", getQueueNames(), eventQueue);
+		}
+	}
+
+	/**
+	 * @param retryCount
+	 *            the {@link ProcessingErrorConstants#RETRY_COUNT} of the failed
+	 *            event, starting at 1.
+	 * @return the name of the queue to place the failed event on, also its
+	 *         routing key on the {@code exchange}.
+	 */
+	public String queueFor(final Object retryCount) {
+		final long[] delays = this.delays;
+		if (delays.length == 0) {
+			return retryQueue;
+		}
+		final int attempt = retryCount instanceof Integer ? (Integer) retryCount : 1;
+		return tierQueue(delays[Math.min(Math.max(attempt, 1), delays.length) - 1]);
+	}
+
+	private String tierQueue(final long delay) {
+		return retryQueue + "." + delay + "ms";
+	}
+
+	/**
+	 * @return the name of the queue of each tier, in the order they are used.
+	 */
+	public List<String> getQueueNames() {
+		final List<String> names = new ArrayList<>();
+		for (final long delay : delays) {
+			names.add(tierQueue(delay));
+		}
+		return names;
+	}
+
+	/**
+	 * @return the queue of each tier and its binding to the {@code exchange},
+	 *         declared on the broker by a
+	 *         {@link org.springframework.amqp.rabbit.core.RabbitAdmin}. Empty
+	 *         if there are no tiers.
+	 */
+	public List<Declarable> getDeclarables() {
+		final List<Declarable> declarables = new ArrayList<>();
+		for (final long delay : delays) {
+			final Map<String, Object> arguments = new HashMap<>();
+			arguments.put("x-message-ttl", delay);
+			arguments.put("x-dead-letter-exchange", exchange);
+			arguments.put("x-dead-letter-routing-key", eventQueue);
+			final String name = tierQueue(delay);
+			declarables.add(new Queue(name, true, false, false, arguments));
+			declarables.add(new Binding(name, DestinationType.QUEUE, exchange, name, Collections.emptyMap()));
+		}
+		return declarables;
+	}
+
+	/**
+	 * @return the delays
+	 */
+	public long[] getDelays() {
+		return delays.clone();
+	}
+
+	/**
+	 * @param delays
+	 *            the delays to set
+	 */
+	public void setDelays(final long[] delays) {
+		this.delays = delays == null ? new long[0] : delays.clone();
+	}
+
+	/**
+	 * @return the exchange
+	 */
+	public String getExchange() {
+		return exchange;
+	}
+
+	/**
+	 * @param exchange
+	 *            the exchange to set
+	 */
+	public void setExchange(final String exchange) {
+		this.exchange = exchange;
+	}
+
+	/**
+	 * @return the eventQueue
+	 */
+	public String getEventQueue() {
+		return eventQueue;
+	}
+
+	/**
+	 * @param eventQueue
+	 *            the eventQueue to set
+	 */
+	public void setEventQueue(final String eventQueue) {
+		this.eventQueue = eventQueue;
+	}
+
+	/**
+	 * @return the retryQueue
+	 */
+	public String getRetryQueue() {
+		return retryQueue;
+	}
+
+	/**
+	 * @param retryQueue
+	 *            the retryQueue to set
+	 */
+	public void setRetryQueue(final String retryQueue) {
+		this.retryQueue = retryQueue;
+	}
+
+}
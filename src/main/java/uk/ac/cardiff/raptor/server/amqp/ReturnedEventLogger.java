@@ -0,0 +1,47 @@
+package uk.ac.cardiff.raptor.server.amqp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.RabbitTemplate.ReturnCallback;
+
+import uk.ac.cardiff.raptor.server.error.ProcessingErrorConstants;
+
+/**
+ * Logs, as an error, each event the broker returns to a mandatory publisher as
+ * it could not be routed to any queue, e.g. a retry tier queue that was never
+ * declared. The event has already been taken from the queue it was read from,
+ * so a returned event is lost.
+ *
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class ReturnedEventLogger implements ReturnCallback {
+
+	private static final Logger log = LoggerFactory.getLogger(ReturnedEventLogger.class);
+
+	private final AtomicLong returned = new AtomicLong();
+
+	@Override
+	public void returnedMessage(final Message message, final int replyCode, final String replyText,
+			final String exchange, final String routingKey) {
+		final long count = returned.incrementAndGet();
+		log.error(
+				"Event returned unroutable by exchange [{}] with routing key [{}], [{} {}], retry count [{}], it has been lost. Check the queue exists and is bound, [{}] events returned so far",
+				exchange, routingKey, replyCode, replyText,
+				message.getMessageProperties().getHeaders().get(ProcessingErrorConstants.RETRY_COUNT), count);
+	}
+
+	/**
+	 * @return the number of events returned since startup.
+	 */
+	public long getReturned() {
+		return returned.get();
+	}
+
+}
@@ -0,0 +1,143 @@
+package uk.ac.cardiff.raptor.server.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.integration.annotation.ServiceActivator;
+import org.springframework.messaging.Message;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * Removes duplicate {@link Event}s from an {@link EventBatch} before it is
+ * enriched and stored, so a duplicate is never looked up by an enricher.
+ * {@link Event}s repeated within the batch are reduced to the first
+ * occurrence, and the remaining event ids are checked against the
+ * {@link EventRepository} with a single id only query, rather than one query
+ * per {@link Event}. If the {@link EventIdIndex} is ready, only ids it contains
+ * are queried.
+ * <p>
+ * {@link Event}s repeated within a batch are removed in every
+ * {@code raptor.dedup.mode}, as a repeat would fail the transaction of the
+ * whole batch. The {@link EventRepository} is only checked when the mode is
+ * {@link DuplicateCheckMode#BATCH}, the {@link DuplicateChecker} has already
+ * checked each {@link Event} in {@link DuplicateCheckMode#FILTER} mode and the
+ * database ignores them in {@link DuplicateCheckMode#INSERT_IF_ABSENT} mode.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class BatchDuplicateChecker {
+
+	private static final Logger log = LoggerFactory.getLogger(BatchDuplicateChecker.class);
+
+	/**
+	 * The most event ids placed in a single {@code IN} clause, larger batches are
+	 * queried in chunks.
+	 */
+	private static final int MAX_IN_CLAUSE_IDS = 1000;
+
+	@Inject
+	private EventRepository repository;
+
+	@Inject
+	private EventIdIndex index;
+
+	@Value("${raptor.dedup.mode:FILTER}")
+	private volatile DuplicateCheckMode mode;
+
+	/**
+	 * Removes {@link Event}s from the {@link EventBatch} that are repeated within
+	 * the batch, or that are already present in the {@link EventRepository}.
+	 * 
+	 * @param batch
+	 *            the {@link EventBatch} to check.
+	 * @return an {@link EventBatch} without duplicates, or null if every
+	 *         {@link Event} was a duplicate.
+	 */
+	@ServiceActivator
+	public EventBatch removeDuplicates(final EventBatch batch) {
+		if (mode != DuplicateCheckMode.BATCH && batch.size() <= 1) {
+			return batch;
+		}
+
+		final Map<Integer, Message<Event>> unique = new LinkedHashMap<>();
+		for (final Message<Event> message : batch.getMessages()) {
+			if (message.getPayload() == null) {
+				log.warn("Message has no payload, filtering this event out");
+				continue;
+			}
+			if (unique.putIfAbsent(message.getPayload().getEventId(), message) != null) {
+				log.debug("-DISALLOW, Event [{}] is repeated within the batch", message.getPayload().getEventId());
+			}
+		}
+
+		final Set<Integer> stored = mode == DuplicateCheckMode.BATCH ? findStored(unique.keySet())
+				: Collections.<Integer> emptySet();
+		final List<Message<Event>> allowed = new ArrayList<>(unique.size());
+		for (final Map.Entry<Integer, Message<Event>> entry : unique.entrySet()) {
+			if (stored.contains(entry.getKey())) {
+				log.debug("-DISALLOW, Found matching event, id = [{}]", entry.getKey());
+			} else {
+				allowed.add(entry.getValue());
+			}
+		}
+
+		log.debug("Batch of [{}] events has [{}] events that are not duplicates", batch.size(), allowed.size());
+		if (allowed.isEmpty()) {
+			return null;
+		}
+		return allowed.size() == batch.size() ? batch : new EventBatch(allowed);
+	}
+
+	/**
+	 * @param eventIds
+	 *            the event ids to look for.
+	 * @return the event ids that are already stored.
+	 */
+	private Set<Integer> findStored(final Set<Integer> eventIds) {
+		final List<Integer> candidates = new ArrayList<>(eventIds.size());
+		final boolean indexReady = index.isReady();
+		for (final Integer eventId : eventIds) {
+			if (indexReady == false || index.contains(eventId)) {
+				candidates.add(eventId);
+			}
+		}
+
+		final Set<Integer> stored = new HashSet<>();
+		for (int from = 0; from < candidates.size(); from += MAX_IN_CLAUSE_IDS) {
+			final int to = Math.min(from + MAX_IN_CLAUSE_IDS, candidates.size());
+			stored.addAll(repository.findEventIdsIn(candidates.subList(from, to)));
+		}
+		return stored;
+	}
+
+	/**
+	 * @return the mode
+	 */
+	public DuplicateCheckMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @param mode
+	 *            the mode to set
+	 */
+	public void setMode(final DuplicateCheckMode mode) {
+		this.mode = mode;
+	}
+
+}
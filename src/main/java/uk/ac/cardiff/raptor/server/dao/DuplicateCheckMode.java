@@ -0,0 +1,35 @@
+package uk.ac.cardiff.raptor.server.dao;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * Where in the pipeline duplicate {@link Event}s are removed. Set using the
+ * {@code raptor.dedup.mode} property.
+ * 
+ * @author philsmart
+ *
+ */
+public enum DuplicateCheckMode {
+
+	/**
+	 * Each {@link Event} is checked as it arrives by the {@link DuplicateChecker}
+	 * filter, before enrichment. {@link Event}s repeated within a store batch are
+	 * also removed, by the {@link BatchDuplicateChecker}.
+	 */
+	FILTER,
+
+	/**
+	 * Each {@link EventBatch} is checked by the {@link BatchDuplicateChecker}
+	 * once it is aggregated and before it is enriched, using a single query per
+	 * batch, so duplicates are never enriched.
+	 */
+	BATCH,
+
+	/**
+	 * No separate duplicate check is made. {@link Event}s are inserted using the
+	 * insert-or-ignore syntax of the database, so the insert of an event id that
+	 * is already stored is ignored. See {@link InsertIfAbsentIntegrator}.
+	 */
+	INSERT_IF_ABSENT
+
+}
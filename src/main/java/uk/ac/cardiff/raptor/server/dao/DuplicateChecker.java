@@ -1,9 +1,11 @@
 package uk.ac.cardiff.raptor.server.dao;
 
+import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.integration.annotation.Filter;
 import org.springframework.messaging.Message;
 
@@ -11,11 +13,22 @@ import uk.ac.cardiff.model.event.Event;
 
 /**
  * Filter class that checks for duplicates in the {@link EventRepository} using
- * the {@link Event#getEventId().
+ * the {@link Event#getEventId(). If the {@link EventIdIndex} is ready, it is
+ * consulted first and the {@link EventRepository} is only queried to confirm a
+ * possible duplicate. An id absent from the index is taken as new, which holds
+ * only while this server is the only writer of the events table, see
+ * {@link EventIdIndex}.
+ * <p>
+ * Only active when {@code raptor.dedup.mode} is
+ * {@link DuplicateCheckMode#FILTER}, otherwise every {@link Event} is allowed
+ * through and duplicates are removed later by the {@link BatchDuplicateChecker}
+ * or ignored by the database.
+ * </p>
  * 
  * @author philsmart
  *
  */
+@ThreadSafe
 public class DuplicateChecker {
 
 	private static final Logger log = LoggerFactory.getLogger(DuplicateChecker.class);
@@ -23,10 +36,18 @@ public class DuplicateChecker {
 	@Inject
 	private EventRepository repository;
 
+	@Inject
+	private EventIdIndex index;
+
+	@Value("${raptor.dedup.mode:FILTER}")
+	private volatile DuplicateCheckMode mode;
+
 	/**
 	 * Checks if the {@link Event#getEventId()} contained in the payload of the
 	 * {@link Message} is already present in the {@link EventRepository}. If it is,
-	 * filters out the event, otherwise the event is allowed through
+	 * filters out the event, otherwise the event is allowed through. Only the
+	 * existence of the event id is checked, the matching {@link Event} is not
+	 * loaded.
 	 * 
 	 * @param eventMsg
 	 *            the {@link Message} with the {@link Event} in its payload
@@ -40,11 +61,22 @@ public class DuplicateChecker {
 			log.warn("Message has no payload, filtering this event out");
 			return false;
 		}
+		if (mode != DuplicateCheckMode.FILTER) {
+			return true;
+		}
 		log.debug("Checking Event [{}] does not already exist in the repository", eventMsg.getPayload().getEventId());
 
-		final Event match = repository.findOne(eventMsg.getPayload().getEventId());
+		final int eventId = eventMsg.getPayload().getEventId();
+
+		final boolean exists;
+		if (index.isReady() && index.contains(eventId) == false) {
+			log.trace("Event [{}] is not in the event id index", eventId);
+			exists = false;
+		} else {
+			exists = repository.exists(eventId);
+		}
 
-		if (match == null) {
+		if (exists == false) {
 			log.debug("+ALLOW, No duplicate event found with eventId [{}] at time [{}], allowing event",
 					eventMsg.getPayload().getEventId(), eventMsg.getPayload().getEventTime());
 			return true;
@@ -56,4 +88,19 @@ public class DuplicateChecker {
 
 	}
 
+	/**
+	 * @return the mode
+	 */
+	public DuplicateCheckMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @param mode
+	 *            the mode to set
+	 */
+	public void setMode(final DuplicateCheckMode mode) {
+		this.mode = mode;
+	}
+
 }
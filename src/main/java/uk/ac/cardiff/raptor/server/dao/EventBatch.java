@@ -0,0 +1,63 @@
+package uk.ac.cardiff.raptor.server.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.messaging.Message;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * A group of {@link Event} {@link Message}s that are persisted together. The
+ * original {@link Message}s (and their headers) are retained so that any
+ * {@link Event} that fails individually can be sent for retry with its headers
+ * intact.
+ * 
+ * @author philsmart
+ *
+ */
+public class EventBatch {
+
+	private final List<Message<Event>> messages;
+
+	public EventBatch(@Nonnull final List<Message<Event>> messages) {
+		Objects.requireNonNull(messages);
+		this.messages = Collections.unmodifiableList(new ArrayList<Message<Event>>(messages));
+	}
+
+	/**
+	 * @return the {@link Message}s in this batch, in the order they were received.
+	 */
+	public List<Message<Event>> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return the {@link Event} payloads of the {@link Message}s in this batch.
+	 */
+	public List<Event> getEvents() {
+		final List<Event> events = new ArrayList<Event>(messages.size());
+		for (final Message<Event> message : messages) {
+			events.add(message.getPayload());
+		}
+		return events;
+	}
+
+	public int size() {
+		return messages.size();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("EventBatch [size=");
+		builder.append(messages.size());
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
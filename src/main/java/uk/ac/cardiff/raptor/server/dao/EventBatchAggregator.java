@@ -0,0 +1,76 @@
+package uk.ac.cardiff.raptor.server.dao;
+
+import java.util.List;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.annotation.Aggregator;
+import org.springframework.integration.annotation.CorrelationStrategy;
+import org.springframework.integration.annotation.ReleaseStrategy;
+import org.springframework.messaging.Message;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * Groups {@link Event} {@link Message}s into an {@link EventBatch} so they can
+ * be checked for duplicates, enriched and persisted in a single transaction. A batch is released once it holds
+ * {@code batchSize} messages. The aggregator this is wired into is expected to
+ * also release a partial batch after a configured linger time.
+ * <p>
+ * Messages are correlated by the thread they arrive on, so each AMQP consumer
+ * builds and stores its own batches. Spring Integration holds the lock of a
+ * group while its batch is released, enriched and stored, which would
+ * otherwise serialise every consumer on a single group.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class EventBatchAggregator {
+
+	private static final Logger log = LoggerFactory.getLogger(EventBatchAggregator.class);
+
+	/**
+	 * The number of {@link Event}s to collect before the batch is released. A
+	 * value of 1 releases every {@link Event} immediately.
+	 */
+	private volatile int batchSize = 1;
+
+	@CorrelationStrategy
+	public Object correlate(final Message<?> message) {
+		return Thread.currentThread().getId();
+	}
+
+	@ReleaseStrategy
+	public boolean canRelease(final List<Message<?>> messages) {
+		return messages.size() >= batchSize;
+	}
+
+	@Aggregator
+	public EventBatch aggregate(final List<Message<Event>> messages) {
+		log.debug("Releasing batch of [{}] events", messages.size());
+		return new EventBatch(messages);
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the batchSize to set, must be at least 1.
+	 */
+	public void setBatchSize(final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+}
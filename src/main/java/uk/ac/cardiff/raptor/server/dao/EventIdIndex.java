@@ -0,0 +1,463 @@
+package uk.ac.cardiff.raptor.server.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+import org.roaringbitmap.IntConsumer;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * An in-memory index of the {@link Event#getEventId()} of every stored
+ * {@link Event}, held in a compressed {@link RoaringBitmap}. Answers whether an
+ * event id has been stored without a database round trip.
+ * <p>
+ * On startup the index is loaded from a memory-mapped snapshot file if one
+ * exists and the count, minimum, maximum and sum of its ids still match those
+ * of the stored events, so a snapshot of a table that has since had events
+ * both deleted and inserted is not trusted.
+ * Otherwise it is rebuilt in the background by streaming the event ids from the
+ * {@link EventRepository}. Until the index is ready, {@link #isReady()} returns
+ * false and callers should consult the database instead.
+ * </p>
+ * <p>
+ * Events deleted from the database outside of raptor-server remain in the
+ * index, so a positive answer from {@link #contains(int)} should be confirmed
+ * against the database. A negative answer is only exact if this raptor-server
+ * is the only writer of the events table. Events inserted by another server,
+ * or any other writer, are not in the index. An {@link Event} wrongly passed
+ * as new then fails to insert, and the {@link EventStore} adds its id to the
+ * index once it finds it already stored.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+@Component
+public class EventIdIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(EventIdIndex.class);
+
+	/**
+	 * Marks the start of a snapshot file, followed by {@link #SNAPSHOT_VERSION}.
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x52415054;
+
+	private static final int SNAPSHOT_VERSION = 2;
+
+	/**
+	 * Magic, version, creation time and the {@link IdSummary}.
+	 */
+	private static final int SNAPSHOT_HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4 + 8;
+
+	/**
+	 * How long shutdown waits for a running load or snapshot to finish.
+	 */
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	@Inject
+	private EventRepository repository;
+
+	@Inject
+	private PlatformTransactionManager transactionManager;
+
+	/**
+	 * If false, the index is never built and {@link #isReady()} is always false.
+	 */
+	@Value("${raptor.dedup.index.enabled:false}")
+	private boolean enabled;
+
+	/**
+	 * The file the index is snapshotted to and restored from. No snapshots are
+	 * taken if empty.
+	 */
+	@Value("${raptor.dedup.index.snapshot-file:}")
+	private String snapshotFile;
+
+	/**
+	 * How often, in ms, the index is snapshotted to the {@code snapshotFile}.
+	 */
+	@Value("${raptor.dedup.index.snapshot-interval-ms:300000}")
+	private long snapshotIntervalMs;
+
+	/**
+	 * Guards {@code ids}, which is not thread safe.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final RoaringBitmap ids = new RoaringBitmap();
+
+	private volatile boolean ready;
+
+	private ScheduledExecutorService executor;
+
+	@PostConstruct
+	public void init() {
+		if (enabled == false) {
+			log.info("Event id index is disabled, duplicate checks will use the database");
+			return;
+		}
+		log.info("Event id index enabled, snapshot file [{}], snapshot interval [{}ms]", snapshotFile,
+				snapshotIntervalMs);
+
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "event-id-index");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.execute(this::load);
+
+		if (getSnapshotPath() != null) {
+			executor.scheduleWithFixedDelay(this::snapshot, snapshotIntervalMs, snapshotIntervalMs,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the periodic snapshots, waiting for one that is running to finish so
+	 * it does not write the snapshot file at the same time as the final
+	 * snapshot.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			if (executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS) == false) {
+				log.warn("Event id index was still busy after [{}s], not taking a final snapshot",
+						SHUTDOWN_TIMEOUT_SECONDS);
+				executor.shutdownNow();
+				return;
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+			return;
+		}
+		snapshot();
+	}
+
+	/**
+	 * @return true if the index has been built and can answer
+	 *         {@link #contains(int)}.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @param eventId
+	 *            the event id to look for.
+	 * @return true if the event id has been stored. Only meaningful if
+	 *         {@link #isReady()}.
+	 */
+	public boolean contains(final int eventId) {
+		lock.readLock().lock();
+		try {
+			return ids.contains(eventId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add the ids of {@link Event}s that have been committed to the database.
+	 * 
+	 * @param events
+	 *            the stored {@link Event}s.
+	 */
+	public void addAll(final Collection<Event> events) {
+		if (enabled == false) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			for (final Event event : events) {
+				ids.add(event.getEventId());
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Load the index from the snapshot file if it is present and not stale,
+	 * otherwise rebuild it from the {@link EventRepository}.
+	 */
+	private void load() {
+		try {
+			final IdSummary stored = IdSummary.of(repository.summariseEventIds().get(0));
+			final RoaringBitmap loaded = readSnapshot(stored);
+
+			if (loaded != null) {
+				merge(loaded);
+			} else {
+				log.info("Building event id index from the repository, [{}] events", stored.count);
+				merge(readRepository());
+			}
+			ready = true;
+			log.info("Event id index is ready with [{}] event ids", cardinality());
+
+		} catch (final Exception e) {
+			log.error("Could not build the event id index, duplicate checks will use the database", e);
+		}
+	}
+
+	private RoaringBitmap readRepository() {
+		final RoaringBitmap fromRepository = new RoaringBitmap();
+		final TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+		readOnly.setReadOnly(true);
+		readOnly.execute(status -> {
+			try (Stream<Integer> eventIds = repository.streamAllEventIds()) {
+				eventIds.forEach(fromRepository::add);
+			}
+			return null;
+		});
+		fromRepository.runOptimize();
+		return fromRepository;
+	}
+
+	/**
+	 * Read the snapshot file by memory mapping it.
+	 * 
+	 * @param stored
+	 *            the summary of the event ids currently stored, used to detect
+	 *            a stale snapshot.
+	 * @return the snapshotted ids, or null if there is no usable snapshot.
+	 */
+	private RoaringBitmap readSnapshot(final IdSummary stored) {
+		final Path path = getSnapshotPath();
+		if (path == null || Files.exists(path) == false) {
+			log.info("No event id index snapshot found");
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (mapped.getInt() != SNAPSHOT_MAGIC || mapped.getInt() != SNAPSHOT_VERSION) {
+				log.warn("Event id index snapshot [{}] is not a recognised snapshot, ignoring", path);
+				return null;
+			}
+			final long created = mapped.getLong();
+			final IdSummary snapshotted = new IdSummary(mapped.getLong(), mapped.getInt(), mapped.getInt(),
+					mapped.getLong());
+			if (snapshotted.equals(stored) == false) {
+				log.info("Event id index snapshot from [{}] is stale, has ids [{}] but the stored ids are [{}]",
+						created, snapshotted, stored);
+				return null;
+			}
+			final ByteBuffer bitmap = mapped.slice();
+			log.info("Restoring event id index from snapshot [{}] taken at [{}]", path, created);
+			return new ImmutableRoaringBitmap(bitmap).toRoaringBitmap();
+
+		} catch (final IOException | RuntimeException e) {
+			log.warn("Could not read event id index snapshot [{}], ignoring", path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write the index to the snapshot file. A copy of the index is written to a
+	 * temporary file which then replaces the snapshot, so a partially written
+	 * snapshot is never read.
+	 */
+	public void snapshot() {
+		final Path path = getSnapshotPath();
+		if (path == null || ready == false) {
+			return;
+		}
+		final RoaringBitmap copy;
+		lock.readLock().lock();
+		try {
+			copy = ids.clone();
+		} finally {
+			lock.readLock().unlock();
+		}
+		copy.runOptimize();
+
+		try {
+			if (path.toAbsolutePath().getParent() != null) {
+				Files.createDirectories(path.toAbsolutePath().getParent());
+			}
+			final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+				final IdSummary summary = IdSummary.of(copy);
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeLong(summary.count);
+				out.writeInt(summary.min);
+				out.writeInt(summary.max);
+				out.writeLong(summary.sum);
+				copy.serialize(out);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log.debug("Event id index snapshot of [{}] ids, [{}] bytes written to [{}]", copy.getLongCardinality(),
+					SNAPSHOT_HEADER_BYTES + copy.serializedSizeInBytes(), path);
+
+		} catch (final IOException e) {
+			log.error("Could not write event id index snapshot [{}]", path, e);
+		}
+	}
+
+	private void merge(final RoaringBitmap loaded) {
+		lock.writeLock().lock();
+		try {
+			ids.or(loaded);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private long cardinality() {
+		lock.readLock().lock();
+		try {
+			return ids.getLongCardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Path getSnapshotPath() {
+		if (snapshotFile == null || snapshotFile.trim().isEmpty()) {
+			return null;
+		}
+		return Paths.get(snapshotFile.trim());
+	}
+
+	/**
+	 * The count, signed minimum, signed maximum and sum of a set of event ids.
+	 * Ids that differ while their count is the same are very unlikely to also
+	 * share the rest. The minimum, maximum and sum are 0 for no ids.
+	 */
+	private static final class IdSummary {
+
+		private final long count;
+
+		private final int min;
+
+		private final int max;
+
+		private final long sum;
+
+		private IdSummary(final long count, final int min, final int max, final long sum) {
+			this.count = count;
+			this.min = min;
+			this.max = max;
+			this.sum = sum;
+		}
+
+		/**
+		 * @param row
+		 *            the row returned by {@link EventRepository#summariseEventIds()}.
+		 */
+		private static IdSummary of(final Object[] row) {
+			final long count = ((Number) row[0]).longValue();
+			if (count == 0) {
+				return new IdSummary(0, 0, 0, 0);
+			}
+			return new IdSummary(count, ((Number) row[1]).intValue(), ((Number) row[2]).intValue(),
+					((Number) row[3]).longValue());
+		}
+
+		private static IdSummary of(final RoaringBitmap ids) {
+			if (ids.isEmpty()) {
+				return new IdSummary(0, 0, 0, 0);
+			}
+			final int[] min = { Integer.MAX_VALUE };
+			final int[] max = { Integer.MIN_VALUE };
+			final long[] sum = { 0 };
+			ids.forEach((IntConsumer) id -> {
+				min[0] = Math.min(min[0], id);
+				max[0] = Math.max(max[0], id);
+				sum[0] += id;
+			});
+			return new IdSummary(ids.getLongCardinality(), min[0], max[0], sum[0]);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (obj instanceof IdSummary == false) {
+				return false;
+			}
+			final IdSummary other = (IdSummary) obj;
+			return count == other.count && min == other.min && max == other.max && sum == other.sum;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(count, min, max, sum);
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + ", min=" + min + ", max=" + max + ", sum=" + sum;
+		}
+
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *            the enabled to set
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the snapshotFile
+	 */
+	public String getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * @param snapshotFile
+	 *            the snapshotFile to set
+	 */
+	public void setSnapshotFile(final String snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+}
@@ -1,5 +1,14 @@
 package uk.ac.cardiff.raptor.server.dao;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.repository.CrudRepository;
 
 import uk.ac.cardiff.model.event.Event;
@@ -12,4 +21,36 @@ import uk.ac.cardiff.model.event.Event;
  */
 public interface EventRepository extends CrudRepository<Event, Integer> {
 
+	/**
+	 * Streams the {@link Event#getEventId()} of every stored {@link Event}
+	 * without loading the {@link Event}s themselves. Must be called inside a
+	 * transaction, and the {@link Stream} closed once consumed.
+	 * 
+	 * @return a {@link Stream} of every stored event id.
+	 */
+	@Query("select e.eventId from Event e")
+	@QueryHints(@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE, value = "10000"))
+	Stream<Integer> streamAllEventIds();
+
+	/**
+	 * Finds which of the given event ids have already been stored, without
+	 * loading the {@link Event}s themselves.
+	 * 
+	 * @param eventIds
+	 *            the event ids to look for.
+	 * @return the subset of {@code eventIds} that are stored.
+	 */
+	@Query("select e.eventId from Event e where e.eventId in :eventIds")
+	List<Integer> findEventIdsIn(@Param("eventIds") Collection<Integer> eventIds);
+
+	/**
+	 * Summarises the stored event ids with a single aggregate query, so that a
+	 * snapshot of the ids can be checked against them without reading every id.
+	 * 
+	 * @return one row of the count, minimum, maximum and sum of the stored event
+	 *         ids. The minimum, maximum and sum are null if no events are stored.
+	 */
+	@Query("select count(e), min(e.eventId), max(e.eventId), sum(e.eventId) from Event e")
+	List<Object[]> summariseEventIds();
+
 }
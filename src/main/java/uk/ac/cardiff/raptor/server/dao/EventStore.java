@@ -1,19 +1,35 @@
 package uk.ac.cardiff.raptor.server.dao;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandlingException;
+import org.springframework.messaging.support.ErrorMessage;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.util.MessageEventHelper;
 
+@ThreadSafe
 @Component
 public class EventStore {
 
@@ -25,6 +41,67 @@ public class EventStore {
 	@Inject
 	private EventRepository repo;
 
+	/**
+	 * Used to persist new {@link Event}s directly, rather than merge them
+	 * through the {@code repo}.
+	 */
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Inject
+	private PlatformTransactionManager transactionManager;
+
+	/**
+	 * Updated with the id of every {@link Event} once it has been committed.
+	 */
+	@Inject
+	private EventIdIndex index;
+
+	/**
+	 * The channel an {@link ErrorMessage} is sent to when an {@link Event} in an
+	 * {@link EventBatch} can not be stored. If null, the exception is rethrown
+	 * instead. Typically the same channel used as the error channel of the AMQP
+	 * inbound adapter, so failed {@link Event}s are placed on the retry queue.
+	 */
+	private volatile MessageChannel errorChannel;
+
+	/**
+	 * If true, the AMQP listener container runs each delivery in a transaction
+	 * of the {@code transactionManager}, and acknowledges its deliveries only
+	 * once that transaction commits. {@link Event}s are then stored within the
+	 * container transaction, and a failure is rethrown so that the transaction
+	 * rolls back and the deliveries are redelivered. A redelivered {@link Event}
+	 * is stored in its own transaction, and sent to the {@code errorChannel} if
+	 * it fails again. That transaction needs a second database connection while
+	 * the container transaction holds the first, so the pool must allow two
+	 * connections per consumer.
+	 */
+	@Value("${amqp.event.listener.transacted:false}")
+	private boolean listenerTransacted;
+
+	/**
+	 * Must be 1 when {@code listenerTransacted}, as a batch released after the
+	 * container transaction commits could be lost.
+	 */
+	@Value("${raptor.store.batch.size:1}")
+	private int batchSize;
+
+	/**
+	 * Must be true for a {@code batchSize} above 1. The deliveries of a batch are
+	 * acknowledged once their {@link Event}s are held in memory by the
+	 * aggregator, so a batch not yet stored is lost if the server stops.
+	 */
+	@Value("${amqp.event.ack-before-store:false}")
+	private boolean ackBeforeStore;
+
+	private TransactionTemplate transaction;
+
+	/**
+	 * Always starts a new transaction, so an {@link Event} can be stored on its
+	 * own while a container transaction is active.
+	 */
+	private TransactionTemplate isolatedTransaction;
+
 	/**
 	 * Validates the class setup
 	 */
@@ -32,21 +109,203 @@ public class EventStore {
 	public void validate() {
 
 		Objects.requireNonNull(repo, "EventStore requires an event repository");
+		Objects.requireNonNull(transactionManager, "EventStore requires a transaction manager");
+		Objects.requireNonNull(index, "EventStore requires an event id index");
+		Objects.requireNonNull(entityManager, "EventStore requires an entity manager");
+		if (listenerTransacted && batchSize != 1) {
+			throw new IllegalStateException(
+					"amqp.event.listener.transacted requires raptor.store.batch.size to be 1, use amqp.event.listener.tx-size to batch");
+		}
+		if (batchSize > 1 && ackBeforeStore == false) {
+			throw new IllegalStateException(
+					"raptor.store.batch.size above 1 acknowledges deliveries before their events are stored, set amqp.event.ack-before-store=true to accept losing them if the server stops");
+		}
+		if (batchSize > 1) {
+			log.warn("Storing batches of [{}] events, events acknowledged but not yet stored are lost if the server stops",
+					batchSize);
+		}
+		transaction = new TransactionTemplate(transactionManager);
+		isolatedTransaction = new TransactionTemplate(transactionManager);
+		isolatedTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
 	}
 
 	/**
-	 * Performs a {@link CrudRepository#save(Object)} operation to the input
-	 * {@link Event}.
+	 * Stores every {@link Event} in the {@link EventBatch} in a single
+	 * transaction. If that transaction fails, each {@link Event} is stored again
+	 * in its own transaction so that a single bad {@link Event} does not cause
+	 * the whole batch to be retried. {@link Event}s that still can not be stored
+	 * are sent to the {@code errorChannel}.
+	 * 
+	 * @param batch
+	 *            the {@link EventBatch} to persist.
+	 */
+	@ServiceActivator
+	public void storeEvents(final EventBatch batch) {
+		if (batch.size() == 0) {
+			log.debug("Every event of the batch failed to be enriched, nothing to store");
+			return;
+		}
+		log.info("Storing batch of [{}] events", batch.size());
+
+		if (batch.size() == 1) {
+			final Message<Event> message = batch.getMessages().get(0);
+			if (isInContainerTransaction(message)) {
+				storeInContainerTransaction(message);
+			} else {
+				storeIsolated(message);
+			}
+			return;
+		}
+
+		try {
+			final List<Event> events = batch.getEvents();
+			transaction.execute(status -> save(events));
+			indexAfterCommit(events);
+			log.debug("Batch of [{}] events stored", batch.size());
+
+		} catch (final RuntimeException e) {
+			log.warn("Batch of [{}] events could not be stored in one transaction, storing each event separately",
+					batch.size(), e);
+			RuntimeException unhandled = null;
+			for (final Message<Event> message : batch.getMessages()) {
+				try {
+					storeIsolated(message);
+				} catch (final RuntimeException storeException) {
+					// keep storing the rest of the batch, rethrow once done.
+					unhandled = storeException;
+				}
+			}
+			if (unhandled != null) {
+				throw unhandled;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the {@link Message} should be stored in the transaction of
+	 *         the AMQP listener container, that is the container is transacted,
+	 *         the {@link Message} is being received in that transaction and has
+	 *         not been delivered before.
+	 */
+	private boolean isInContainerTransaction(final Message<Event> message) {
+		return listenerTransacted && TransactionSynchronizationManager.isActualTransactionActive()
+				&& MessageEventHelper.isRedelivered(message) == false;
+	}
+
+	/**
+	 * Stores a single {@link Event} in the active container transaction. Any
+	 * failure is rethrown so the container rolls back and the delivery is
+	 * redelivered, rather than the {@link Event} being sent to the
+	 * {@code errorChannel}.
 	 * 
 	 * @param message
 	 *            the message containing the {@link Event} to persist.
 	 */
-	@ServiceActivator
-	public void storeEvent(final Message<Event> message) {
-		log.info("Storing event [{}]", message.getPayload());
-		final Event event = message.getPayload();
-		repo.save(event);
-		log.debug("Event stored");
+	private void storeInContainerTransaction(final Message<Event> message) {
+		log.debug("Storing event [{}] in the listener container transaction", message.getPayload());
+		transaction.execute(status -> save(Collections.singletonList(message.getPayload())));
+		indexAfterCommit(Collections.singletonList(message.getPayload()));
+	}
+
+	/**
+	 * Stores a single {@link Event} in its own transaction, sending an
+	 * {@link ErrorMessage} to the {@code errorChannel} if it fails. If it failed
+	 * because the {@link Event} has since been stored by another writer, which
+	 * the {@link EventIdIndex} can not know about, its id is added to the index
+	 * and it is dropped as a duplicate rather than retried.
+	 * 
+	 * @param message
+	 *            the message containing the {@link Event} to persist.
+	 */
+	private void storeIsolated(final Message<Event> message) {
+		try {
+			log.debug("Storing event [{}]", message.getPayload());
+			isolatedTransaction.execute(status -> save(Collections.singletonList(message.getPayload())));
+			index.addAll(Collections.singletonList(message.getPayload()));
+
+		} catch (final RuntimeException e) {
+			if (isStoredElsewhere(message.getPayload())) {
+				log.info("Event [{}] has already been stored by another writer, dropping it as a duplicate",
+						message.getPayload().getEventId());
+				index.addAll(Collections.singletonList(message.getPayload()));
+				return;
+			}
+			final MessageHandlingException failure = new MessageHandlingException(message,
+					"Could not store event [" + message.getPayload().getEventId() + "]", e);
+			if (errorChannel == null) {
+				throw failure;
+			}
+			log.error("Event [{}] could not be stored, sending to error channel", message.getPayload().getEventId(),
+					e);
+			errorChannel.send(new ErrorMessage(failure));
+		}
+	}
+
+	/**
+	 * @return true if the {@link Event} that failed to store is in the
+	 *         repository, false if it is not or that can not be checked.
+	 */
+	private boolean isStoredElsewhere(final Event event) {
+		try {
+			return repo.exists(event.getEventId());
+		} catch (final RuntimeException e) {
+			log.debug("Could not check if event [{}] is already stored", event.getEventId(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Adds the {@link Event}s to the {@link EventIdIndex} once the active
+	 * transaction commits, or immediately if there is no active transaction.
+	 * 
+	 * @param events
+	 *            the {@link Event}s that have been saved.
+	 */
+	private void indexAfterCommit(final List<Event> events) {
+		if (TransactionSynchronizationManager.isSynchronizationActive() == false) {
+			index.addAll(events);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				index.addAll(events);
+			}
+		});
+	}
+
+	/**
+	 * Saves the {@link Event}s within the current transaction. The
+	 * {@link Event}s are persisted rather than merged, so they are inserted
+	 * without first being looked up. An {@link Event} that is already stored
+	 * fails the insert, and so the transaction, unless in
+	 * {@link DuplicateCheckMode#INSERT_IF_ABSENT} mode where the database
+	 * ignores it.
+	 * 
+	 * @param events
+	 *            the {@link Event}s to save.
+	 * @return the saved {@link Event}s.
+	 */
+	private Iterable<Event> save(final List<Event> events) {
+		for (final Event event : events) {
+			entityManager.persist(event);
+		}
+		return events;
+	}
+
+	/**
+	 * @return the errorChannel
+	 */
+	public MessageChannel getErrorChannel() {
+		return errorChannel;
+	}
+
+	/**
+	 * @param errorChannel
+	 *            the errorChannel to set
+	 */
+	public void setErrorChannel(final MessageChannel errorChannel) {
+		this.errorChannel = errorChannel;
 	}
 
 }
@@ -0,0 +1,112 @@
+package uk.ac.cardiff.raptor.server.dao;
+
+import java.util.Arrays;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.cache.spi.access.NaturalIdRegionAccessStrategy;
+import org.hibernate.engine.spi.ExecuteUpdateResultCheckStyle;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.JoinedSubclassEntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.persister.entity.UnionSubclassEntityPersister;
+import org.hibernate.persister.internal.StandardPersisterClassResolver;
+import org.hibernate.persister.spi.PersisterCreationContext;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * Versions of the standard Hibernate entity persisters that do not check the
+ * row count of an insert. Used for {@link Event}s in
+ * {@link DuplicateCheckMode#INSERT_IF_ABSENT} mode, where an insert of an event
+ * id that is already stored is ignored and so affects no rows. Hibernate only
+ * allows the check to be turned off for custom insert statements otherwise.
+ * 
+ * @author philsmart
+ *
+ */
+public final class InsertIfAbsentEntityPersisters {
+
+	private InsertIfAbsentEntityPersisters() {
+	}
+
+	/**
+	 * @param entity
+	 *            the mapping of the entity.
+	 * @return the persister class that should be used for the entity in place of
+	 *         the standard one.
+	 * @throws HibernateException
+	 *             if the entity is mapped with a custom persister.
+	 */
+	public static Class<? extends EntityPersister> persisterFor(final PersistentClass entity) {
+		if (entity.getEntityPersisterClass() != null) {
+			throw new HibernateException("Insert if absent can not be used with entity [" + entity.getEntityName()
+					+ "] as it has a custom persister");
+		}
+		return new Resolver().getEntityPersisterClass(entity);
+	}
+
+	private static void ignoreInsertRowCount(final ExecuteUpdateResultCheckStyle[] insertResultCheckStyles) {
+		Arrays.fill(insertResultCheckStyles, ExecuteUpdateResultCheckStyle.NONE);
+	}
+
+	/**
+	 * Picks the persister for an entity in the same way as Hibernate, but from
+	 * the persisters below.
+	 */
+	private static final class Resolver extends StandardPersisterClassResolver {
+
+		@Override
+		public Class<? extends EntityPersister> singleTableEntityPersister() {
+			return SingleTable.class;
+		}
+
+		@Override
+		public Class<? extends EntityPersister> joinedSubclassEntityPersister() {
+			return JoinedSubclass.class;
+		}
+
+		@Override
+		public Class<? extends EntityPersister> unionSubclassEntityPersister() {
+			return UnionSubclass.class;
+		}
+
+	}
+
+	public static class SingleTable extends SingleTableEntityPersister {
+
+		public SingleTable(final PersistentClass persistentClass, final EntityRegionAccessStrategy cacheAccessStrategy,
+				final NaturalIdRegionAccessStrategy naturalIdRegionAccessStrategy,
+				final PersisterCreationContext creationContext) throws HibernateException {
+			super(persistentClass, cacheAccessStrategy, naturalIdRegionAccessStrategy, creationContext);
+			ignoreInsertRowCount(insertResultCheckStyles);
+		}
+
+	}
+
+	public static class JoinedSubclass extends JoinedSubclassEntityPersister {
+
+		public JoinedSubclass(final PersistentClass persistentClass,
+				final EntityRegionAccessStrategy cacheAccessStrategy,
+				final NaturalIdRegionAccessStrategy naturalIdRegionAccessStrategy,
+				final PersisterCreationContext creationContext) throws HibernateException {
+			super(persistentClass, cacheAccessStrategy, naturalIdRegionAccessStrategy, creationContext);
+			ignoreInsertRowCount(insertResultCheckStyles);
+		}
+
+	}
+
+	public static class UnionSubclass extends UnionSubclassEntityPersister {
+
+		public UnionSubclass(final PersistentClass persistentClass,
+				final EntityRegionAccessStrategy cacheAccessStrategy,
+				final NaturalIdRegionAccessStrategy naturalIdRegionAccessStrategy,
+				final PersisterCreationContext creationContext) throws HibernateException {
+			super(persistentClass, cacheAccessStrategy, naturalIdRegionAccessStrategy, creationContext);
+			ignoreInsertRowCount(insertResultCheckStyles);
+		}
+
+	}
+
+}
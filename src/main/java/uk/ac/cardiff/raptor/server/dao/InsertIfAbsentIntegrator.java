@@ -0,0 +1,123 @@
+package uk.ac.cardiff.raptor.server.dao;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.hibernate.HibernateException;
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.spi.MetadataImplementor;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.HSQLDialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.mapping.Table;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.dao.InsertIfAbsentStatementInspector.EventTable;
+import uk.ac.cardiff.raptor.server.dao.InsertIfAbsentStatementInspector.Syntax;
+
+/**
+ * Prepares Hibernate for {@link DuplicateCheckMode#INSERT_IF_ABSENT}, when the
+ * {@code raptor.dedup.mode} Hibernate property is set to that mode. The
+ * {@link InsertIfAbsentStatementInspector} is enabled for every {@link Event}
+ * table, and {@link Event}s are given one of the
+ * {@link InsertIfAbsentEntityPersisters}, which do not check the row count of
+ * an insert, as an ignored duplicate insert affects no rows.
+ * <p>
+ * Registered as a Java service, and runs before the entity persisters are
+ * built.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+public class InsertIfAbsentIntegrator implements Integrator {
+
+	private static final Logger log = LoggerFactory.getLogger(InsertIfAbsentIntegrator.class);
+
+	/**
+	 * The Hibernate property holding the {@link DuplicateCheckMode}, set from
+	 * {@code spring.jpa.properties.raptor.dedup.mode}.
+	 */
+	public static final String DEDUP_MODE = "raptor.dedup.mode";
+
+	@Override
+	public void integrate(final Metadata metadata, final SessionFactoryImplementor sessionFactory,
+			final SessionFactoryServiceRegistry serviceRegistry) {
+
+		final Object mode = serviceRegistry.getService(ConfigurationService.class).getSettings().get(DEDUP_MODE);
+		if (mode == null
+				|| DuplicateCheckMode.INSERT_IF_ABSENT.name().equalsIgnoreCase(mode.toString().trim()) == false) {
+			return;
+		}
+
+		final StatementInspector inspector = sessionFactory.getSessionFactoryOptions().getStatementInspector();
+		if (inspector instanceof InsertIfAbsentStatementInspector == false) {
+			throw new HibernateException("Insert if absent requires the " + AvailableSettings.STATEMENT_INSPECTOR
+					+ " property to be " + InsertIfAbsentStatementInspector.class.getName());
+		}
+
+		final Dialect dialect = sessionFactory.getDialect();
+		final Map<String, EventTable> tables = new HashMap<>();
+		for (final PersistentClass entity : metadata.getEntityBindings()) {
+			if (entity.getMappedClass() == null || Event.class.isAssignableFrom(entity.getMappedClass()) == false) {
+				continue;
+			}
+			entity.setEntityPersisterClass(InsertIfAbsentEntityPersisters.persisterFor(entity));
+
+			final Iterator<?> entityTables = entity.getTableClosureIterator();
+			while (entityTables.hasNext()) {
+				final Table table = (Table) entityTables.next();
+				if (table.getPrimaryKey() == null || table.getPrimaryKey().getColumnSpan() != 1) {
+					throw new HibernateException("Insert if absent requires event table [" + table.getName()
+							+ "] to have a single column primary key");
+				}
+				final Map<String, String> columnTypes = new HashMap<>();
+				final Iterator<?> columns = table.getColumnIterator();
+				while (columns.hasNext()) {
+					final Column column = (Column) columns.next();
+					columnTypes.put(column.getQuotedName(dialect),
+							column.getSqlType(dialect, (MetadataImplementor) metadata));
+				}
+				tables.put(table.getQuotedName(dialect),
+						new EventTable(table.getPrimaryKey().getColumn(0).getQuotedName(dialect), columnTypes));
+			}
+		}
+
+		((InsertIfAbsentStatementInspector) inspector).enable(syntaxOf(dialect), tables);
+		log.info("Event inserts will ignore existing event ids");
+	}
+
+	/**
+	 * @return the insert-or-ignore {@link Syntax} of the {@link Dialect}.
+	 * @throws HibernateException
+	 *             if the {@link Dialect} has no supported syntax.
+	 */
+	private Syntax syntaxOf(final Dialect dialect) {
+		if (dialect instanceof PostgreSQL81Dialect) {
+			return Syntax.ON_CONFLICT_DO_NOTHING;
+		} else if (dialect instanceof MySQLDialect) {
+			return Syntax.ON_DUPLICATE_KEY_UPDATE;
+		} else if (dialect instanceof HSQLDialect) {
+			return Syntax.MERGE;
+		}
+		throw new HibernateException("Insert if absent is not supported for dialect " + dialect.getClass().getName());
+	}
+
+	@Override
+	public void disintegrate(final SessionFactoryImplementor sessionFactory,
+			final SessionFactoryServiceRegistry serviceRegistry) {
+	}
+
+}
@@ -0,0 +1,228 @@
+package uk.ac.cardiff.raptor.server.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * A Hibernate {@link StatementInspector} that rewrites the insert statements of
+ * {@link Event} tables so that an insert of an event id that is already stored
+ * is ignored by the database, rather than failing or being checked for first.
+ * The rewrite uses the insert-or-ignore syntax of the database in use, see
+ * {@link Syntax}.
+ * <p>
+ * Registered using the {@code hibernate.session_factory.statement_inspector}
+ * property. Does nothing until enabled by the {@link InsertIfAbsentIntegrator}
+ * , which is only the case when {@code raptor.dedup.mode} is
+ * {@link DuplicateCheckMode#INSERT_IF_ABSENT}.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+public class InsertIfAbsentStatementInspector implements StatementInspector {
+
+	private static final long serialVersionUID = 6436212417786155012L;
+
+	private static final Logger log = LoggerFactory.getLogger(InsertIfAbsentStatementInspector.class);
+
+	/**
+	 * Matches the insert statements Hibernate generates, capturing the table, the
+	 * column list and the values list.
+	 */
+	private static final Pattern INSERT = Pattern.compile("insert into (\\S+) \\((.+)\\) values \\((.+)\\)",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	/**
+	 * The insert-or-ignore syntax of each supported database.
+	 */
+	public enum Syntax {
+
+		/**
+		 * PostgreSQL 9.5 and later, {@code insert ... on conflict do nothing}.
+		 */
+		ON_CONFLICT_DO_NOTHING,
+
+		/**
+		 * MySQL, {@code insert ... on duplicate key update key = key}. Unlike
+		 * {@code insert ignore}, which turns every error into a warning so an
+		 * invalid event would be truncated and stored, only the key conflict is
+		 * suppressed.
+		 */
+		ON_DUPLICATE_KEY_UPDATE,
+
+		/**
+		 * HSQLDB, {@code merge into ... when not matched then insert ...}.
+		 */
+		MERGE
+	}
+
+	/**
+	 * The primary key and column types of a table whose inserts are rewritten.
+	 */
+	public static final class EventTable {
+
+		private final String keyColumn;
+
+		private final Map<String, String> columnTypes;
+
+		/**
+		 * @param keyColumn
+		 *            the single primary key column of the table.
+		 * @param columnTypes
+		 *            the SQL type of each column of the table, keyed by column name.
+		 */
+		public EventTable(final String keyColumn, final Map<String, String> columnTypes) {
+			this.keyColumn = keyColumn;
+			this.columnTypes = new HashMap<>();
+			for (final Map.Entry<String, String> column : columnTypes.entrySet()) {
+				this.columnTypes.put(normalise(column.getKey()), column.getValue());
+			}
+		}
+
+	}
+
+	private volatile Syntax syntax;
+
+	private volatile Map<String, EventTable> tables = Collections.emptyMap();
+
+	/**
+	 * Each insert statement seen, mapped to the statement that is executed
+	 * instead. Hibernate only generates a small, fixed, set of insert statements.
+	 */
+	private final Map<String, String> rewritten = new ConcurrentHashMap<>();
+
+	/**
+	 * Start rewriting the inserts of the given tables.
+	 * 
+	 * @param syntax
+	 *            the insert-or-ignore syntax of the database.
+	 * @param eventTables
+	 *            the tables to rewrite inserts for, keyed by table name.
+	 */
+	public void enable(final Syntax syntax, final Map<String, EventTable> eventTables) {
+		final Map<String, EventTable> normalised = new HashMap<>();
+		for (final Map.Entry<String, EventTable> table : eventTables.entrySet()) {
+			normalised.put(normalise(table.getKey()), table.getValue());
+		}
+		tables = normalised;
+		rewritten.clear();
+		this.syntax = syntax;
+		log.info("Insert if absent enabled using [{}] for tables {}", syntax, normalised.keySet());
+	}
+
+	/**
+	 * @return true if inserts are being rewritten.
+	 */
+	public boolean isEnabled() {
+		return syntax != null;
+	}
+
+	@Override
+	public String inspect(final String sql) {
+		if (syntax == null || sql.regionMatches(true, 0, "insert into ", 0, 12) == false) {
+			return sql;
+		}
+		return rewritten.computeIfAbsent(sql, this::rewrite);
+	}
+
+	private String rewrite(final String sql) {
+		final Matcher insert = INSERT.matcher(sql.trim());
+		if (insert.matches() == false) {
+			return sql;
+		}
+		final EventTable table = tables.get(normalise(insert.group(1)));
+		if (table == null) {
+			return sql;
+		}
+
+		final String rewrite;
+		switch (syntax) {
+		case ON_CONFLICT_DO_NOTHING:
+			rewrite = sql.trim() + " on conflict do nothing";
+			break;
+		case ON_DUPLICATE_KEY_UPDATE:
+			rewrite = sql.trim() + " on duplicate key update " + table.keyColumn + " = " + table.keyColumn;
+			break;
+		case MERGE:
+			rewrite = merge(insert.group(1), table, split(insert.group(2)), split(insert.group(3)));
+			break;
+		default:
+			rewrite = sql;
+		}
+		log.debug("Rewrote insert [{}] as [{}]", sql, rewrite);
+		return rewrite;
+	}
+
+	/**
+	 * Builds a {@code merge} statement that inserts the values if no row with
+	 * the same key exists. The parameters are cast to the column type as HSQLDB
+	 * can not infer the type of a parameter in a {@code values} table.
+	 */
+	private String merge(final String tableName, final EventTable table, final List<String> columns,
+			final List<String> values) {
+		final StringBuilder source = new StringBuilder();
+		final StringBuilder inserted = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			final String column = columns.get(i);
+			final String value = values.get(i);
+			final String type = table.columnTypes.get(normalise(column));
+			if (i > 0) {
+				source.append(", ");
+				inserted.append(", ");
+			}
+			source.append("?".equals(value) && type != null ? "cast(? as " + type + ")" : value);
+			inserted.append("v.").append(column);
+		}
+		return "merge into " + tableName + " using (values (" + source + ")) as v (" + String.join(", ", columns)
+				+ ") on " + tableName + "." + table.keyColumn + " = v." + table.keyColumn
+				+ " when not matched then insert (" + String.join(", ", columns) + ") values (" + inserted + ")";
+	}
+
+	/**
+	 * Splits a comma separated list, ignoring commas inside quotes or brackets.
+	 */
+	private static List<String> split(final String list) {
+		final List<String> parts = new ArrayList<>();
+		int depth = 0;
+		boolean quoted = false;
+		int start = 0;
+		for (int i = 0; i < list.length(); i++) {
+			final char c = list.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (quoted == false && c == '(') {
+				depth++;
+			} else if (quoted == false && c == ')') {
+				depth--;
+			} else if (quoted == false && depth == 0 && c == ',') {
+				parts.add(list.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+		parts.add(list.substring(start).trim());
+		return parts;
+	}
+
+	/**
+	 * @return the unquoted, unqualified, lower case form of a table or column
+	 *         name.
+	 */
+	private static String normalise(final String name) {
+		final String unqualified = name.substring(name.lastIndexOf('.') + 1);
+		return unqualified.replace("\"", "").replace("`", "").toLowerCase(Locale.ENGLISH);
+	}
+
+}
@@ -1,15 +1,16 @@
 package uk.ac.cardiff.raptor.server.enrich;
 
-import java.beans.IntrospectionException;
-import java.beans.PropertyDescriptor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 
 import uk.ac.cardiff.model.event.Event;
 import uk.ac.cardiff.model.event.auxiliary.PrincipalInformation;
@@ -27,6 +28,24 @@ public abstract class AbstractEventAttributeEnricher implements EventAttributeEn
 
 	private static final Logger log = LoggerFactory.getLogger(AbstractEventAttributeEnricher.class);
 
+	/**
+	 * The cache after write expiry time if {@code cacheExpiryAfterWriteMs} is not
+	 * set, 10 minutes.
+	 */
+	private static final long DEFAULT_CACHE_EXPIRE_AFTER_WRITE = 600000;
+
+	/**
+	 * The approximate size in bytes of a cached {@link PrincipalInformation},
+	 * excluding its strings.
+	 */
+	private static final int CACHE_ENTRY_OVERHEAD_BYTES = 96;
+
+	/**
+	 * The number of threads that refresh principal cache entries in the
+	 * background.
+	 */
+	private static final int CACHE_REFRESH_THREADS = 2;
+
 	private Class<? extends Event> forClass;
 
 	/**
@@ -68,45 +87,238 @@ public abstract class AbstractEventAttributeEnricher implements EventAttributeEn
 	 */
 	private long cacheExpiryAfterWriteMs;
 
+	/**
+	 * The maximum number of entries in the cache. Not used if
+	 * {@code cacheMaximumWeight} is set.
+	 */
+	private long cacheMaximumSize = 1000;
+
+	/**
+	 * The maximum approximate size in bytes of the cache entries. If 0, the cache
+	 * is limited by {@code cacheMaximumSize} instead.
+	 */
+	private long cacheMaximumWeight;
+
+	/**
+	 * An entry read this long after it was written is reloaded in the background,
+	 * the existing value is used until the reload completes. Semantics should be
+	 * comparable to
+	 * {@link Caffeine#refreshAfterWrite(long, java.util.concurrent.TimeUnit)}. If
+	 * 0, entries are only reloaded once expired.
+	 */
+	private long cacheRefreshAfterWriteMs;
+
+	/**
+	 * Runs the background refreshes of the principal cache, null until a cache
+	 * that refreshes is built.
+	 */
+	private volatile ExecutorService cacheRefreshExecutor;
+
+	/**
+	 * How long a principal the source has no single result for is remembered, so
+	 * that it is not looked up for every {@link Event}. If 0, such principals are
+	 * not cached. Only used if {@code useCache} is true.
+	 */
+	private long negativeCacheExpiryAfterWriteMs;
+
+	/**
+	 * The maximum number of principals held in the negative cache.
+	 */
+	private long negativeCacheMaximumSize = 10000;
+
+	/**
+	 * The maximum number of {@link Event}s this enricher is asked to enrich at
+	 * once when enrichment is asynchronous. If 0 or less, limited only by the size
+	 * of the enrichment pool.
+	 */
+	private int maxInFlight;
+
+	/**
+	 * The latency and result counts of the lookups this enricher makes against
+	 * its source.
+	 */
+	private final LookupTelemetry lookupTelemetry = new LookupTelemetry();
+
 	/**
 	 * Gets the value of the {@code principalFieldName} off the {@link Event}
 	 * object.
 	 * 
 	 * @param event
 	 *            the {@link Event} to retrieve the {@code principalFieldName} from.
-	 * @return an {@link Optional} of the value.
+	 * @return an {@link Optional} of the value, empty if it is null or can not
+	 *         be read.
 	 */
 	protected Optional<Object> getPrincipalValueOffEvent(final Event event) {
+		final EventPropertyAccessor accessor = EventPropertyAccessor.of(event.getClass(), principalFieldName);
+		if (accessor.isReadable() == false) {
+			return Optional.empty();
+		}
 		try {
-			final PropertyDescriptor princiapalProperty = new PropertyDescriptor(principalFieldName, event.getClass());
-			final Method readMethod = princiapalProperty.getReadMethod();
-			log.trace("Has method {}", readMethod);
-			if (readMethod != null) {
-				final Object result = readMethod.invoke(event, new Object[] {});
-				return Optional.ofNullable(result);
-			}
-		} catch (final IntrospectionException | IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException e) {
-			// do nothing
+			return Optional.ofNullable(accessor.get(event));
+		} catch (final RuntimeException e) {
+			log.trace("Could not read [{}] of event [{}]", principalFieldName, event.getEventId(), e);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @return the hit and miss statistics of the principal cache, or
+	 *         {@link CacheStats#empty()} if there is no cache.
+	 */
+	public CacheStats getCacheStats() {
+		return CacheStats.empty();
+	}
+
+	/**
+	 * @return the hit and miss statistics of the negative cache, or
+	 *         {@link CacheStats#empty()} if there is no negative cache.
+	 */
+	public CacheStats getNegativeCacheStats() {
+		return CacheStats.empty();
+	}
+
+	/**
+	 * @return the approximate number of principals in the cache, 0 if there is
+	 *         no cache.
+	 */
+	public long getCacheEstimatedSize() {
+		return 0;
+	}
+
+	/**
+	 * @return the latency and result counts of the lookups this enricher makes
+	 *         against its source.
+	 */
+	public LookupTelemetry getLookupTelemetry() {
+		return lookupTelemetry;
+	}
+
+	/**
+	 * Called when the enricher is no longer used, to release any resources it
+	 * holds. Stops the threads that refresh the principal cache, subclasses
+	 * that override this must call it.
+	 */
+	public void shutdown() {
+		if (cacheRefreshExecutor != null) {
+			cacheRefreshExecutor.shutdownNow();
 		}
-		return Optional.empty();
 	}
 
+	/**
+	 * Sets the value of the field on the {@link Event} object, if the field can
+	 * be written. A failure to write it, e.g. as the value is not of the type of
+	 * the field, leaves the field unset.
+	 * 
+	 * @param event
+	 *            the {@link Event} to set the field of.
+	 * @param value
+	 *            the value to set.
+	 * @param field
+	 *            the name of the field.
+	 */
 	protected void setValueOnObject(final Event event, final Object value, final String field) {
+		final EventPropertyAccessor accessor = EventPropertyAccessor.of(event.getClass(), field);
+		if (accessor.isWritable() == false) {
+			return;
+		}
 		try {
-			final PropertyDescriptor princiapalProperty = new PropertyDescriptor(field, event.getClass());
-			final Method writeMethod = princiapalProperty.getWriteMethod();
-			log.trace("Has method {}", writeMethod);
-			if (writeMethod != null) {
-				final Object result = writeMethod.invoke(event, new Object[] { value });
+			accessor.set(event, value);
+		} catch (final RuntimeException e) {
+			log.trace("Could not write [{}] of event [{}]", field, event.getEventId(), e);
+		}
+	}
+
+	/**
+	 * @return the {@code cacheExpiryAfterWriteMs}, or 10 minutes if it is not
+	 *         set.
+	 */
+	protected long cacheExpireAfterWrite() {
+		return cacheExpiryAfterWriteMs == 0 ? DEFAULT_CACHE_EXPIRE_AFTER_WRITE : cacheExpiryAfterWriteMs;
+	}
 
+	/**
+	 * Creates a builder of a principal cache from the cache settings of this
+	 * enricher, limited by {@code cacheMaximumWeight} if set, otherwise by
+	 * {@code cacheMaximumSize}. The cache records statistics.
+	 * 
+	 * @return the {@link Caffeine} builder, for a cache of principal name to
+	 *         {@link PrincipalInformation}.
+	 */
+	protected Caffeine<Object, Object> principalCacheBuilder() {
+		final String name = getClass().getSimpleName();
+		final long expireAfterWrite = cacheExpireAfterWrite();
+		final Caffeine<Object, Object> builder = Caffeine.newBuilder()
+				.expireAfterWrite(expireAfterWrite, TimeUnit.MILLISECONDS).recordStats();
+
+		if (cacheMaximumWeight > 0) {
+			log.info("{} has been configured to use a cache of weight [{} bytes] and an expire-after-write of [{}ms]",
+					name, cacheMaximumWeight, expireAfterWrite);
+			builder.maximumWeight(cacheMaximumWeight).weigher(AbstractEventAttributeEnricher::weigh);
+		} else {
+			log.info("{} has been configured to use a cache of size [{}] and an expire-after-write of [{}ms]", name,
+					cacheMaximumSize, expireAfterWrite);
+			builder.maximumSize(cacheMaximumSize);
+		}
+
+		if (cacheRefreshAfterWriteMs > 0) {
+			if (cacheRefreshAfterWriteMs >= expireAfterWrite) {
+				log.warn("Cache refresh-after-write of [{}ms] is not less than its expire-after-write of [{}ms], "
+						+ "entries will expire before they are refreshed", cacheRefreshAfterWriteMs, expireAfterWrite);
 			}
-		} catch (final IntrospectionException | IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException e) {
-			// do nothing
+			log.info("Cache entries read after [{}ms] are refreshed in the background", cacheRefreshAfterWriteMs);
+			builder.refreshAfterWrite(cacheRefreshAfterWriteMs, TimeUnit.MILLISECONDS)
+					.executor(cacheRefreshExecutor());
+		}
+		return builder;
+	}
 
+	/**
+	 * @return the executor that refreshes principal cache entries, rather than
+	 *         the common pool, so that lookups blocked on the source do not
+	 *         hold threads other work needs. Created on first use, and reused
+	 *         if the cache is rebuilt.
+	 */
+	private synchronized ExecutorService cacheRefreshExecutor() {
+		if (cacheRefreshExecutor == null || cacheRefreshExecutor.isShutdown()) {
+			final String name = "principal-cache-refresh-" + getClass().getSimpleName();
+			cacheRefreshExecutor = Executors.newFixedThreadPool(CACHE_REFRESH_THREADS, runnable -> {
+				final Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			});
 		}
+		return cacheRefreshExecutor;
+	}
 
+	/**
+	 * Creates the cache of principals the source had no single result for, if
+	 * {@code negativeCacheExpiryAfterWriteMs} is set.
+	 * 
+	 * @return the negative cache, or null if it is not enabled.
+	 */
+	protected <V> Cache<String, V> newNegativeCache() {
+		if (negativeCacheExpiryAfterWriteMs <= 0) {
+			return null;
+		}
+		log.info("{} has been configured to use a negative cache of size [{}] and an expire-after-write of [{}ms]",
+				getClass().getSimpleName(), negativeCacheMaximumSize, negativeCacheExpiryAfterWriteMs);
+		return Caffeine.newBuilder().expireAfterWrite(negativeCacheExpiryAfterWriteMs, TimeUnit.MILLISECONDS)
+				.maximumSize(negativeCacheMaximumSize).recordStats().build();
+	}
+
+	/**
+	 * @return the approximate size in bytes of a cache entry, strings are counted
+	 *         at two bytes per character.
+	 */
+	protected static int weigh(final String principalName, final PrincipalInformation principalInfo) {
+		int chars = principalName.length();
+		if (principalInfo.getAffiliation() != null) {
+			chars += principalInfo.getAffiliation().length();
+		}
+		if (principalInfo.getSchool() != null) {
+			chars += principalInfo.getSchool().length();
+		}
+		return CACHE_ENTRY_OVERHEAD_BYTES + 2 * chars;
 	}
 
 	public String getPrincipalFieldName() {
@@ -193,4 +405,94 @@ public abstract class AbstractEventAttributeEnricher implements EventAttributeEn
 		this.cacheExpiryAfterWriteMs = cacheExpiryAfterWriteMs;
 	}
 
+	/**
+	 * @return the cacheMaximumSize
+	 */
+	public long getCacheMaximumSize() {
+		return cacheMaximumSize;
+	}
+
+	/**
+	 * @param cacheMaximumSize
+	 *            the cacheMaximumSize to set
+	 */
+	public void setCacheMaximumSize(final long cacheMaximumSize) {
+		this.cacheMaximumSize = cacheMaximumSize;
+	}
+
+	/**
+	 * @return the cacheMaximumWeight
+	 */
+	public long getCacheMaximumWeight() {
+		return cacheMaximumWeight;
+	}
+
+	/**
+	 * @param cacheMaximumWeight
+	 *            the cacheMaximumWeight to set
+	 */
+	public void setCacheMaximumWeight(final long cacheMaximumWeight) {
+		this.cacheMaximumWeight = cacheMaximumWeight;
+	}
+
+	/**
+	 * @return the cacheRefreshAfterWriteMs
+	 */
+	public long getCacheRefreshAfterWriteMs() {
+		return cacheRefreshAfterWriteMs;
+	}
+
+	/**
+	 * @param cacheRefreshAfterWriteMs
+	 *            the cacheRefreshAfterWriteMs to set
+	 */
+	public void setCacheRefreshAfterWriteMs(final long cacheRefreshAfterWriteMs) {
+		this.cacheRefreshAfterWriteMs = cacheRefreshAfterWriteMs;
+	}
+
+	/**
+	 * @return the negativeCacheExpiryAfterWriteMs
+	 */
+	public long getNegativeCacheExpiryAfterWriteMs() {
+		return negativeCacheExpiryAfterWriteMs;
+	}
+
+	/**
+	 * @param negativeCacheExpiryAfterWriteMs
+	 *            the negativeCacheExpiryAfterWriteMs to set
+	 */
+	public void setNegativeCacheExpiryAfterWriteMs(final long negativeCacheExpiryAfterWriteMs) {
+		this.negativeCacheExpiryAfterWriteMs = negativeCacheExpiryAfterWriteMs;
+	}
+
+	/**
+	 * @return the negativeCacheMaximumSize
+	 */
+	public long getNegativeCacheMaximumSize() {
+		return negativeCacheMaximumSize;
+	}
+
+	/**
+	 * @param negativeCacheMaximumSize
+	 *            the negativeCacheMaximumSize to set
+	 */
+	public void setNegativeCacheMaximumSize(final long negativeCacheMaximumSize) {
+		this.negativeCacheMaximumSize = negativeCacheMaximumSize;
+	}
+
+	/**
+	 * @return the maxInFlight
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            the maxInFlight to set
+	 */
+	public void setMaxInFlight(final int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
 }
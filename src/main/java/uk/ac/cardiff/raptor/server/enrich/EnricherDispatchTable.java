@@ -0,0 +1,83 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * The enrichers that apply to each {@link Event} class, in the order they were
+ * configured. An enricher applies to an {@link Event} class if its
+ * {@link AbstractEventAttributeEnricher#getForClass()} is that class, or a
+ * superclass or interface of it.
+ * <p>
+ * The enrichers of a class are resolved the first time an {@link Event} of that
+ * class is seen, then held against the class in a {@link ClassValue}, so
+ * finding them is a single read per {@link Event}. The table is immutable, a
+ * new table is built when the enrichers change.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public final class EnricherDispatchTable {
+
+	private static final Logger log = LoggerFactory.getLogger(EnricherDispatchTable.class);
+
+	private final List<AbstractEventAttributeEnricher> enrichers;
+
+	private final ClassValue<List<AbstractEventAttributeEnricher>> byClass;
+
+	/**
+	 * @param enrichers
+	 *            the enrichers, in the order they should be applied.
+	 */
+	public EnricherDispatchTable(@Nonnull final List<AbstractEventAttributeEnricher> enrichers) {
+		Objects.requireNonNull(enrichers);
+		this.enrichers = Collections.unmodifiableList(new ArrayList<>(enrichers));
+		byClass = new ClassValue<List<AbstractEventAttributeEnricher>>() {
+			@Override
+			protected List<AbstractEventAttributeEnricher> computeValue(final Class<?> type) {
+				return resolve(type);
+			}
+		};
+	}
+
+	/**
+	 * @param eventClass
+	 *            the class of the {@link Event}.
+	 * @return the enrichers that apply to the class, in configured order. Empty
+	 *         if none apply.
+	 */
+	public List<AbstractEventAttributeEnricher> enrichersFor(@Nonnull final Class<? extends Event> eventClass) {
+		return byClass.get(eventClass);
+	}
+
+	private List<AbstractEventAttributeEnricher> resolve(final Class<?> type) {
+		final List<AbstractEventAttributeEnricher> suitable = new ArrayList<>(1);
+		for (final AbstractEventAttributeEnricher enricher : enrichers) {
+			if (enricher.getForClass() != null && enricher.getForClass().isAssignableFrom(type)) {
+				suitable.add(enricher);
+			}
+		}
+		log.debug("Events of type [{}] are enriched by [{}] enrichers", type.getName(), suitable.size());
+		return suitable.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(suitable);
+	}
+
+	/**
+	 * @return every enricher, in configured order.
+	 */
+	public List<AbstractEventAttributeEnricher> getEnrichers() {
+		return enrichers;
+	}
+
+}
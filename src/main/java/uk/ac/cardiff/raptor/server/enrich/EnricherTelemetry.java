@@ -0,0 +1,140 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Publishes the cache statistics and source lookup telemetry of an
+ * {@link AbstractEventAttributeEnricher} over JMX. Each attribute is read from
+ * the enricher when requested, so always reflects the current cache, even if
+ * the enricher has been re-initialised.
+ * 
+ * @author philsmart
+ *
+ */
+@ManagedResource(description = "Cache and lookup telemetry of an event attribute enricher")
+public class EnricherTelemetry {
+
+	private final AbstractEventAttributeEnricher enricher;
+
+	public EnricherTelemetry(@Nonnull final AbstractEventAttributeEnricher enricher) {
+		this.enricher = Objects.requireNonNull(enricher);
+	}
+
+	@ManagedAttribute(description = "The event class the enricher is for")
+	public String getForClass() {
+		return enricher.getForClass() == null ? null : enricher.getForClass().getName();
+	}
+
+	@ManagedAttribute(description = "The type of the enricher")
+	public String getEnricherType() {
+		return enricher.getClass().getSimpleName();
+	}
+
+	@ManagedAttribute(description = "Principals found in the cache")
+	public long getCacheHitCount() {
+		return enricher.getCacheStats().hitCount();
+	}
+
+	@ManagedAttribute(description = "Principals not found in the cache")
+	public long getCacheMissCount() {
+		return enricher.getCacheStats().missCount();
+	}
+
+	@ManagedAttribute(description = "The ratio of cache requests that were hits")
+	public double getCacheHitRate() {
+		return enricher.getCacheStats().hitRate();
+	}
+
+	@ManagedAttribute(description = "Entries evicted from the cache by size or expiry")
+	public long getCacheEvictionCount() {
+		return enricher.getCacheStats().evictionCount();
+	}
+
+	@ManagedAttribute(description = "Loads of missing or refreshed principals into the cache")
+	public long getCacheLoadCount() {
+		return enricher.getCacheStats().loadCount();
+	}
+
+	@ManagedAttribute(description = "Loads into the cache that failed or found no single result")
+	public long getCacheLoadFailureCount() {
+		return enricher.getCacheStats().loadFailureCount();
+	}
+
+	@ManagedAttribute(description = "The mean time of a load into the cache, in milliseconds")
+	public double getCacheAverageLoadPenaltyMs() {
+		return enricher.getCacheStats().averageLoadPenalty() / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@ManagedAttribute(description = "The approximate number of principals in the cache")
+	public long getCacheEstimatedSize() {
+		return enricher.getCacheEstimatedSize();
+	}
+
+	@ManagedAttribute(description = "Principals found in the negative cache")
+	public long getNegativeCacheHitCount() {
+		return enricher.getNegativeCacheStats().hitCount();
+	}
+
+	@ManagedAttribute(description = "The ratio of negative cache requests that were hits")
+	public double getNegativeCacheHitRate() {
+		return enricher.getNegativeCacheStats().hitRate();
+	}
+
+	@ManagedAttribute(description = "Lookups made against the source")
+	public long getLookupCount() {
+		return enricher.getLookupTelemetry().getCount();
+	}
+
+	@ManagedAttribute(description = "The median lookup latency, in milliseconds")
+	public double getLookupLatencyP50Ms() {
+		return enricher.getLookupTelemetry().getLatencyMs(50);
+	}
+
+	@ManagedAttribute(description = "The 99th percentile lookup latency, in milliseconds")
+	public double getLookupLatencyP99Ms() {
+		return enricher.getLookupTelemetry().getLatencyMs(99);
+	}
+
+	@ManagedAttribute(description = "The 99.9th percentile lookup latency, in milliseconds")
+	public double getLookupLatencyP999Ms() {
+		return enricher.getLookupTelemetry().getLatencyMs(99.9);
+	}
+
+	@ManagedAttribute(description = "The longest lookup latency, in milliseconds")
+	public double getLookupLatencyMaxMs() {
+		return enricher.getLookupTelemetry().getMaxLatencyMs();
+	}
+
+	@ManagedAttribute(description = "The mean number of results of a lookup")
+	public double getLookupResultsMean() {
+		return enricher.getLookupTelemetry().getMeanResults();
+	}
+
+	@ManagedAttribute(description = "The 99th percentile number of results of a lookup")
+	public long getLookupResultsP99() {
+		return enricher.getLookupTelemetry().getResults(99);
+	}
+
+	@ManagedAttribute(description = "Lookups that returned no results")
+	public long getLookupNoResultCount() {
+		return enricher.getLookupTelemetry().getNoResultCount();
+	}
+
+	@ManagedAttribute(description = "Lookups that returned more than one result")
+	public long getLookupSeveralResultsCount() {
+		return enricher.getLookupTelemetry().getSeveralResultsCount();
+	}
+
+	@ManagedOperation(description = "Clear the lookup latencies and result counts recorded so far")
+	public void resetLookupTelemetry() {
+		enricher.getLookupTelemetry().reset();
+	}
+
+}
@@ -0,0 +1,81 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.util.List;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.MBeanExporter;
+import org.springframework.jmx.export.annotation.AnnotationJmxAttributeSource;
+import org.springframework.jmx.export.assembler.MetadataMBeanInfoAssembler;
+import org.springframework.jmx.support.RegistrationPolicy;
+
+/**
+ * Registers an {@link EnricherTelemetry} MBean for each enricher of the
+ * {@link EventEnricherService}, named by the domain, the event class the
+ * enricher is for and its position in the configured enrichers, e.g.
+ * raptor.server:type=EventAttributeEnricher,forClass=ShibbolethIdpAuthenticationEvent,index=0.
+ * <p>
+ * An MBean of the same name is replaced, so that several application contexts
+ * in one JVM, as in tests, do not fail to start.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+public class EnricherTelemetryExporter {
+
+	private static final Logger log = LoggerFactory.getLogger(EnricherTelemetryExporter.class);
+
+	private final EventEnricherService enricherService;
+
+	private final MBeanExporter exporter = new MBeanExporter();
+
+	private final String domain;
+
+	/**
+	 * @param enricherService
+	 *            the service whose enrichers are published.
+	 * @param server
+	 *            the {@link MBeanServer} to register with.
+	 * @param domain
+	 *            the JMX domain of the MBeans.
+	 */
+	public EnricherTelemetryExporter(@Nonnull final EventEnricherService enricherService,
+			@Nonnull final MBeanServer server, @Nonnull final String domain) {
+		this.enricherService = Objects.requireNonNull(enricherService);
+		this.domain = Objects.requireNonNull(domain);
+		exporter.setServer(Objects.requireNonNull(server));
+		exporter.setAssembler(new MetadataMBeanInfoAssembler(new AnnotationJmxAttributeSource()));
+		exporter.setRegistrationPolicy(RegistrationPolicy.REPLACE_EXISTING);
+	}
+
+	@PostConstruct
+	public void register() throws MalformedObjectNameException {
+		final List<AbstractEventAttributeEnricher> enrichers = enricherService.getEnrichers();
+		for (int i = 0; i < enrichers.size(); i++) {
+			final AbstractEventAttributeEnricher enricher = enrichers.get(i);
+			final String forClass = enricher.getForClass() == null ? "none" : enricher.getForClass().getSimpleName();
+			final ObjectName name = new ObjectName(
+					domain + ":type=EventAttributeEnricher,forClass=" + forClass + ",index=" + i);
+			exporter.registerManagedResource(new EnricherTelemetry(enricher), name);
+			log.info("Registered telemetry of enricher [{}] as MBean [{}]", enricher.getClass().getSimpleName(), name);
+		}
+	}
+
+	/**
+	 * Unregisters the MBeans.
+	 */
+	@PreDestroy
+	public void unregister() {
+		exporter.destroy();
+	}
+
+}
@@ -6,14 +6,24 @@ import java.util.List;
 import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import javax.management.MBeanServer;
 
+import org.apache.tomcat.jdbc.pool.PoolProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DatabaseDriver;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.support.JmxUtils;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
 import uk.ac.cardiff.model.event.Event;
@@ -21,7 +31,7 @@ import uk.ac.cardiff.raptor.server.enrich.EnrichmentAutoConfiguration.EventAttri
 
 /**
  * Auto configure the source and {@link EventAttributeEnricher} type based on
- * the attribute.enrichers[0] property. Either LDAP or DB.
+ * the attribute.enrichers[0] property. Either LDAP or JDBC.
  * 
  * @author philsmart
  *
@@ -59,6 +69,17 @@ public class EnrichmentAutoConfiguration {
 
 		private String ldapBase;
 
+		/**
+		 * The JDBC driver class of a JDBC enricher. If null, found from the url.
+		 */
+		private String driverClassName;
+
+		/**
+		 * The maximum number of pooled connections of a JDBC enricher. If 0, the
+		 * default of 8.
+		 */
+		private int poolSize;
+
 		private String sourcePrincipalLookupQuery;
 
 		private String principalFieldName;
@@ -71,6 +92,118 @@ public class EnrichmentAutoConfiguration {
 
 		private long cacheExpireAfterWriteMs;
 
+		/**
+		 * The maximum number of cache entries. If 0, the enricher default.
+		 */
+		private long cacheMaximumSize;
+
+		/**
+		 * The maximum approximate size in bytes of the cache entries, used instead
+		 * of cacheMaximumSize if set.
+		 */
+		private long cacheMaximumWeight;
+
+		/**
+		 * Cache entries read this long after being written are reloaded in the
+		 * background. If 0, entries are only reloaded once expired.
+		 */
+		private long cacheRefreshAfterWriteMs;
+
+		/**
+		 * The file the principal cache is snapshotted to and restored from. No
+		 * snapshots are taken if empty.
+		 */
+		private String cacheSnapshotFile;
+
+		/**
+		 * How often, in ms, the principal cache is snapshotted. If 0, the enricher
+		 * default.
+		 */
+		private long cacheSnapshotIntervalMs;
+
+		/**
+		 * If true, the principal cache is filled on startup from a paged search of
+		 * the directory.
+		 */
+		private boolean cachePreload;
+
+		/**
+		 * The filter of the preload search. If null, the
+		 * sourcePrincipalLookupQuery with ?ppn replaced by *.
+		 */
+		private String cachePreloadFilter;
+
+		/**
+		 * The page size of the preload search. If 0, the enricher default.
+		 */
+		private int cachePreloadPageSize;
+
+		/**
+		 * If true, principals are resolved from an in-memory mirror of the
+		 * directory.
+		 */
+		private boolean mirror;
+
+		/**
+		 * The filter of the entries mirrored. If null, the
+		 * sourcePrincipalLookupQuery with ?ppn replaced by *.
+		 */
+		private String mirrorFilter;
+
+		/**
+		 * The page size of a mirror search. If 0, the enricher default.
+		 */
+		private int mirrorPageSize;
+
+		/**
+		 * How often the mirror searches for modified entries. If 0, the enricher
+		 * default.
+		 */
+		private long mirrorSyncIntervalMs;
+
+		/**
+		 * How often the mirror is rebuilt in full. If 0, the enricher default, if
+		 * negative never.
+		 */
+		private long mirrorFullSyncIntervalMs;
+
+		/**
+		 * How long principals with no single result are cached for. If 0, they are
+		 * not cached.
+		 */
+		private long negativeCacheExpireAfterWriteMs;
+
+		/**
+		 * The maximum number of principals with no single result cached. If 0, the
+		 * enricher default.
+		 */
+		private long negativeCacheMaximumSize;
+
+		/**
+		 * The maximum number of events the enricher enriches at once when
+		 * attribute.enrich.async is true. If 0, limited by the pool size.
+		 */
+		private int maxInFlight;
+
+		/**
+		 * The maximum number of principals an LDAP or JDBC enricher resolves with
+		 * one search or query when attribute.enrich.batch-lookups is true. If 0,
+		 * the enricher default.
+		 */
+		private int maxFilterClauses;
+
+		/**
+		 * The attribute of an LDAP entry that holds the principal name. If null,
+		 * the attribute compared to ?ppn in the sourcePrincipalLookupQuery.
+		 */
+		private String principalSourceAttribute;
+
+		/**
+		 * If true, a JDBC enricher matches the rows of a batch lookup to
+		 * principals ignoring case, for a database whose collation ignores case.
+		 */
+		private boolean ignorePrincipalCase;
+
 		public final String getPassword() {
 			return password;
 		}
@@ -221,6 +354,10 @@ public class EnrichmentAutoConfiguration {
 			builder.append(password);
 			builder.append(", ldapBase=");
 			builder.append(ldapBase);
+			builder.append(", driverClassName=");
+			builder.append(driverClassName);
+			builder.append(", poolSize=");
+			builder.append(poolSize);
 			builder.append(", sourcePrincipalLookupQuery=");
 			builder.append(sourcePrincipalLookupQuery);
 			builder.append(", principalFieldName=");
@@ -233,6 +370,44 @@ public class EnrichmentAutoConfiguration {
 			builder.append(useCache);
 			builder.append(", cacheExpireAfterWriteMs=");
 			builder.append(cacheExpireAfterWriteMs);
+			builder.append(", cacheMaximumSize=");
+			builder.append(cacheMaximumSize);
+			builder.append(", cacheMaximumWeight=");
+			builder.append(cacheMaximumWeight);
+			builder.append(", cacheRefreshAfterWriteMs=");
+			builder.append(cacheRefreshAfterWriteMs);
+			builder.append(", cacheSnapshotFile=");
+			builder.append(cacheSnapshotFile);
+			builder.append(", cacheSnapshotIntervalMs=");
+			builder.append(cacheSnapshotIntervalMs);
+			builder.append(", cachePreload=");
+			builder.append(cachePreload);
+			builder.append(", cachePreloadFilter=");
+			builder.append(cachePreloadFilter);
+			builder.append(", cachePreloadPageSize=");
+			builder.append(cachePreloadPageSize);
+			builder.append(", mirror=");
+			builder.append(mirror);
+			builder.append(", mirrorFilter=");
+			builder.append(mirrorFilter);
+			builder.append(", mirrorPageSize=");
+			builder.append(mirrorPageSize);
+			builder.append(", mirrorSyncIntervalMs=");
+			builder.append(mirrorSyncIntervalMs);
+			builder.append(", mirrorFullSyncIntervalMs=");
+			builder.append(mirrorFullSyncIntervalMs);
+			builder.append(", negativeCacheExpireAfterWriteMs=");
+			builder.append(negativeCacheExpireAfterWriteMs);
+			builder.append(", negativeCacheMaximumSize=");
+			builder.append(negativeCacheMaximumSize);
+			builder.append(", maxInFlight=");
+			builder.append(maxInFlight);
+			builder.append(", maxFilterClauses=");
+			builder.append(maxFilterClauses);
+			builder.append(", principalSourceAttribute=");
+			builder.append(principalSourceAttribute);
+			builder.append(", ignorePrincipalCase=");
+			builder.append(ignorePrincipalCase);
 			builder.append("]");
 			return builder.toString();
 		}
@@ -245,6 +420,321 @@ public class EnrichmentAutoConfiguration {
 			this.cacheExpireAfterWriteMs = cacheExpireAfterWriteMs;
 		}
 
+		/**
+		 * @return the cacheMaximumSize
+		 */
+		public long getCacheMaximumSize() {
+			return cacheMaximumSize;
+		}
+
+		/**
+		 * @param cacheMaximumSize
+		 *            the cacheMaximumSize to set
+		 */
+		public void setCacheMaximumSize(final long cacheMaximumSize) {
+			this.cacheMaximumSize = cacheMaximumSize;
+		}
+
+		/**
+		 * @return the cacheMaximumWeight
+		 */
+		public long getCacheMaximumWeight() {
+			return cacheMaximumWeight;
+		}
+
+		/**
+		 * @param cacheMaximumWeight
+		 *            the cacheMaximumWeight to set
+		 */
+		public void setCacheMaximumWeight(final long cacheMaximumWeight) {
+			this.cacheMaximumWeight = cacheMaximumWeight;
+		}
+
+		/**
+		 * @return the cacheRefreshAfterWriteMs
+		 */
+		public long getCacheRefreshAfterWriteMs() {
+			return cacheRefreshAfterWriteMs;
+		}
+
+		/**
+		 * @param cacheRefreshAfterWriteMs
+		 *            the cacheRefreshAfterWriteMs to set
+		 */
+		public void setCacheRefreshAfterWriteMs(final long cacheRefreshAfterWriteMs) {
+			this.cacheRefreshAfterWriteMs = cacheRefreshAfterWriteMs;
+		}
+
+		/**
+		 * @return the cacheSnapshotFile
+		 */
+		public String getCacheSnapshotFile() {
+			return cacheSnapshotFile;
+		}
+
+		/**
+		 * @param cacheSnapshotFile
+		 *            the cacheSnapshotFile to set
+		 */
+		public void setCacheSnapshotFile(final String cacheSnapshotFile) {
+			this.cacheSnapshotFile = cacheSnapshotFile;
+		}
+
+		/**
+		 * @return the cacheSnapshotIntervalMs
+		 */
+		public long getCacheSnapshotIntervalMs() {
+			return cacheSnapshotIntervalMs;
+		}
+
+		/**
+		 * @param cacheSnapshotIntervalMs
+		 *            the cacheSnapshotIntervalMs to set
+		 */
+		public void setCacheSnapshotIntervalMs(final long cacheSnapshotIntervalMs) {
+			this.cacheSnapshotIntervalMs = cacheSnapshotIntervalMs;
+		}
+
+		/**
+		 * @return the cachePreload
+		 */
+		public boolean isCachePreload() {
+			return cachePreload;
+		}
+
+		/**
+		 * @param cachePreload
+		 *            the cachePreload to set
+		 */
+		public void setCachePreload(final boolean cachePreload) {
+			this.cachePreload = cachePreload;
+		}
+
+		/**
+		 * @return the cachePreloadFilter
+		 */
+		public String getCachePreloadFilter() {
+			return cachePreloadFilter;
+		}
+
+		/**
+		 * @param cachePreloadFilter
+		 *            the cachePreloadFilter to set
+		 */
+		public void setCachePreloadFilter(final String cachePreloadFilter) {
+			this.cachePreloadFilter = cachePreloadFilter;
+		}
+
+		/**
+		 * @return the cachePreloadPageSize
+		 */
+		public int getCachePreloadPageSize() {
+			return cachePreloadPageSize;
+		}
+
+		/**
+		 * @param cachePreloadPageSize
+		 *            the cachePreloadPageSize to set
+		 */
+		public void setCachePreloadPageSize(final int cachePreloadPageSize) {
+			this.cachePreloadPageSize = cachePreloadPageSize;
+		}
+
+		/**
+		 * @return the mirror
+		 */
+		public boolean isMirror() {
+			return mirror;
+		}
+
+		/**
+		 * @param mirror
+		 *            the mirror to set
+		 */
+		public void setMirror(final boolean mirror) {
+			this.mirror = mirror;
+		}
+
+		/**
+		 * @return the mirrorFilter
+		 */
+		public String getMirrorFilter() {
+			return mirrorFilter;
+		}
+
+		/**
+		 * @param mirrorFilter
+		 *            the mirrorFilter to set
+		 */
+		public void setMirrorFilter(final String mirrorFilter) {
+			this.mirrorFilter = mirrorFilter;
+		}
+
+		/**
+		 * @return the mirrorPageSize
+		 */
+		public int getMirrorPageSize() {
+			return mirrorPageSize;
+		}
+
+		/**
+		 * @param mirrorPageSize
+		 *            the mirrorPageSize to set
+		 */
+		public void setMirrorPageSize(final int mirrorPageSize) {
+			this.mirrorPageSize = mirrorPageSize;
+		}
+
+		/**
+		 * @return the mirrorSyncIntervalMs
+		 */
+		public long getMirrorSyncIntervalMs() {
+			return mirrorSyncIntervalMs;
+		}
+
+		/**
+		 * @param mirrorSyncIntervalMs
+		 *            the mirrorSyncIntervalMs to set
+		 */
+		public void setMirrorSyncIntervalMs(final long mirrorSyncIntervalMs) {
+			this.mirrorSyncIntervalMs = mirrorSyncIntervalMs;
+		}
+
+		/**
+		 * @return the mirrorFullSyncIntervalMs
+		 */
+		public long getMirrorFullSyncIntervalMs() {
+			return mirrorFullSyncIntervalMs;
+		}
+
+		/**
+		 * @param mirrorFullSyncIntervalMs
+		 *            the mirrorFullSyncIntervalMs to set
+		 */
+		public void setMirrorFullSyncIntervalMs(final long mirrorFullSyncIntervalMs) {
+			this.mirrorFullSyncIntervalMs = mirrorFullSyncIntervalMs;
+		}
+
+		/**
+		 * @return the negativeCacheExpireAfterWriteMs
+		 */
+		public long getNegativeCacheExpireAfterWriteMs() {
+			return negativeCacheExpireAfterWriteMs;
+		}
+
+		/**
+		 * @param negativeCacheExpireAfterWriteMs
+		 *            the negativeCacheExpireAfterWriteMs to set
+		 */
+		public void setNegativeCacheExpireAfterWriteMs(final long negativeCacheExpireAfterWriteMs) {
+			this.negativeCacheExpireAfterWriteMs = negativeCacheExpireAfterWriteMs;
+		}
+
+		/**
+		 * @return the negativeCacheMaximumSize
+		 */
+		public long getNegativeCacheMaximumSize() {
+			return negativeCacheMaximumSize;
+		}
+
+		/**
+		 * @param negativeCacheMaximumSize
+		 *            the negativeCacheMaximumSize to set
+		 */
+		public void setNegativeCacheMaximumSize(final long negativeCacheMaximumSize) {
+			this.negativeCacheMaximumSize = negativeCacheMaximumSize;
+		}
+
+		/**
+		 * @return the maxInFlight
+		 */
+		public int getMaxInFlight() {
+			return maxInFlight;
+		}
+
+		/**
+		 * @param maxInFlight
+		 *            the maxInFlight to set
+		 */
+		public void setMaxInFlight(final int maxInFlight) {
+			this.maxInFlight = maxInFlight;
+		}
+
+		/**
+		 * @return the maxFilterClauses
+		 */
+		public int getMaxFilterClauses() {
+			return maxFilterClauses;
+		}
+
+		/**
+		 * @param maxFilterClauses
+		 *            the maxFilterClauses to set
+		 */
+		public void setMaxFilterClauses(final int maxFilterClauses) {
+			this.maxFilterClauses = maxFilterClauses;
+		}
+
+		/**
+		 * @return the principalSourceAttribute
+		 */
+		public String getPrincipalSourceAttribute() {
+			return principalSourceAttribute;
+		}
+
+		/**
+		 * @param principalSourceAttribute
+		 *            the principalSourceAttribute to set
+		 */
+		public void setPrincipalSourceAttribute(final String principalSourceAttribute) {
+			this.principalSourceAttribute = principalSourceAttribute;
+		}
+
+		/**
+		 * @return the ignorePrincipalCase
+		 */
+		public boolean isIgnorePrincipalCase() {
+			return ignorePrincipalCase;
+		}
+
+		/**
+		 * @param ignorePrincipalCase
+		 *            the ignorePrincipalCase to set
+		 */
+		public void setIgnorePrincipalCase(final boolean ignorePrincipalCase) {
+			this.ignorePrincipalCase = ignorePrincipalCase;
+		}
+
+		/**
+		 * @return the driverClassName
+		 */
+		public String getDriverClassName() {
+			return driverClassName;
+		}
+
+		/**
+		 * @param driverClassName
+		 *            the driverClassName to set
+		 */
+		public void setDriverClassName(final String driverClassName) {
+			this.driverClassName = driverClassName;
+		}
+
+		/**
+		 * @return the poolSize
+		 */
+		public int getPoolSize() {
+			return poolSize;
+		}
+
+		/**
+		 * @param poolSize
+		 *            the poolSize to set
+		 */
+		public void setPoolSize(final int poolSize) {
+			this.poolSize = poolSize;
+		}
+
 	}
 
 	@PostConstruct
@@ -287,11 +777,49 @@ public class EnrichmentAutoConfiguration {
 					ldap.setPrincipalFieldName(info.getPrincipalFieldName());
 					ldap.setUseCache(info.isUseCache());
 					ldap.setCacheExpiryAfterWriteMs(info.getCacheExpireAfterWriteMs());
+					if (info.getCacheMaximumSize() > 0) {
+						ldap.setCacheMaximumSize(info.getCacheMaximumSize());
+					}
+					ldap.setCacheMaximumWeight(info.getCacheMaximumWeight());
+					ldap.setCacheRefreshAfterWriteMs(info.getCacheRefreshAfterWriteMs());
+					ldap.setCacheSnapshotFile(info.getCacheSnapshotFile());
+					if (info.getCacheSnapshotIntervalMs() > 0) {
+						ldap.setCacheSnapshotIntervalMs(info.getCacheSnapshotIntervalMs());
+					}
+					ldap.setCachePreload(info.isCachePreload());
+					ldap.setCachePreloadFilter(info.getCachePreloadFilter());
+					if (info.getCachePreloadPageSize() > 0) {
+						ldap.setCachePreloadPageSize(info.getCachePreloadPageSize());
+					}
+					ldap.setMirror(info.isMirror());
+					ldap.setMirrorFilter(info.getMirrorFilter());
+					if (info.getMirrorPageSize() > 0) {
+						ldap.setMirrorPageSize(info.getMirrorPageSize());
+					}
+					if (info.getMirrorSyncIntervalMs() > 0) {
+						ldap.setMirrorSyncIntervalMs(info.getMirrorSyncIntervalMs());
+					}
+					if (info.getMirrorFullSyncIntervalMs() != 0) {
+						ldap.setMirrorFullSyncIntervalMs(info.getMirrorFullSyncIntervalMs());
+					}
+					ldap.setNegativeCacheExpiryAfterWriteMs(info.getNegativeCacheExpireAfterWriteMs());
+					if (info.getNegativeCacheMaximumSize() > 0) {
+						ldap.setNegativeCacheMaximumSize(info.getNegativeCacheMaximumSize());
+					}
+					ldap.setMaxInFlight(info.getMaxInFlight());
+					if (info.getMaxFilterClauses() > 0) {
+						ldap.setMaxFilterClauses(info.getMaxFilterClauses());
+					}
+					ldap.setPrincipalSourceAttribute(info.getPrincipalSourceAttribute());
 					ldap.setSourcePrincipalLookupQuery(info.getSourcePrincipalLookupQuery());
 					ldap.setPrincipalSchoolSourceAttribute(info.getPrincipalSchoolSourceAttribute());
 					ldap.setPrincipalAffiliationSourceAttribute(info.getPrincipalAffiliationSourceAttribute());
 					ldap.init();
 					convertedEnrichers.add(ldap);
+
+				} else if (info.getType() == ENRICHER_TYPE.JDBC) {
+					log.info("Creating a JDBC Event Attribute Enricher");
+					convertedEnrichers.add(constructJdbcEnricher(info));
 				}
 			}
 		}
@@ -300,6 +828,63 @@ public class EnrichmentAutoConfiguration {
 
 	}
 
+	/**
+	 * Constructs a {@link JdbcEventAttributeEnricher} with its own pool of
+	 * connections to the url, which caches the prepared statements of each
+	 * connection.
+	 * 
+	 * @param info
+	 *            the configuration of the enricher.
+	 * @return the initialised {@link JdbcEventAttributeEnricher}.
+	 */
+	private JdbcEventAttributeEnricher constructJdbcEnricher(final EventAttributeEnricherInformation info) {
+		final PoolProperties pool = new PoolProperties();
+		pool.setUrl(info.getUrl());
+		pool.setDriverClassName(info.getDriverClassName() != null ? info.getDriverClassName()
+				: DatabaseDriver.fromJdbcUrl(info.getUrl()).getDriverClassName());
+		pool.setUsername(info.getUser());
+		if (info.getPassword() == null) {
+			pool.setPassword(env.getRequiredProperty("attribute.enricher.jdbc.password"));
+		} else {
+			pool.setPassword(info.getPassword());
+		}
+		final int poolSize = info.getPoolSize() > 0 ? info.getPoolSize() : 8;
+		pool.setMaxActive(poolSize);
+		pool.setMaxIdle(poolSize);
+		pool.setTestOnBorrow(true);
+		pool.setValidationQueryTimeout(5);
+		pool.setJdbcInterceptors("org.apache.tomcat.jdbc.pool.interceptor.StatementCache(max=64)");
+		log.info("Constructing JDBC Source, url [{}], user [{}], pool of [{}] connections", info.getUrl(),
+				info.getUser(), poolSize);
+
+		final JdbcEventAttributeEnricher jdbc = new JdbcEventAttributeEnricher();
+		jdbc.setForClass(info.getForClass());
+		jdbc.setJdbc(new JdbcTemplate(new org.apache.tomcat.jdbc.pool.DataSource(pool)));
+		jdbc.setPrincipalFieldName(info.getPrincipalFieldName());
+		jdbc.setUseCache(info.isUseCache());
+		jdbc.setCacheExpiryAfterWriteMs(info.getCacheExpireAfterWriteMs());
+		if (info.getCacheMaximumSize() > 0) {
+			jdbc.setCacheMaximumSize(info.getCacheMaximumSize());
+		}
+		jdbc.setCacheMaximumWeight(info.getCacheMaximumWeight());
+		jdbc.setCacheRefreshAfterWriteMs(info.getCacheRefreshAfterWriteMs());
+		jdbc.setNegativeCacheExpiryAfterWriteMs(info.getNegativeCacheExpireAfterWriteMs());
+		if (info.getNegativeCacheMaximumSize() > 0) {
+			jdbc.setNegativeCacheMaximumSize(info.getNegativeCacheMaximumSize());
+		}
+		jdbc.setMaxInFlight(info.getMaxInFlight());
+		if (info.getMaxFilterClauses() > 0) {
+			jdbc.setMaxFilterClauses(info.getMaxFilterClauses());
+		}
+		jdbc.setPrincipalSourceAttribute(info.getPrincipalSourceAttribute());
+		jdbc.setIgnorePrincipalCase(info.isIgnorePrincipalCase());
+		jdbc.setSourcePrincipalLookupQuery(info.getSourcePrincipalLookupQuery());
+		jdbc.setPrincipalSchoolSourceAttribute(info.getPrincipalSchoolSourceAttribute());
+		jdbc.setPrincipalAffiliationSourceAttribute(info.getPrincipalAffiliationSourceAttribute());
+		jdbc.init();
+		return jdbc;
+	}
+
 	/**
 	 * Create the {@link EventEnricherService} using the configured
 	 * {@link EventEnricherService}
@@ -308,20 +893,72 @@ public class EnrichmentAutoConfiguration {
 	 *            a {@link EventAttributeEnricher} that is autowired in spring by
 	 *            name then type - so make sure only one bean constructed of that
 	 *            type.
+	 * @param eventExceptionChnl
+	 *            the channel an {@link Event} of a batch that can not be enriched
+	 *            is sent to, to be placed on the retry queue.
 	 * @return
 	 */
 
 	@Bean("eventEnricherService")
-	public EventEnricherService enricherService() {
+	public EventEnricherService enricherService(
+			@Qualifier("eventExceptionChnl") final MessageChannel eventExceptionChnl) {
 		log.info("Setting up eventEnricherService");
 		final EventEnricherService enricher = new EventEnricherService(constructEnrichers());
+		enricher.setErrorChannel(eventExceptionChnl);
 		enricher.setExceptionTriggersRollbqck(
 				env.getProperty("attribute.enrich.rollback-on-excepton", Boolean.class, false));
+		enricher.setBatchLookups(env.getProperty("attribute.enrich.batch-lookups", Boolean.class, false));
+
+		if (env.getProperty("attribute.enrich.async", Boolean.class, false)) {
+			if (env.getProperty("amqp.event.listener.transacted", Boolean.class, false)) {
+				throw new IllegalStateException(
+						"attribute.enrich.async can not be used with amqp.event.listener.transacted, deliveries would be acknowledged before their events are stored");
+			}
+			if (env.getProperty("amqp.event.ack-before-store", Boolean.class, false) == false) {
+				throw new IllegalStateException(
+						"attribute.enrich.async acknowledges deliveries before their events are stored, set amqp.event.ack-before-store=true to accept losing them if the server stops");
+			}
+			log.warn(
+					"Enriching events asynchronously, events acknowledged but not yet stored are lost if the server stops");
+			final int poolSize = env.getProperty("attribute.enrich.async.pool-size", Integer.class, 16);
+			log.info("Enriching events asynchronously on a pool of [{}] threads", poolSize);
+			final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+			executor.setCorePoolSize(poolSize);
+			executor.setMaxPoolSize(poolSize);
+			executor.setThreadNamePrefix("event-enrich-");
+			executor.setDaemon(true);
+			executor.setWaitForTasksToCompleteOnShutdown(true);
+			executor.setAwaitTerminationSeconds(
+					env.getProperty("attribute.enrich.async.shutdown-timeout-seconds", Integer.class, 30));
+			executor.initialize();
+			enricher.setExecutor(executor);
+		}
 
 		return enricher;
 
 	}
 
+	/**
+	 * Publish the cache statistics and lookup telemetry of each enricher as an
+	 * MBean, on the same {@link MBeanServer} as the Spring Integration MBeans.
+	 * Disabled with attribute.enrich.jmx.enabled=false.
+	 * 
+	 * @param eventEnricherService
+	 *            the service whose enrichers are published.
+	 * @param mbeanServer
+	 *            the application {@link MBeanServer}, if JMX is enabled.
+	 * @return the exporter of the enricher MBeans.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "attribute.enrich.jmx.enabled", matchIfMissing = true)
+	public EnricherTelemetryExporter enricherTelemetryExporter(final EventEnricherService eventEnricherService,
+			final ObjectProvider<MBeanServer> mbeanServer) {
+		final MBeanServer server = mbeanServer.getIfAvailable();
+		return new EnricherTelemetryExporter(eventEnricherService,
+				server != null ? server : JmxUtils.locateMBeanServer(),
+				env.getProperty("attribute.enrich.jmx.domain", "raptor.server"));
+	}
+
 	/**
 	 * @return the enrichers
 	 */
@@ -1,5 +1,7 @@
 package uk.ac.cardiff.raptor.server.enrich;
 
+import java.util.List;
+
 import uk.ac.cardiff.model.event.Event;
 
 /**
@@ -20,4 +22,18 @@ public interface EventAttributeEnricher {
 	 */
 	void enrich(final Event event) throws EventAttributeEnricherException;
 
+	/**
+	 * Add additional attribute information to each of the input {@link Event}s.
+	 * Implementations that can resolve several principals in one lookup should
+	 * override this, by default each {@link Event} is enriched in turn.
+	 * 
+	 * @param events
+	 *            the {@link Event}s to augment with information.
+	 */
+	default void enrichAll(final List<Event> events) throws EventAttributeEnricherException {
+		for (final Event event : events) {
+			enrich(event);
+		}
+	}
+
 }
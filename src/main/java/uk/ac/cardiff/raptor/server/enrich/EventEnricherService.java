@@ -1,41 +1,105 @@
 package uk.ac.cardiff.raptor.server.enrich;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.Nonnull;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.ThreadSafe;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandlingException;
+import org.springframework.messaging.support.ErrorMessage;
+import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.dao.EventBatch;
 
 /**
  * The Spring Integration EventEnricher service that is autoconfigured on
  * startup to register the correct attribute.enrich.source e.g.
  * {@link LdapEventAttributeEnricher}.
+ * <p>
+ * Called concurrently by every AMQP consumer thread, so holds no per-event
+ * state. The enrichers and the rollback flag can be replaced at runtime.
+ * </p>
+ * <p>
+ * Events are enriched once they have been grouped into an {@link EventBatch}
+ * and its duplicates removed, so a duplicate is never looked up. If an
+ * {@code executor} is set, {@link #enrichBatchAsync(EventBatch)} runs the
+ * enrichers on the {@code executor} rather than the calling thread. The
+ * number of events each enricher is enriching at once is limited to its
+ * {@link AbstractEventAttributeEnricher#getMaxInFlight()}, the calling thread
+ * waits when that limit is reached.
+ * </p>
  * 
  * @author philsmart
  *
  */
+@ThreadSafe
 public class EventEnricherService {
 
 	private static final Logger log = LoggerFactory.getLogger(EventEnricherService.class);
 
-	private List<AbstractEventAttributeEnricher> enrichers;
+	/**
+	 * The enrichers, and those that apply to each {@link Event} class.
+	 */
+	private volatile EnricherDispatchTable dispatch;
 
 	/**
 	 * If true, an {@link EventAttributeEnricherException} is rethrow as a runtime
 	 * exception to trigger rollback of containers transaction manager (if defined)
 	 */
-	private boolean exceptionTriggersRollbqck = false;
+	private volatile boolean exceptionTriggersRollbqck = false;
+
+	/**
+	 * Runs the enrichers for {@link #enrichAsync(Message)} and
+	 * {@link #enrichBatchAsync(EventBatch)}. If null, enrichers are run on the
+	 * calling thread.
+	 */
+	private volatile ThreadPoolTaskExecutor executor;
+
+	/**
+	 * If true, {@link Event}s are not enriched one at a time, but together once
+	 * they have been grouped into an {@link EventBatch} by
+	 * {@link #enrichBatch(EventBatch)}, so an enricher can resolve the principals
+	 * of the whole batch at once.
+	 */
+	private volatile boolean batchLookups = false;
+
+	/**
+	 * The channel an {@link ErrorMessage} is sent to when an {@link Event} of an
+	 * {@link EventBatch} can not be enriched and {@code exceptionTriggersRollbqck}
+	 * , so the rest of the batch is still stored. If null, or the batch has only
+	 * the one {@link Event}, the exception is thrown instead.
+	 */
+	private volatile MessageChannel errorChannel;
+
+	/**
+	 * Limits the events in flight for each enricher when enriching
+	 * asynchronously.
+	 */
+	private final Map<AbstractEventAttributeEnricher, Semaphore> inFlight = new ConcurrentHashMap<>();
 
 	public EventEnricherService(@Nonnull final List<AbstractEventAttributeEnricher> enrichers) {
 		Objects.requireNonNull(enrichers);
-		this.enrichers = enrichers;
+		dispatch = new EnricherDispatchTable(enrichers);
 	}
 
 	/**
@@ -47,21 +111,10 @@ public class EventEnricherService {
 	 */
 	@ServiceActivator
 	public Message<Event> enrich(final Message<Event> eventMsg) {
-		if (eventMsg.getPayload() != null) {
+		if (eventMsg.getPayload() != null && batchLookups == false) {
 			log.trace("Enriching event {}", eventMsg.getPayload().getEventId());
 			try {
-				boolean wasEnriched = false;
-				for (final AbstractEventAttributeEnricher enricher : enrichers) {
-					log.trace("Checking enricher for class {} is suitable for type {}, {}", enricher.getForClass(),
-							eventMsg.getPayload().getClass(),
-							enricher.getForClass() == eventMsg.getPayload().getClass());
-					if (enricher.getForClass() == eventMsg.getPayload().getClass()) {
-						enricher.enrich(eventMsg.getPayload());
-						wasEnriched = true;
-					}
-				}
-				log.debug("Was event [{}] *possibly* enriched by at least one enricher, {}",
-						eventMsg.getPayload().getEventId(), wasEnriched ? "yes" : "no");
+				enrichWith(eventMsg.getPayload(), suitableEnrichers(eventMsg.getPayload()));
 			} catch (final EventAttributeEnricherException e) {
 				log.error("Exception thrown while trying to enrich Event [{}]", eventMsg.getPayload().getEventId(), e);
 				if (exceptionTriggersRollbqck) {
@@ -73,6 +126,326 @@ public class EventEnricherService {
 
 	}
 
+	/**
+	 * Enriches an event on the {@code executor}, returning as soon as the
+	 * enrichment has started. Waits first if any suitable enricher already has
+	 * its maximum number of events in flight. If no enricher is suitable, or
+	 * there is no {@code executor}, the event is enriched on the calling thread.
+	 * 
+	 * @param eventMsg
+	 *            the {@link Message} to enrich (in the payload)
+	 * @return a {@link ListenableFuture} of the enriched {@link Message}. If
+	 *         {@code exceptionTriggersRollbqck} and enrichment fails, the future
+	 *         fails with a {@link MessageHandlingException}, which Spring
+	 *         Integration sends to the error channel named in the
+	 *         {@link Message} headers.
+	 */
+	public ListenableFuture<Message<Event>> enrichAsync(final Message<Event> eventMsg) {
+		final ThreadPoolTaskExecutor pool = executor;
+		if (pool == null || eventMsg.getPayload() == null || batchLookups) {
+			return new AsyncResult<>(enrich(eventMsg));
+		}
+		final List<AbstractEventAttributeEnricher> suitable = suitableEnrichers(eventMsg.getPayload());
+		if (suitable.isEmpty()) {
+			return new AsyncResult<>(eventMsg);
+		}
+
+		final List<Semaphore> permits = acquire(eventMsg, suitable);
+		try {
+			return pool.submitListenable(() -> {
+				try {
+					return enrichAsynchronously(eventMsg, suitable);
+				} finally {
+					release(permits);
+				}
+			});
+		} catch (final TaskRejectedException e) {
+			release(permits);
+			throw new MessageHandlingException(eventMsg, "Could not start enrichment of event", e);
+		}
+	}
+
+	/**
+	 * Enriches every {@link Event} in the {@link EventBatch}. If
+	 * {@code batchLookups}, the {@link Event}s suitable for each enricher are
+	 * passed to {@link EventAttributeEnricher#enrichAll(List)} together, and if
+	 * an enricher fails for the batch its {@link Event}s are enriched one at a
+	 * time. Otherwise each {@link Event} is enriched in turn.
+	 * 
+	 * @param batch
+	 *            the {@link EventBatch} to enrich.
+	 * @return the enriched {@link EventBatch}, without any {@link Event} sent to
+	 *         the {@code errorChannel}, or null if every {@link Event} was.
+	 */
+	@ServiceActivator
+	public EventBatch enrichBatch(final EventBatch batch) {
+		final List<Message<Event>> failed = new ArrayList<>();
+		if (batchLookups) {
+			lookupBatch(batch, failed);
+		} else {
+			for (final Message<Event> eventMsg : batch.getMessages()) {
+				if (eventMsg.getPayload() == null) {
+					continue;
+				}
+				try {
+					enrichWith(eventMsg.getPayload(), suitableEnrichers(eventMsg.getPayload()));
+				} catch (final EventAttributeEnricherException e) {
+					if (failed(batch, eventMsg, e)) {
+						failed.add(eventMsg);
+					}
+				}
+			}
+		}
+		return without(batch, failed);
+	}
+
+	/**
+	 * Enriches every {@link Event} in the {@link EventBatch} on the
+	 * {@code executor}, returning as soon as the enrichment of each has started,
+	 * as {@link #enrichAsync(Message)} does. If there is no {@code executor}, or
+	 * {@code batchLookups}, the batch is enriched on the calling thread by
+	 * {@link #enrichBatch(EventBatch)}.
+	 * 
+	 * @param batch
+	 *            the {@link EventBatch} to enrich.
+	 * @return a {@link ListenableFuture} of the enriched {@link EventBatch},
+	 *         without any {@link Event} sent to the {@code errorChannel}. If the
+	 *         batch has only the one {@link Event} and its enrichment fails, the
+	 *         future fails with a {@link MessageHandlingException} of that
+	 *         {@link Event}, which Spring Integration sends to the error channel
+	 *         named in the {@link Message} headers.
+	 */
+	public ListenableFuture<EventBatch> enrichBatchAsync(final EventBatch batch) {
+		if (executor == null || batchLookups) {
+			return new AsyncResult<>(enrichBatch(batch));
+		}
+		final List<Message<Event>> messages = batch.getMessages();
+		final AtomicReferenceArray<Message<Event>> enriched = new AtomicReferenceArray<>(messages.size());
+		final AtomicInteger remaining = new AtomicInteger(messages.size());
+		final AtomicReference<MessageHandlingException> thrown = new AtomicReference<>();
+		final SettableListenableFuture<EventBatch> result = new SettableListenableFuture<>();
+
+		for (int i = 0; i < messages.size(); i++) {
+			final int index = i;
+			final Message<Event> eventMsg = messages.get(i);
+			final ListenableFuture<Message<Event>> enriching;
+			try {
+				enriching = enrichAsync(eventMsg);
+			} catch (final MessageHandlingException e) {
+				if (batch.size() == 1 || errorChannel == null) {
+					throw e;
+				}
+				sendToErrorChannel(e);
+				completeBatch(result, remaining, enriched, thrown);
+				continue;
+			}
+			enriching.addCallback(reply -> {
+				enriched.set(index, reply);
+				completeBatch(result, remaining, enriched, thrown);
+			}, failure -> {
+				final MessageHandlingException handling = failure instanceof MessageHandlingException
+						? (MessageHandlingException) failure : new MessageHandlingException(eventMsg, failure);
+				if (batch.size() == 1 || errorChannel == null) {
+					thrown.compareAndSet(null, handling);
+				} else {
+					sendToErrorChannel(handling);
+				}
+				completeBatch(result, remaining, enriched, thrown);
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * Completes the {@code result} of {@link #enrichBatchAsync(EventBatch)} once
+	 * every {@link Event} of the batch has been enriched or has failed.
+	 */
+	private void completeBatch(final SettableListenableFuture<EventBatch> result, final AtomicInteger remaining,
+			final AtomicReferenceArray<Message<Event>> enriched,
+			final AtomicReference<MessageHandlingException> thrown) {
+		if (remaining.decrementAndGet() > 0) {
+			return;
+		}
+		if (thrown.get() != null) {
+			result.setException(thrown.get());
+			return;
+		}
+		final List<Message<Event>> messages = new ArrayList<>(enriched.length());
+		for (int i = 0; i < enriched.length(); i++) {
+			if (enriched.get(i) != null) {
+				messages.add(enriched.get(i));
+			}
+		}
+		result.set(new EventBatch(messages));
+	}
+
+	/**
+	 * Passes the {@link Event}s of the {@link EventBatch} suitable for each
+	 * enricher to {@link EventAttributeEnricher#enrichAll(List)} together,
+	 * adding any {@link Event} sent to the {@code errorChannel} to
+	 * {@code failed}.
+	 */
+	private void lookupBatch(final EventBatch batch, final List<Message<Event>> failed) {
+		final EnricherDispatchTable table = dispatch;
+		final Map<AbstractEventAttributeEnricher, List<Message<Event>>> byEnricher = new IdentityHashMap<>();
+		for (final Message<Event> eventMsg : batch.getMessages()) {
+			if (eventMsg.getPayload() == null) {
+				continue;
+			}
+			for (final AbstractEventAttributeEnricher enricher : table.enrichersFor(eventMsg.getPayload().getClass())) {
+				byEnricher.computeIfAbsent(enricher, key -> new ArrayList<>(batch.size())).add(eventMsg);
+			}
+		}
+		for (final AbstractEventAttributeEnricher enricher : table.getEnrichers()) {
+			final List<Message<Event>> suitable = byEnricher.get(enricher);
+			if (suitable == null) {
+				continue;
+			}
+			suitable.removeAll(failed);
+			final List<Event> events = new ArrayList<>(suitable.size());
+			for (final Message<Event> eventMsg : suitable) {
+				events.add(eventMsg.getPayload());
+			}
+			log.trace("Enriching [{}] events of batch with enricher for class {}", events.size(),
+					enricher.getForClass());
+			try {
+				enricher.enrichAll(events);
+			} catch (final EventAttributeEnricherException e) {
+				log.warn("Exception thrown while trying to enrich batch of [{}] events, enriching each event",
+						events.size(), e);
+				for (final Message<Event> eventMsg : suitable) {
+					try {
+						enricher.enrich(eventMsg.getPayload());
+					} catch (final EventAttributeEnricherException eventException) {
+						if (failed(batch, eventMsg, eventException)) {
+							failed.add(eventMsg);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Logs the failure to enrich an {@link Event} of the {@link EventBatch}. If
+	 * {@code exceptionTriggersRollbqck}, the failure is sent to the
+	 * {@code errorChannel}, or thrown if the batch has only the one
+	 * {@link Event} or there is no {@code errorChannel}.
+	 * 
+	 * @return true if the {@link Event} was sent to the {@code errorChannel}, so
+	 *         must be removed from the batch.
+	 */
+	private boolean failed(final EventBatch batch, final Message<Event> eventMsg,
+			final EventAttributeEnricherException e) {
+		log.error("Exception thrown while trying to enrich Event [{}]", eventMsg.getPayload().getEventId(), e);
+		if (exceptionTriggersRollbqck == false) {
+			return false;
+		}
+		final MessageHandlingException failure = new MessageHandlingException(eventMsg,
+				new EventAttributeEnricherRollbackException(e));
+		if (batch.size() == 1 || errorChannel == null) {
+			throw failure;
+		}
+		sendToErrorChannel(failure);
+		return true;
+	}
+
+	private void sendToErrorChannel(final MessageHandlingException failure) {
+		log.warn("Event of a batch could not be enriched, sending it to the error channel");
+		errorChannel.send(new ErrorMessage(failure));
+	}
+
+	/**
+	 * @return the {@link EventBatch} without the {@code failed} {@link Message}
+	 *         s, or null if none are left.
+	 */
+	private EventBatch without(final EventBatch batch, final List<Message<Event>> failed) {
+		if (failed.isEmpty()) {
+			return batch;
+		}
+		final List<Message<Event>> remaining = new ArrayList<>(batch.getMessages());
+		remaining.removeAll(failed);
+		return remaining.isEmpty() ? null : new EventBatch(remaining);
+	}
+
+	private Message<Event> enrichAsynchronously(final Message<Event> eventMsg,
+			final List<AbstractEventAttributeEnricher> suitable) {
+		try {
+			enrichWith(eventMsg.getPayload(), suitable);
+			return eventMsg;
+
+		} catch (final EventAttributeEnricherException e) {
+			log.error("Exception thrown while trying to enrich Event [{}]", eventMsg.getPayload().getEventId(), e);
+			if (exceptionTriggersRollbqck) {
+				throw new MessageHandlingException(eventMsg, new EventAttributeEnricherRollbackException(e));
+			}
+			return eventMsg;
+		}
+	}
+
+	/**
+	 * @return the enrichers that apply to the class of the {@link Event}, from
+	 *         the {@code dispatch} table.
+	 */
+	private List<AbstractEventAttributeEnricher> suitableEnrichers(final Event event) {
+		return dispatch.enrichersFor(event.getClass());
+	}
+
+	private void enrichWith(final Event event, final List<AbstractEventAttributeEnricher> suitable)
+			throws EventAttributeEnricherException {
+		for (final AbstractEventAttributeEnricher enricher : suitable) {
+			enricher.enrich(event);
+		}
+		log.debug("Was event [{}] *possibly* enriched by at least one enricher, {}", event.getEventId(),
+				suitable.isEmpty() ? "no" : "yes");
+	}
+
+	/**
+	 * Acquires an in flight permit from each enricher, always in configured
+	 * order so that two events can not wait on each other.
+	 */
+	private List<Semaphore> acquire(final Message<Event> eventMsg,
+			final List<AbstractEventAttributeEnricher> suitable) {
+		final List<Semaphore> permits = new ArrayList<>(suitable.size());
+		try {
+			for (final AbstractEventAttributeEnricher enricher : suitable) {
+				final Semaphore permit = inFlight.computeIfAbsent(enricher,
+						key -> new Semaphore(key.getMaxInFlight() > 0 ? key.getMaxInFlight()
+								: executor.getMaxPoolSize()));
+				permit.acquire();
+				permits.add(permit);
+			}
+			return permits;
+
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			release(permits);
+			throw new MessageHandlingException(eventMsg, "Interrupted waiting to enrich event", e);
+		}
+	}
+
+	private void release(final List<Semaphore> permits) {
+		for (final Semaphore permit : permits) {
+			permit.release();
+		}
+	}
+
+	/**
+	 * Stops the {@code executor}, which waits up to its await termination time
+	 * for the events queued or in flight to be enriched and passed on, then
+	 * shuts down each enricher. Events still enriching after that time have
+	 * already been acknowledged and are lost.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		for (final AbstractEventAttributeEnricher enricher : dispatch.getEnrichers()) {
+			enricher.shutdown();
+		}
+	}
+
 	/**
 	 * @return the exceptionTriggersRollbqck
 	 */
@@ -92,11 +465,62 @@ public class EventEnricherService {
 	 * @return the enrichers
 	 */
 	public List<AbstractEventAttributeEnricher> getEnrichers() {
-		return Collections.unmodifiableList(enrichers);
+		return dispatch.getEnrichers();
 	}
 
+	/**
+	 * Replaces the enrichers, rebuilding the {@code dispatch} table.
+	 * 
+	 * @param enrich
+	 *            the enrichers to set, in the order they should be applied.
+	 */
 	public void setEnrichers(final List<AbstractEventAttributeEnricher> enrich) {
-		enrichers = enrich;
+		dispatch = new EnricherDispatchTable(enrich);
+	}
+
+	/**
+	 * @return the batchLookups
+	 */
+	public boolean isBatchLookups() {
+		return batchLookups;
+	}
+
+	/**
+	 * @param batchLookups
+	 *            the batchLookups to set
+	 */
+	public void setBatchLookups(final boolean batchLookups) {
+		this.batchLookups = batchLookups;
+	}
+
+	/**
+	 * @return the errorChannel
+	 */
+	public MessageChannel getErrorChannel() {
+		return errorChannel;
+	}
+
+	/**
+	 * @param errorChannel
+	 *            the errorChannel to set
+	 */
+	public void setErrorChannel(final MessageChannel errorChannel) {
+		this.errorChannel = errorChannel;
+	}
+
+	/**
+	 * @return the executor
+	 */
+	public ThreadPoolTaskExecutor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor
+	 *            the executor to set
+	 */
+	public void setExecutor(final ThreadPoolTaskExecutor executor) {
+		this.executor = executor;
 	}
 
 }
@@ -0,0 +1,183 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cardiff.model.event.Event;
+
+/**
+ * Reads and writes a bean property of an {@link Event} class through
+ * {@link MethodHandle}s to its getter and setter. The bean introspection is
+ * done once per class and property name, the accessor is then held against
+ * the class in a {@link ClassValue}, so is found without locking on each
+ * {@link Event}.
+ * <p>
+ * A property the class does not have, or that has no getter or setter, is
+ * reported once when the accessor is resolved. Exceptions thrown by the getter
+ * or setter are rethrown to the caller, which the enrichers log at trace and
+ * ignore, as they did when the property was read by reflection.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public final class EventPropertyAccessor {
+
+	private static final Logger log = LoggerFactory.getLogger(EventPropertyAccessor.class);
+
+	/**
+	 * The accessors of each class, by property name.
+	 */
+	private static final ClassValue<ConcurrentMap<String, EventPropertyAccessor>> ACCESSORS = new AccessorsByName();
+
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+	private final String property;
+
+	/**
+	 * The getter, adapted to take and return {@link Object}. Null if the property
+	 * can not be read.
+	 */
+	private final MethodHandle getter;
+
+	/**
+	 * The setter, adapted to take {@link Object}s. Null if the property can not
+	 * be written.
+	 */
+	private final MethodHandle setter;
+
+	private EventPropertyAccessor(final String property, final MethodHandle getter, final MethodHandle setter) {
+		this.property = property;
+		this.getter = getter;
+		this.setter = setter;
+	}
+
+	/**
+	 * @param type
+	 *            the class of the bean.
+	 * @param property
+	 *            the name of the property.
+	 * @return the accessor of the property of the class, resolved on first use.
+	 */
+	public static EventPropertyAccessor of(@Nonnull final Class<?> type, @Nonnull final String property) {
+		Objects.requireNonNull(property);
+		return ACCESSORS.get(type).computeIfAbsent(property, name -> resolve(type, name));
+	}
+
+	private static EventPropertyAccessor resolve(final Class<?> type, final String property) {
+		MethodHandle getter = null;
+		MethodHandle setter = null;
+		try {
+			for (final PropertyDescriptor descriptor : Introspector.getBeanInfo(type).getPropertyDescriptors()) {
+				if (descriptor.getName().equals(property)) {
+					getter = unreflect(descriptor.getReadMethod(), GETTER_TYPE);
+					setter = unreflect(descriptor.getWriteMethod(), SETTER_TYPE);
+				}
+			}
+		} catch (final IntrospectionException | IllegalAccessException e) {
+			log.warn("Could not introspect property [{}] of [{}]", property, type.getName(), e);
+		}
+		if (getter == null && setter == null) {
+			log.warn("[{}] has no public property [{}], it will not be read or written", type.getName(), property);
+		} else {
+			log.debug("Resolved property [{}] of [{}], readable [{}], writable [{}]", property, type.getName(),
+					getter != null, setter != null);
+		}
+		return new EventPropertyAccessor(property, getter, setter);
+	}
+
+	private static MethodHandle unreflect(final Method method, final MethodType type) throws IllegalAccessException {
+		if (method == null) {
+			return null;
+		}
+		return MethodHandles.publicLookup().unreflect(method).asType(type);
+	}
+
+	/**
+	 * @return true if the property has a getter.
+	 */
+	public boolean isReadable() {
+		return getter != null;
+	}
+
+	/**
+	 * @return true if the property has a setter.
+	 */
+	public boolean isWritable() {
+		return setter != null;
+	}
+
+	/**
+	 * @param bean
+	 *            the object to read the property of.
+	 * @return the value of the property.
+	 * @throws IllegalStateException
+	 *             if the property has no getter, or the getter threw a checked
+	 *             exception. Unchecked exceptions are rethrown as thrown.
+	 */
+	public Object get(@Nonnull final Object bean) {
+		if (getter == null) {
+			throw new IllegalStateException("Property [" + property + "] can not be read");
+		}
+		try {
+			return (Object) getter.invokeExact(bean);
+		} catch (final RuntimeException | Error e) {
+			throw e;
+		} catch (final Throwable e) {
+			throw new IllegalStateException("Could not read property [" + property + "]", e);
+		}
+	}
+
+	/**
+	 * @param bean
+	 *            the object to write the property of.
+	 * @param value
+	 *            the value to set.
+	 * @throws IllegalStateException
+	 *             if the property has no setter, or the setter threw a checked
+	 *             exception. Unchecked exceptions are rethrown as thrown.
+	 */
+	public void set(@Nonnull final Object bean, final Object value) {
+		if (setter == null) {
+			throw new IllegalStateException("Property [" + property + "] can not be written");
+		}
+		try {
+			setter.invokeExact(bean, value);
+		} catch (final RuntimeException | Error e) {
+			throw e;
+		} catch (final Throwable e) {
+			throw new IllegalStateException("Could not write property [" + property + "]", e);
+		}
+	}
+
+	/**
+	 * Holds an empty map of the accessors of a class, filled as its properties
+	 * are used.
+	 */
+	private static final class AccessorsByName extends ClassValue<ConcurrentMap<String, EventPropertyAccessor>> {
+
+		@Override
+		protected ConcurrentMap<String, EventPropertyAccessor> computeValue(final Class<?> type) {
+			return new ConcurrentHashMap<>(4);
+		}
+
+	}
+
+}
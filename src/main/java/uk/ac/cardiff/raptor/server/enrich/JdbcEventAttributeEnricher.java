@@ -0,0 +1,486 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import uk.ac.cardiff.model.event.AuthenticationEvent;
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.model.event.auxiliary.PrincipalInformation;
+
+/**
+ * JDBC attribute enricher, adds information from a database to the
+ * {@link PrincipalInformation} field of the {@link AuthenticationEvent} class,
+ * as the {@link LdapEventAttributeEnricher} does from LDAP.
+ * <p>
+ * The {@code sourcePrincipalLookupQuery} is an SQL query returning the
+ * {@code principalSchoolSourceAttribute} and
+ * {@code principalAffiliationSourceAttribute} columns, with ?ppn in place of
+ * the principal name, e.g. SELECT username, dept, affiliation FROM person WHERE
+ * username IN (?ppn). The principal name is always bound as a parameter of a
+ * prepared statement.
+ * </p>
+ * <p>
+ * If the query compares a column with IN (?ppn), {@link #enrichAll(List)}
+ * resolves the distinct principals of several {@link Event}s that are not
+ * cached with one query, at most {@code maxFilterClauses} principals per
+ * query. Each row is matched back to its principal by the value of the
+ * {@code principalSourceAttribute} column, exactly unless
+ * {@code ignorePrincipalCase}. The IN list is padded to a power of two so that
+ * few distinct statements are prepared.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class JdbcEventAttributeEnricher extends AbstractEventAttributeEnricher {
+
+	private static final Logger log = LoggerFactory.getLogger(JdbcEventAttributeEnricher.class);
+
+	/**
+	 * Finds the column compared with IN (?ppn) in the
+	 * {@code sourcePrincipalLookupQuery}.
+	 */
+	private static final Pattern IN_PRINCIPALS = Pattern.compile("([\\w.\"]+)\\s+IN\\s*\\(\\s*\\?ppn\\s*\\)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Finds the column compared with = ?ppn in the
+	 * {@code sourcePrincipalLookupQuery}.
+	 */
+	private static final Pattern EQUALS_PRINCIPAL = Pattern.compile("([\\w.\"]+)\\s*=\\s*\\?ppn");
+
+	private JdbcTemplate jdbc;
+
+	/**
+	 * The maximum number of principals resolved by one query in
+	 * {@link #enrichAll(List)}.
+	 */
+	private int maxFilterClauses = 50;
+
+	/**
+	 * The name of the column that holds the principal name, used to match the
+	 * rows of a query for several principals to each principal. If null, found
+	 * from the column compared to ?ppn in the {@code sourcePrincipalLookupQuery}.
+	 */
+	private String principalSourceAttribute;
+
+	/**
+	 * If true, rows are matched to principals ignoring case, for a database
+	 * whose collation compares the principal column ignoring case. Otherwise a
+	 * row only matches the principal its column equals.
+	 */
+	private boolean ignorePrincipalCase;
+
+	/**
+	 * True if the {@code sourcePrincipalLookupQuery} compares with IN (?ppn), so
+	 * can be bound to several principals.
+	 */
+	private boolean batchable;
+
+	/**
+	 * The {@code sourcePrincipalLookupQuery} bound to each number of principals,
+	 * with a ? parameter per principal.
+	 */
+	private final Map<Integer, String> queries = new ConcurrentHashMap<>();
+
+	/**
+	 * Principal results cache, can be null if not enabled. Principals that are
+	 * not cached are loaded from the database by the cache, so concurrent
+	 * lookups of one principal share a single query.
+	 */
+	private LoadingCache<String, PrincipalInformation> cache;
+
+	/**
+	 * Principals the database had no single row for, can be null if not enabled.
+	 * Consulted before the {@code cache}.
+	 */
+	private Cache<String, Boolean> negativeCache;
+
+	public void init() {
+		Objects.requireNonNull(jdbc, "JdbcEventEnricher requires a JdbcTemplate");
+		Objects.requireNonNull(sourcePrincipalLookupQuery);
+		Objects.requireNonNull(principalFieldName);
+		if (maxFilterClauses < 1) {
+			throw new IllegalStateException("JdbcEventEnricher requires maxFilterClauses of at least 1");
+		}
+
+		final Matcher in = IN_PRINCIPALS.matcher(sourcePrincipalLookupQuery);
+		batchable = in.find();
+		if (principalSourceAttribute == null) {
+			final Matcher equals = EQUALS_PRINCIPAL.matcher(sourcePrincipalLookupQuery);
+			if (batchable) {
+				principalSourceAttribute = columnLabel(in.group(1));
+			} else if (equals.find()) {
+				principalSourceAttribute = columnLabel(equals.group(1));
+			}
+		}
+		batchable = batchable && principalSourceAttribute != null;
+		queries.clear();
+
+		log.info("Using principal school column [{}], principal affiliation column [{}], principal field name [{}]",
+				principalSchoolSourceAttribute, principalAffiliationSourceAttribute, principalFieldName);
+		log.info("Batch lookups {}, matching principals on column [{}] with at most [{}] principals per query",
+				batchable ? "enabled" : "disabled, the lookup query does not use IN (?ppn)", principalSourceAttribute,
+				maxFilterClauses);
+
+		if (isUseCache()) {
+			cache = principalCacheBuilder().build(new PrincipalInformationLoader());
+			negativeCache = newNegativeCache();
+		}
+	}
+
+	@Override
+	public void enrich(@Nonnull final Event event) throws EventAttributeEnricherException {
+		Objects.requireNonNull(event);
+		try {
+			final Optional<Object> value = getPrincipalValueOffEvent(event);
+			if (value.isPresent()) {
+				attach(event, value.get().toString(), resolvePrincipalInformation(value.get().toString()));
+			}
+
+		} catch (final Throwable e) {
+			throw new EventAttributeEnricherException(e);
+		}
+	}
+
+	/**
+	 * Enriches the {@link Event}s with one query per {@code maxFilterClauses}
+	 * distinct principals that are not already cached.
+	 */
+	@Override
+	public void enrichAll(@Nonnull final List<Event> events) throws EventAttributeEnricherException {
+		Objects.requireNonNull(events);
+		try {
+			final List<Event> withPrincipal = new ArrayList<>(events.size());
+			final List<String> principals = new ArrayList<>(events.size());
+			final Set<String> distinct = new LinkedHashSet<>();
+
+			for (final Event event : events) {
+				final Optional<Object> value = getPrincipalValueOffEvent(event);
+				if (value.isPresent()) {
+					withPrincipal.add(event);
+					principals.add(value.get().toString());
+					distinct.add(value.get().toString());
+				}
+			}
+			log.debug("Resolving [{}] principals for [{}] events", distinct.size(), events.size());
+
+			if (isUseCache() && negativeCache != null) {
+				distinct.removeAll(negativeCache.getAllPresent(distinct).keySet());
+			}
+			final Map<String, PrincipalInformation> resolved = isUseCache() ? cache.getAll(distinct)
+					: queryUnique(distinct);
+
+			for (int i = 0; i < withPrincipal.size(); i++) {
+				attach(withPrincipal.get(i), principals.get(i), resolved.get(principals.get(i)));
+			}
+
+		} catch (final Throwable e) {
+			throw new EventAttributeEnricherException(e);
+		}
+	}
+
+	private void attach(final Event event, final String principalName, final PrincipalInformation principalInfo) {
+		if (principalInfo == null) {
+			log.trace("No single row in the database for principal [{}]", principalName);
+			return;
+		}
+		log.debug("Event [{}] has 1 row for principal [{}], attaching principal information [{},{}]",
+				event.getEventId(), principalName, principalInfo.getAffiliation(), principalInfo.getSchool());
+		setValueOnObject(event, principalInfo, "principalInformation");
+	}
+
+	/**
+	 * Resolve school and affiliation from the principalName, from the cache if
+	 * enabled.
+	 * 
+	 * @param principalName
+	 *            the ppn to resolve school and affiliation for.
+	 * @return the {@link PrincipalInformation}, or null if the database does not
+	 *         have exactly one row for the principal.
+	 */
+	private PrincipalInformation resolvePrincipalInformation(final String principalName) {
+		if (isUseCache()) {
+			if (negativeCache != null && negativeCache.getIfPresent(principalName) != null) {
+				log.trace("Principal [{}] is in the negative cache", principalName);
+				return null;
+			}
+			return cache.get(principalName);
+		}
+		return unique(principalName, queryPrincipals(new String[] { principalName }).get(principalName));
+	}
+
+	/**
+	 * Query for the principals, at most {@code maxFilterClauses} per query, or
+	 * one per query if the lookup query can not be bound to several.
+	 * 
+	 * @param principalNames
+	 *            the ppns to resolve school and affiliation for.
+	 * @return a {@link Map} of principal name to {@link PrincipalInformation},
+	 *         for each principal the database has exactly one row for.
+	 */
+	private Map<String, PrincipalInformation> queryUnique(final Iterable<? extends String> principalNames) {
+		final List<String> toQuery = new ArrayList<>();
+		principalNames.forEach(toQuery::add);
+		final int chunkSize = batchable ? maxFilterClauses : 1;
+
+		final Map<String, PrincipalInformation> found = new HashMap<>();
+		for (int from = 0; from < toQuery.size(); from += chunkSize) {
+			final List<String> chunk = toQuery.subList(from, Math.min(toQuery.size(), from + chunkSize));
+			final Map<String, List<PrincipalInformation>> rows = queryPrincipals(
+					chunk.toArray(new String[chunk.size()]));
+			for (final String principalName : chunk) {
+				final PrincipalInformation principalInfo = unique(principalName, rows.get(principalName));
+				if (principalInfo != null) {
+					found.put(principalName, principalInfo);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Run the lookup query for the principals, matching each row to its
+	 * principals by the {@code principalSourceAttribute} column. A single
+	 * principal is given every row.
+	 */
+	private Map<String, List<PrincipalInformation>> queryPrincipals(final String[] principalNames) {
+		final Map<String, List<PrincipalInformation>> found = new HashMap<>();
+		final Map<String, List<String>> byValue = new HashMap<>();
+		for (final String principalName : principalNames) {
+			byValue.computeIfAbsent(matchKey(principalName), key -> new ArrayList<>(1)).add(principalName);
+		}
+		final int parameters = parameterCount(principalNames.length);
+		final Object[] args = new Object[parameters];
+		for (int i = 0; i < parameters; i++) {
+			args[i] = principalNames[Math.min(i, principalNames.length - 1)];
+		}
+		final String sql = queries.computeIfAbsent(parameters, this::bindQuery);
+		log.trace("SQL query is [{}] for [{}] principals", sql, principalNames.length);
+
+		final AtomicInteger rows = new AtomicInteger();
+		final long start = System.nanoTime();
+		jdbc.query(sql, (RowCallbackHandler) rs -> {
+			rows.incrementAndGet();
+			final List<String> matched = principalNames.length == 1 ? Collections.singletonList(principalNames[0])
+					: matchPrincipals(rs, byValue);
+			if (matched.isEmpty() == false) {
+				final PrincipalInformation principalInfo = toPrincipalInformation(rs);
+				for (final String principalName : matched) {
+					found.computeIfAbsent(principalName, key -> new ArrayList<>(1)).add(principalInfo);
+				}
+			}
+		}, args);
+		getLookupTelemetry().record(start, rows.get());
+		return found;
+	}
+
+	/**
+	 * @return the number of parameters to bind for the principals, the next
+	 *         power of two up to {@code maxFilterClauses}.
+	 */
+	private int parameterCount(final int principals) {
+		if (principals <= 1) {
+			return 1;
+		}
+		return Math.min(Integer.highestOneBit(principals - 1) << 1, Math.max(principals, maxFilterClauses));
+	}
+
+	private String bindQuery(final int parameters) {
+		final StringBuilder placeholders = new StringBuilder("?");
+		for (int i = 1; i < parameters; i++) {
+			placeholders.append(", ?");
+		}
+		return sourcePrincipalLookupQuery.replace("?ppn", placeholders);
+	}
+
+	private List<String> matchPrincipals(final ResultSet rs, final Map<String, List<String>> byValue)
+			throws SQLException {
+		final String value = rs.getString(principalSourceAttribute);
+		final List<String> principalNames = value == null ? null : byValue.get(matchKey(value));
+		return principalNames == null ? Collections.emptyList() : principalNames;
+	}
+
+	private String matchKey(final String value) {
+		return ignorePrincipalCase ? value.toLowerCase(Locale.ROOT) : value;
+	}
+
+	/**
+	 * @return the only {@link PrincipalInformation} found for the principal, or
+	 *         null if there is not exactly one, in which case the principal is
+	 *         added to the {@code negativeCache}.
+	 */
+	private PrincipalInformation unique(final String principalName, final List<PrincipalInformation> principalInfos) {
+		if (principalInfos == null || principalInfos.size() != 1) {
+			log.trace("Database has [{}] rows for principal [{}], requires 1 row to attach to event",
+					principalInfos == null ? 0 : principalInfos.size(), principalName);
+			if (isUseCache() && negativeCache != null) {
+				negativeCache.put(principalName, Boolean.TRUE);
+			}
+			return null;
+		}
+		return principalInfos.get(0);
+	}
+
+	private PrincipalInformation toPrincipalInformation(final ResultSet rs) throws SQLException {
+		final PrincipalInformation information = new PrincipalInformation();
+		if (principalAffiliationSourceAttribute != null) {
+			information.setAffiliation(rs.getString(principalAffiliationSourceAttribute));
+		}
+		if (principalSchoolSourceAttribute != null) {
+			information.setSchool(rs.getString(principalSchoolSourceAttribute));
+		}
+		return information;
+	}
+
+	/**
+	 * @return the column name without any table qualifier or quotes.
+	 */
+	private static String columnLabel(final String column) {
+		return column.substring(column.lastIndexOf('.') + 1).replace("\"", "");
+	}
+
+	/**
+	 * Closes the connection pool of the {@link DataSource}, if it is a pool, and
+	 * stops the cache refreshes.
+	 */
+	@Override
+	public void shutdown() {
+		if (jdbc != null && jdbc.getDataSource() instanceof org.apache.tomcat.jdbc.pool.DataSource) {
+			((org.apache.tomcat.jdbc.pool.DataSource) jdbc.getDataSource()).close();
+		}
+		super.shutdown();
+	}
+
+	/**
+	 * @return the hit and miss statistics of the principal cache, or
+	 *         {@link CacheStats#empty()} if the cache is not used.
+	 */
+	@Override
+	public CacheStats getCacheStats() {
+		return cache == null ? CacheStats.empty() : cache.stats();
+	}
+
+	/**
+	 * @return the hit and miss statistics of the negative cache, or
+	 *         {@link CacheStats#empty()} if the negative cache is not used.
+	 */
+	@Override
+	public CacheStats getNegativeCacheStats() {
+		return negativeCache == null ? CacheStats.empty() : negativeCache.stats();
+	}
+
+	@Override
+	public long getCacheEstimatedSize() {
+		return cache == null ? 0 : cache.estimatedSize();
+	}
+
+	/**
+	 * @return the jdbc
+	 */
+	public JdbcTemplate getJdbc() {
+		return jdbc;
+	}
+
+	/**
+	 * @param jdbc
+	 *            the jdbc to set
+	 */
+	public void setJdbc(final JdbcTemplate jdbc) {
+		this.jdbc = jdbc;
+	}
+
+	/**
+	 * @return the maxFilterClauses
+	 */
+	public int getMaxFilterClauses() {
+		return maxFilterClauses;
+	}
+
+	/**
+	 * @param maxFilterClauses
+	 *            the maxFilterClauses to set
+	 */
+	public void setMaxFilterClauses(final int maxFilterClauses) {
+		this.maxFilterClauses = maxFilterClauses;
+	}
+
+	/**
+	 * @return the principalSourceAttribute
+	 */
+	public String getPrincipalSourceAttribute() {
+		return principalSourceAttribute;
+	}
+
+	/**
+	 * @param principalSourceAttribute
+	 *            the principalSourceAttribute to set
+	 */
+	public void setPrincipalSourceAttribute(final String principalSourceAttribute) {
+		this.principalSourceAttribute = principalSourceAttribute;
+	}
+
+	/**
+	 * @return the ignorePrincipalCase
+	 */
+	public boolean isIgnorePrincipalCase() {
+		return ignorePrincipalCase;
+	}
+
+	/**
+	 * @param ignorePrincipalCase
+	 *            the ignorePrincipalCase to set
+	 */
+	public void setIgnorePrincipalCase(final boolean ignorePrincipalCase) {
+		this.ignorePrincipalCase = ignorePrincipalCase;
+	}
+
+	/**
+	 * Loads the {@link PrincipalInformation} of principals missing from the
+	 * cache. A principal without exactly one row loads as null, so is not cached.
+	 */
+	private class PrincipalInformationLoader implements CacheLoader<String, PrincipalInformation> {
+
+		@Override
+		public PrincipalInformation load(final String principalName) {
+			log.trace("Principal [{}] was not in cache, querying the database", principalName);
+			return unique(principalName, queryPrincipals(new String[] { principalName }).get(principalName));
+		}
+
+		@Override
+		public Map<String, PrincipalInformation> loadAll(final Iterable<? extends String> principalNames) {
+			return queryUnique(principalNames);
+		}
+
+	}
+
+}
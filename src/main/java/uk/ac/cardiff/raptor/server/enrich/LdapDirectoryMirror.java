@@ -0,0 +1,389 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.naming.directory.SearchControls;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
+import org.springframework.ldap.core.ContextMapper;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.support.SingleContextSource;
+
+import uk.ac.cardiff.model.event.auxiliary.PrincipalInformation;
+
+/**
+ * An in-memory copy of the principal, school and affiliation attributes of
+ * every entry matching a filter under the LDAP base, so that a principal can
+ * be resolved without a directory search.
+ * <p>
+ * The mirror is built with a paged search, then kept current by searching
+ * periodically for entries whose {@code timestampAttribute} (modifyTimestamp by
+ * default) is at or after the latest seen. Deleted entries do not appear in
+ * those searches, so the mirror is also rebuilt in full at a longer interval.
+ * </p>
+ * <p>
+ * Principal names are matched ignoring case, as LDAP does. A principal held by
+ * more than one entry resolves to nothing, as a search would have several
+ * results.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class LdapDirectoryMirror {
+
+	private static final Logger log = LoggerFactory.getLogger(LdapDirectoryMirror.class);
+
+	/**
+	 * Marks a principal that is held by more than one entry.
+	 */
+	private static final PrincipalInformation AMBIGUOUS = new PrincipalInformation();
+
+	private final ContextSource contextSource;
+
+	private final String filter;
+
+	private final String principalAttribute;
+
+	private final String schoolAttribute;
+
+	private final String affiliationAttribute;
+
+	private final String timestampAttribute;
+
+	private final int pageSize;
+
+	/**
+	 * The principal information of each lower cased principal name, read without
+	 * locking. Replaced whole on a full sync.
+	 */
+	private volatile Map<String, PrincipalInformation> principals = new ConcurrentHashMap<>();
+
+	/**
+	 * The entry of each DN, only used while holding the lock of this mirror.
+	 */
+	private Map<String, MirrorEntry> byDn = new HashMap<>();
+
+	/**
+	 * The DNs holding each lower cased principal name, only used while holding
+	 * the lock of this mirror.
+	 */
+	private Map<String, Set<String>> dnsByPrincipal = new HashMap<>();
+
+	/**
+	 * The latest {@code timestampAttribute} value seen, in generalized time.
+	 */
+	private volatile String latestTimestamp;
+
+	private volatile boolean ready;
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * The attributes mirrored for an entry.
+	 */
+	private static final class MirrorEntry {
+
+		private final Set<String> principalNames;
+
+		private final PrincipalInformation information;
+
+		private MirrorEntry(final Set<String> principalNames, final PrincipalInformation information) {
+			this.principalNames = principalNames;
+			this.information = information;
+		}
+	}
+
+	/**
+	 * @param contextSource
+	 *            the {@link ContextSource} of the directory, with the LDAP base
+	 *            to mirror.
+	 * @param filter
+	 *            the filter entries must match to be mirrored.
+	 * @param principalAttribute
+	 *            the attribute holding the principal name.
+	 * @param schoolAttribute
+	 *            the attribute holding the school, can be null.
+	 * @param affiliationAttribute
+	 *            the attribute holding the affiliation, can be null.
+	 * @param timestampAttribute
+	 *            the operational attribute holding the time an entry was last
+	 *            modified.
+	 * @param pageSize
+	 *            the number of entries in each page of a search.
+	 */
+	public LdapDirectoryMirror(@Nonnull final ContextSource contextSource, @Nonnull final String filter,
+			@Nonnull final String principalAttribute, @Nullable final String schoolAttribute,
+			@Nullable final String affiliationAttribute, @Nonnull final String timestampAttribute,
+			final int pageSize) {
+		this.contextSource = Objects.requireNonNull(contextSource);
+		this.filter = Objects.requireNonNull(filter);
+		this.principalAttribute = Objects.requireNonNull(principalAttribute);
+		this.schoolAttribute = schoolAttribute;
+		this.affiliationAttribute = affiliationAttribute;
+		this.timestampAttribute = Objects.requireNonNull(timestampAttribute);
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Build the mirror, then schedule the incremental and full syncs. If the
+	 * mirror can not be built it is not ready, and builds are retried at the
+	 * full sync interval.
+	 * 
+	 * @param syncIntervalMs
+	 *            how often, in ms, to search for modified entries.
+	 * @param fullSyncIntervalMs
+	 *            how often, in ms, to rebuild the mirror. If 0, it is never
+	 *            rebuilt.
+	 */
+	public synchronized void start(final long syncIntervalMs, final long fullSyncIntervalMs) {
+		stop();
+		fullSync();
+
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "ldap-directory-mirror");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (syncIntervalMs > 0) {
+			executor.scheduleWithFixedDelay(this::deltaSync, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+		}
+		if (fullSyncIntervalMs > 0) {
+			executor.scheduleWithFixedDelay(this::fullSync, fullSyncIntervalMs, fullSyncIntervalMs,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stop syncing the mirror. The mirror can still be read.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * @param principalName
+	 *            the principal to look for.
+	 * @return true if an entry of the mirror holds the principal, even if more
+	 *         than one does.
+	 */
+	public boolean holds(@Nonnull final String principalName) {
+		return principals.containsKey(principalName.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @param principalName
+	 *            the principal to resolve.
+	 * @return the {@link PrincipalInformation} of the only entry holding the
+	 *         principal, or null if there is no entry or more than one.
+	 */
+	public PrincipalInformation lookup(@Nonnull final String principalName) {
+		final PrincipalInformation information = principals.get(principalName.toLowerCase(Locale.ROOT));
+		return information == AMBIGUOUS ? null : information;
+	}
+
+	/**
+	 * Rebuild the mirror from a search of every matching entry, replacing the
+	 * current mirror once complete.
+	 */
+	public synchronized void fullSync() {
+		try {
+			final long start = System.currentTimeMillis();
+			final Map<String, MirrorEntry> entries = new HashMap<>();
+			final String[] latest = { null };
+			search(filter, (dn, entry, timestamp) -> {
+				entries.put(dn, entry);
+				latest[0] = later(latest[0], timestamp);
+			});
+
+			byDn = new HashMap<>();
+			dnsByPrincipal = new HashMap<>();
+			final Map<String, PrincipalInformation> rebuilt = new ConcurrentHashMap<>(entries.size() * 2);
+			for (final Map.Entry<String, MirrorEntry> entry : entries.entrySet()) {
+				byDn.put(entry.getKey(), entry.getValue());
+				for (final String principalName : entry.getValue().principalNames) {
+					dnsByPrincipal.computeIfAbsent(principalName, key -> new HashSet<>(1)).add(entry.getKey());
+				}
+			}
+			for (final String principalName : dnsByPrincipal.keySet()) {
+				rebuilt.put(principalName, resolve(principalName));
+			}
+			principals = rebuilt;
+			latestTimestamp = later(latestTimestamp, latest[0]);
+			ready = true;
+			log.info("LDAP directory mirror built with [{}] entries and [{}] principals in [{}ms]", byDn.size(),
+					rebuilt.size(), System.currentTimeMillis() - start);
+
+		} catch (final RuntimeException e) {
+			log.error("Could not build the LDAP directory mirror", e);
+		}
+	}
+
+	/**
+	 * Apply the entries modified since the latest timestamp seen to the mirror.
+	 */
+	public synchronized void deltaSync() {
+		if (ready == false || latestTimestamp == null) {
+			fullSync();
+			return;
+		}
+		try {
+			final String deltaFilter = "(&" + filter + "(" + timestampAttribute + ">=" + latestTimestamp + "))";
+			final List<String> modified = new ArrayList<>();
+			search(deltaFilter, (dn, entry, timestamp) -> {
+				apply(dn, entry);
+				latestTimestamp = later(latestTimestamp, timestamp);
+				modified.add(dn);
+			});
+			log.debug("LDAP directory mirror applied [{}] modified entries", modified.size());
+
+		} catch (final RuntimeException e) {
+			log.warn("Could not sync the LDAP directory mirror, will retry", e);
+		}
+	}
+
+	/**
+	 * Replace the entry of the DN, updating each principal it held or now holds.
+	 */
+	private void apply(final String dn, final MirrorEntry entry) {
+		final MirrorEntry previous = byDn.put(dn, entry);
+		final Set<String> affected = new HashSet<>(entry.principalNames);
+		if (previous != null) {
+			for (final String principalName : previous.principalNames) {
+				affected.add(principalName);
+				final Set<String> dns = dnsByPrincipal.get(principalName);
+				if (dns != null) {
+					dns.remove(dn);
+				}
+			}
+		}
+		for (final String principalName : entry.principalNames) {
+			dnsByPrincipal.computeIfAbsent(principalName, key -> new HashSet<>(1)).add(dn);
+		}
+		for (final String principalName : affected) {
+			final PrincipalInformation information = resolve(principalName);
+			if (information == null) {
+				dnsByPrincipal.remove(principalName);
+				principals.remove(principalName);
+			} else {
+				principals.put(principalName, information);
+			}
+		}
+	}
+
+	private PrincipalInformation resolve(final String principalName) {
+		final Set<String> dns = dnsByPrincipal.getOrDefault(principalName, Collections.emptySet());
+		if (dns.isEmpty()) {
+			return null;
+		}
+		if (dns.size() > 1) {
+			return AMBIGUOUS;
+		}
+		return byDn.get(dns.iterator().next()).information;
+	}
+
+	/**
+	 * Receives each entry found by a search.
+	 */
+	@FunctionalInterface
+	private interface EntryHandler {
+		void handle(String dn, MirrorEntry entry, String timestamp);
+	}
+
+	/**
+	 * Run a paged search on a single connection, as paging requires.
+	 */
+	private void search(final String searchFilter, final EntryHandler handler) {
+		final List<String> attributes = new ArrayList<>(4);
+		attributes.add(principalAttribute);
+		attributes.add(timestampAttribute);
+		if (schoolAttribute != null) {
+			attributes.add(schoolAttribute);
+		}
+		if (affiliationAttribute != null) {
+			attributes.add(affiliationAttribute);
+		}
+		final SearchControls controls = new SearchControls();
+		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		controls.setReturningAttributes(attributes.toArray(new String[attributes.size()]));
+		final PagedResultsDirContextProcessor pages = new PagedResultsDirContextProcessor(pageSize);
+
+		SingleContextSource.doWithSingleContext(contextSource, operations -> {
+			do {
+				operations.search("", searchFilter, controls, (ContextMapper<Void>) context -> {
+					final DirContextAdapter adapter = (DirContextAdapter) context;
+					final String[] values = adapter.getStringAttributes(principalAttribute);
+					final Set<String> principalNames = new HashSet<>();
+					if (values != null) {
+						for (final String value : values) {
+							principalNames.add(value.toLowerCase(Locale.ROOT));
+						}
+					}
+					final PrincipalInformation information = new PrincipalInformation();
+					if (affiliationAttribute != null) {
+						information.setAffiliation(adapter.getStringAttribute(affiliationAttribute));
+					}
+					if (schoolAttribute != null) {
+						information.setSchool(adapter.getStringAttribute(schoolAttribute));
+					}
+					handler.handle(adapter.getNameInNamespace(), new MirrorEntry(principalNames, information),
+							adapter.getStringAttribute(timestampAttribute));
+					return null;
+				}, pages);
+			} while (pages.hasMore());
+			return null;
+		});
+	}
+
+	/**
+	 * @return the later of two generalized times, which order as strings when
+	 *         in the same form.
+	 */
+	private static String later(final String first, final String second) {
+		if (first == null) {
+			return second;
+		}
+		if (second == null) {
+			return first;
+		}
+		return first.compareTo(second) >= 0 ? first : second;
+	}
+
+	/**
+	 * @return true if the mirror has been built and can answer
+	 *         {@link #lookup(String)}.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return the number of principals in the mirror.
+	 */
+	public int size() {
+		return principals.size();
+	}
+
+}
@@ -2,24 +2,48 @@ package uk.ac.cardiff.raptor.server.enrich;
 
 import static org.springframework.ldap.query.LdapQueryBuilder.query;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
 import org.springframework.ldap.core.AttributesMapper;
 import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.SingleContextSource;
+import org.springframework.ldap.support.LdapEncoder;
 
 import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 
 import uk.ac.cardiff.model.event.AuthenticationEvent;
 import uk.ac.cardiff.model.event.Event;
@@ -31,6 +55,13 @@ import uk.ac.cardiff.model.event.auxiliary.PrincipalInformation;
  * {@link AuthenticationEvent} class. This limits possible lookups to the
  * {@link PrincipalInformation#setAffiliation(String)} and
  * {@link PrincipalInformation#setSchool(String)} fields.
+ * <p>
+ * {@link #enrichAll(List)} resolves the distinct principals of several
+ * {@link Event}s that are not cached with one search, by OR-ing the
+ * {@code sourcePrincipalLookupQuery} bound to each principal, at most
+ * {@code maxFilterClauses} principals per search. Each result is matched back
+ * to its principal by the value of the {@code principalSourceAttribute}.
+ * </p>
  * 
  * @author philsmart
  *
@@ -40,23 +71,131 @@ public class LdapEventAttributeEnricher extends AbstractEventAttributeEnricher {
 
 	private static final Logger log = LoggerFactory.getLogger(LdapEventAttributeEnricher.class);
 
+	/**
+	 * Finds the attribute compared to ?ppn in the {@code sourcePrincipalLookupQuery}
+	 * e.g. cn in (&(CardiffIDManIsPrimaryAccount=true)(cn=?ppn)).
+	 */
+	private static final Pattern PRINCIPAL_ATTRIBUTE = Pattern.compile("\\(([^()=~<>]+)=\\?ppn\\)");
+
+	/**
+	 * How long shutdown waits for a running snapshot to finish.
+	 */
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
 	private LdapTemplate ldap;
 
 	private String user;
 
 	/**
-	 * Sets the default cache after write expiry time to 10 minutes if
-	 * {@link #getCacheExpiryAfterWriteMs()} is null.
+	 * The maximum number of principals resolved by one search in
+	 * {@link #enrichAll(List)}. Directories often limit the size of a filter, so
+	 * larger windows are split over several searches.
+	 */
+	private int maxFilterClauses = 50;
+
+	/**
+	 * The name of the attribute in the source that holds the principal name, used
+	 * to match the results of a search for several principals to each principal.
+	 * If null, found from the attribute compared to ?ppn in the
+	 * {@code sourcePrincipalLookupQuery}.
+	 */
+	private String principalSourceAttribute;
+
+	/**
+	 * The file the principal cache is snapshotted to and restored from on
+	 * startup. No snapshots are taken if null or empty.
+	 */
+	private String cacheSnapshotFile;
+
+	/**
+	 * How often, in ms, the principal cache is snapshotted to the
+	 * {@code cacheSnapshotFile}. It is always snapshotted on shutdown.
+	 */
+	private long cacheSnapshotIntervalMs = 300000;
+
+	/**
+	 * If true, the principal cache is filled on startup from a paged search of
+	 * the directory, for principals that were not restored from the snapshot.
+	 * Startup waits for the search, which stops once the cache is full.
+	 */
+	private boolean cachePreload;
+
+	/**
+	 * The filter of the preload search. If null, the
+	 * {@code sourcePrincipalLookupQuery} with ?ppn replaced by *.
+	 */
+	private String cachePreloadFilter;
+
+	/**
+	 * The number of entries in each page of the preload search.
+	 */
+	private int cachePreloadPageSize = 500;
+
+	/**
+	 * Takes the periodic cache snapshots, null if no snapshots are taken.
+	 */
+	private ScheduledExecutorService snapshotExecutor;
+
+	/**
+	 * If true, principals are resolved from an {@link LdapDirectoryMirror} of
+	 * every entry matching the {@code mirrorFilter}, rather than by searching the
+	 * directory. The directory is only searched while the mirror is not ready,
+	 * or for a principal the mirror does not hold, e.g. one added since it last
+	 * synced, through the cache as usual.
 	 */
-	private final long DEFAULT_CACHE_EXPIRE_AFTER_WRITE = 600000;
+	private boolean mirror;
 
-	private final int MAX_CACHE_SIZE = 1000;
+	/**
+	 * The filter of the entries mirrored. If null, the
+	 * {@code sourcePrincipalLookupQuery} with ?ppn replaced by *.
+	 */
+	private String mirrorFilter;
+
+	/**
+	 * The number of entries in each page of a mirror search.
+	 */
+	private int mirrorPageSize = 500;
+
+	/**
+	 * How often, in ms, the mirror searches for entries modified since it last
+	 * synced.
+	 */
+	private long mirrorSyncIntervalMs = 60000;
+
+	/**
+	 * How often, in ms, the mirror is rebuilt in full, which removes deleted
+	 * entries. Never rebuilt if 0 or less.
+	 */
+	private long mirrorFullSyncIntervalMs = 3600000;
+
+	/**
+	 * The mirror of the directory, null if the {@code mirror} is not used.
+	 */
+	private volatile LdapDirectoryMirror directoryMirror;
 
 	/**
 	 * LDAP results cache, can be null if not enabled. The key is principal name,
-	 * the value is a {@link PrincipalInformation} object.
+	 * the value is a {@link PrincipalInformation} object. Principals that are not
+	 * cached are loaded from LDAP by the cache, so concurrent lookups of one
+	 * principal share a single search. If {@code cacheRefreshAfterWriteMs} is
+	 * set, an entry read after that time is reloaded in the background while its
+	 * current value continues to be served.
+	 */
+	private LoadingCache<String, PrincipalInformation> cache;
+
+	/**
+	 * Principals that LDAP had no single result for, and why. Can be null if not
+	 * enabled. Consulted before the {@code cache}, so these principals are not
+	 * searched for again until their entry expires.
+	 */
+	private Cache<String, Unresolved> negativeCache;
+
+	/**
+	 * Why a principal could not be resolved.
 	 */
-	private Cache<String, PrincipalInformation> cache;
+	private enum Unresolved {
+		NO_MATCH, MULTIPLE_MATCHES
+	}
 
 	public void init() {
 		Objects.requireNonNull(sourcePrincipalLookupQuery);
@@ -66,19 +205,57 @@ public class LdapEventAttributeEnricher extends AbstractEventAttributeEnricher {
 				"Using principal school attribute name [{}], principal affiliation attribute name [{}], principal field name [{}]",
 				principalSchoolSourceAttribute, principalAffiliationSourceAttribute, principalFieldName);
 
-		if (isUseCache()) {
+		if (principalSourceAttribute == null) {
+			final Matcher matcher = PRINCIPAL_ATTRIBUTE.matcher(sourcePrincipalLookupQuery);
+			if (matcher.find()) {
+				principalSourceAttribute = matcher.group(1).trim();
+			}
+		}
+		if (maxFilterClauses < 1) {
+			throw new IllegalStateException("LdapEventEnricher requires maxFilterClauses of at least 1");
+		}
+		log.info("Batch lookups match principals on attribute [{}], with at most [{}] principals per filter",
+				principalSourceAttribute, maxFilterClauses);
 
-			final long expireAfterWrite = getCacheExpiryAfterWriteMs() == 0 ? DEFAULT_CACHE_EXPIRE_AFTER_WRITE
-					: getCacheExpiryAfterWriteMs();
+		startMirror();
 
-			log.info(
-					"LdapEventEnricher has been configured to use a cache of size [{}] and an expire-after-write of [{}ms]",
-					MAX_CACHE_SIZE, expireAfterWrite);
-			cache = Caffeine.newBuilder().expireAfterWrite(expireAfterWrite, TimeUnit.MILLISECONDS)
-					.maximumSize(MAX_CACHE_SIZE).build();
+		if (isUseCache()) {
+			cache = principalCacheBuilder().build(new PrincipalInformationLoader());
+			restoreSnapshot(cacheExpireAfterWrite());
+			if (cachePreload) {
+				preload();
+			}
+			scheduleSnapshots();
+			negativeCache = newNegativeCache();
 		}
 	}
 
+	/**
+	 * Build the {@link LdapDirectoryMirror} if the {@code mirror} is used, and
+	 * keep it in sync. Startup waits for the mirror to be built.
+	 */
+	private void startMirror() {
+		if (directoryMirror != null) {
+			directoryMirror.stop();
+			directoryMirror = null;
+		}
+		if (mirror == false) {
+			return;
+		}
+		if (principalSourceAttribute == null) {
+			log.warn("Can not mirror the directory without a principal source attribute, searching instead");
+			return;
+		}
+		final String filter = mirrorFilter != null ? mirrorFilter : sourcePrincipalLookupQuery.replace("?ppn", "*");
+		log.info("Mirroring directory entries matching [{}], syncing every [{}ms] and rebuilding every [{}ms]",
+				filter, mirrorSyncIntervalMs, mirrorFullSyncIntervalMs);
+		final LdapDirectoryMirror directory = new LdapDirectoryMirror(ldap.getContextSource(), filter,
+				principalSourceAttribute, principalSchoolSourceAttribute, principalAffiliationSourceAttribute,
+				"modifyTimestamp", mirrorPageSize);
+		directory.start(mirrorSyncIntervalMs, mirrorFullSyncIntervalMs);
+		directoryMirror = directory;
+	}
+
 	@Override
 	public void enrich(@Nonnull final Event event) throws EventAttributeEnricherException {
 		Objects.requireNonNull(event);
@@ -88,84 +265,449 @@ public class LdapEventAttributeEnricher extends AbstractEventAttributeEnricher {
 			log.trace("Event [{}] has principal value [{}]", event.getEventId(), value);
 
 			if (value.isPresent()) {
+				attach(event, value.get().toString(), resolvePrincipalInformation(value.get().toString()));
+			}
 
-				final List<PrincipalInformation> principalInfos = resolvePrincipalInformation(value.get().toString());
+		} catch (final Throwable e) {
+			throw new EventAttributeEnricherException(e);
+		}
+
+	}
 
-				if (principalInfos == null) {
-					log.trace("No results from LDAP for principal [{}]", value.get());
-					return;
+	/**
+	 * Enriches the {@link Event}s with one search per {@code maxFilterClauses}
+	 * distinct principals that are not already cached. A principal whose entry
+	 * could not be matched back by the {@code principalSourceAttribute} is looked
+	 * up on its own.
+	 */
+	@Override
+	public void enrichAll(@Nonnull final List<Event> events) throws EventAttributeEnricherException {
+		Objects.requireNonNull(events);
+		try {
+			final List<Event> withPrincipal = new ArrayList<>(events.size());
+			final List<String> principals = new ArrayList<>(events.size());
+			final Set<String> distinct = new LinkedHashSet<>();
+
+			for (final Event event : events) {
+				final Optional<Object> value = getPrincipalValueOffEvent(event);
+				if (value.isPresent()) {
+					withPrincipal.add(event);
+					principals.add(value.get().toString());
+					distinct.add(value.get().toString());
 				}
-				if (principalInfos.size() == 1) {
-					log.debug(
-							"Event [{}] has 1 result for principal from LDAP [{}], attaching principal information [{},{}]",
-							event.getEventId(), value.get(), principalInfos.get(0).getAffiliation(),
-							principalInfos.get(0).getSchool());
-					setValueOnObject(event, principalInfos.get(0), "principalInformation");
-
-					if (isUseCache()) {
-						cache.put(value.get().toString(), principalInfos.get(0));
+			}
+			log.debug("Resolving [{}] principals for [{}] events", distinct.size(), events.size());
+
+			final Map<String, PrincipalInformation> resolved = new HashMap<>();
+			final LdapDirectoryMirror directory = directoryMirror;
+			if (directory != null && directory.isReady()) {
+				for (final Iterator<String> names = distinct.iterator(); names.hasNext();) {
+					final String principalName = names.next();
+					if (directory.holds(principalName)) {
+						resolved.put(principalName, directory.lookup(principalName));
+						names.remove();
 					}
-				} else {
-					log.debug("LDAP has {} results for principal [{}], requires 1 result to attach to event",
-							principalInfos.size(), value.get());
 				}
+				log.trace("[{}] principals are not in the directory mirror, looking them up", distinct.size());
+			}
+			if (isUseCache() && negativeCache != null) {
+				distinct.removeAll(negativeCache.getAllPresent(distinct).keySet());
+			}
+			if (distinct.isEmpty() == false) {
+				resolved.putAll(isUseCache() ? cache.getAll(distinct) : searchUnique(distinct));
+			}
 
+			for (int i = 0; i < withPrincipal.size(); i++) {
+				attach(withPrincipal.get(i), principals.get(i), resolved.get(principals.get(i)));
 			}
 
 		} catch (final Throwable e) {
 			throw new EventAttributeEnricherException(e);
 		}
+	}
 
+	/**
+	 * Attach the {@link PrincipalInformation} to the {@link Event}, if one was
+	 * found for the principal.
+	 */
+	private void attach(final Event event, final String principalName, final PrincipalInformation principalInfo) {
+
+		if (principalInfo == null) {
+			log.trace("No single result from LDAP for principal [{}]", principalName);
+			return;
+		}
+		log.debug("Event [{}] has 1 result for principal from LDAP [{}], attaching principal information [{},{}]",
+				event.getEventId(), principalName, principalInfo.getAffiliation(), principalInfo.getSchool());
+		setValueOnObject(event, principalInfo, "principalInformation");
 	}
 
 	/**
-	 * Resolve school and affiliation from the principalName by replacing the ?ppn
-	 * variable in the {@code sourcePrincipalLookupQuery} and running the filter
-	 * against the configured ldap server. If caching is enabled, the
-	 * {@link PrincipalInformation} is first looked up from the cache, only
-	 * performing the LDAP search if it can not be found (does not exist, or cache
-	 * entry has expired).
+	 * Resolve school and affiliation from the principalName. If the directory is
+	 * mirrored and the mirror is ready, it is resolved from the mirror without
+	 * searching the directory. Otherwise, if caching is enabled, the
+	 * {@link PrincipalInformation} is looked up from the cache, which only
+	 * performs the LDAP search if it can not be found (does not exist, or cache
+	 * entry has expired). Concurrent lookups of a principal that is not
+	 * cached wait for the one search.
 	 * 
 	 * @param principalName
 	 *            the ppn to resolve school and affiliation for.
-	 * @return a {@link List} of {@link PrincipalInformation}.
+	 * @return the {@link PrincipalInformation}, or null if LDAP does not have
+	 *         exactly one result for the principal.
 	 */
-	private List<PrincipalInformation> resolvePrincipalInformation(final String principalName) {
+	private PrincipalInformation resolvePrincipalInformation(final String principalName) {
 
+		final LdapDirectoryMirror directory = directoryMirror;
+		if (directory != null && directory.isReady()) {
+			if (directory.holds(principalName)) {
+				log.trace("Resolving principal [{}] from the directory mirror", principalName);
+				return directory.lookup(principalName);
+			}
+			log.trace("Principal [{}] is not in the directory mirror, looking it up", principalName);
+		}
 		if (isUseCache()) {
 			log.debug("Performing cache lookup for principal [{}]", principalName);
-			final PrincipalInformation found = cache.getIfPresent(principalName);
-			log.trace("Principal [{}] was in cache [{}], PrincipalInformation is [{}]", principalName,
-					found == null ? "no" : "yes", found);
-			if (found != null) {
-				final List<PrincipalInformation> information = new ArrayList<PrincipalInformation>();
-				information.add(found);
-				return information;
-				// else go find from LDAP
+			if (negativeCache != null) {
+				final Unresolved unresolved = negativeCache.getIfPresent(principalName);
+				if (unresolved != null) {
+					log.trace("Principal [{}] is in the negative cache, [{}]", principalName, unresolved);
+					return null;
+				}
 			}
+			return cache.get(principalName);
 		}
+		return unique(principalName, searchPrincipal(principalName));
+
+	}
 
-		final String boundFilter = sourcePrincipalLookupQuery.replace("?ppn", principalName);
+	/**
+	 * Search for a principal by replacing the ?ppn variable in the
+	 * {@code sourcePrincipalLookupQuery} and running the filter against the
+	 * configured ldap server.
+	 * 
+	 * @param principalName
+	 *            the ppn to resolve school and affiliation for.
+	 * @return a {@link List} of {@link PrincipalInformation}.
+	 */
+	private List<PrincipalInformation> searchPrincipal(final String principalName) {
+
+		final String boundFilter = bindFilter(principalName);
 		log.trace("LDAP Filter is [{}]", boundFilter);
 
+		final long start = System.nanoTime();
 		final List<PrincipalInformation> principalInfos = ldap.search(query().filter(boundFilter),
-				(AttributesMapper<PrincipalInformation>) attrs -> {
+				(AttributesMapper<PrincipalInformation>) this::toPrincipalInformation);
+		getLookupTelemetry().record(start, principalInfos.size());
 
-					final PrincipalInformation information = new PrincipalInformation();
+		return principalInfos;
+	}
 
-					if (principalAffiliationSourceAttribute != null) {
-						information.setAffiliation(safeGetForcedString(attrs.get(principalAffiliationSourceAttribute)));
-					}
-					if (principalSchoolSourceAttribute != null) {
-						information.setSchool(safeGetForcedString(attrs.get(principalSchoolSourceAttribute)));
-					}
+	/**
+	 * Search for the principals, at most {@code maxFilterClauses} per search.
+	 * 
+	 * @param principalNames
+	 *            the ppns to resolve school and affiliation for.
+	 * @return a {@link Map} of principal name to {@link PrincipalInformation},
+	 *         for each principal LDAP has exactly one result for.
+	 */
+	private Map<String, PrincipalInformation> searchUnique(final Iterable<? extends String> principalNames) {
+
+		final List<String> toSearch = new ArrayList<>();
+		principalNames.forEach(toSearch::add);
+
+		final Map<String, PrincipalInformation> found = new HashMap<>();
+		for (int from = 0; from < toSearch.size(); from += maxFilterClauses) {
+			final List<String> chunk = toSearch.subList(from, Math.min(toSearch.size(), from + maxFilterClauses));
+			final Map<String, List<PrincipalInformation>> results = searchPrincipals(chunk);
+			for (final String principalName : chunk) {
+				final PrincipalInformation principalInfo = unique(principalName, results.get(principalName));
+				if (principalInfo != null) {
+					found.put(principalName, principalInfo);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the only {@link PrincipalInformation} found for the principal, or
+	 *         null if there is not exactly one, in which case the principal is
+	 *         added to the {@code negativeCache}.
+	 */
+	private PrincipalInformation unique(final String principalName, final List<PrincipalInformation> principalInfos) {
+		if (principalInfos == null || principalInfos.isEmpty()) {
+			log.trace("No results from LDAP for principal [{}]", principalName);
+			remember(principalName, Unresolved.NO_MATCH);
+			return null;
+		}
+		if (principalInfos.size() > 1) {
+			log.debug("LDAP has {} results for principal [{}], requires 1 result to attach to event",
+					principalInfos.size(), principalName);
+			remember(principalName, Unresolved.MULTIPLE_MATCHES);
+			return null;
+		}
+		return principalInfos.get(0);
+	}
+
+	/**
+	 * Restore the entries of the {@code cacheSnapshotFile} written less than
+	 * half the expiry time ago into the cache. A restored entry is kept for a
+	 * full expiry time again, so this limits it to one and a half expiry times
+	 * since it was read from the directory.
+	 */
+	private void restoreSnapshot(final long expireAfterWrite) {
+		final Path path = getSnapshotPath();
+		if (path == null) {
+			return;
+		}
+		final Map<String, PrincipalInformation> restored = PrincipalCacheSnapshot.read(path, expireAfterWrite / 2);
+		cache.putAll(restored);
+		log.info("Restored [{}] principals into the cache from [{}]", restored.size(), path);
+	}
 
-					return information;
+	/**
+	 * Put the principals found by a paged search of the directory into the cache,
+	 * if they are not already cached. A principal is matched to its entry by the
+	 * {@code principalSourceAttribute}, and is not cached if more than one entry
+	 * has it. The search stops once the principals found would fill the cache,
+	 * by their count or, if a maximum weight is set, by their weight, so no more
+	 * than a cache worth of principals is held while searching.
+	 */
+	private void preload() {
+		if (principalSourceAttribute == null) {
+			log.warn("Can not preload the principal cache without a principal source attribute");
+			return;
+		}
+		final String filter = cachePreloadFilter != null ? cachePreloadFilter
+				: sourcePrincipalLookupQuery.replace("?ppn", "*");
+		final boolean byWeight = getCacheMaximumWeight() > 0;
+		final long limit = byWeight ? getCacheMaximumWeight() : getCacheMaximumSize();
+		final AtomicLong filled = new AtomicLong();
+		final Map<String, PrincipalInformation> found = new HashMap<>();
+		final Set<String> ambiguous = new HashSet<>();
+		final SearchControls controls = new SearchControls();
+		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		final PagedResultsDirContextProcessor pages = new PagedResultsDirContextProcessor(cachePreloadPageSize);
+
+		log.info("Preloading the principal cache with filter [{}], pages of [{}]", filter, cachePreloadPageSize);
+		try {
+			SingleContextSource.doWithSingleContext(ldap.getContextSource(), operations -> {
+				do {
+					operations.search("", filter, controls, (AttributesMapper<Void>) attrs -> {
+						final Attribute principal = attrs.get(principalSourceAttribute);
+						if (principal == null || filled.get() >= limit) {
+							return null;
+						}
+						final PrincipalInformation information = toPrincipalInformation(attrs);
+						final NamingEnumeration<?> values = principal.getAll();
+						while (values.hasMore()) {
+							final String principalName = values.next().toString();
+							if (found.put(principalName, information) != null) {
+								ambiguous.add(principalName);
+							} else {
+								filled.addAndGet(byWeight ? weigh(principalName, information) : 1);
+							}
+						}
+						return null;
+					}, pages);
+				} while (pages.hasMore() && filled.get() < limit);
+				return null;
+			});
+		} catch (final RuntimeException e) {
+			log.warn("Could not preload the principal cache, continuing with [{}] principals found", found.size(), e);
+		}
 
-				});
+		found.keySet().removeAll(ambiguous);
+		found.keySet().removeAll(cache.asMap().keySet());
+		cache.putAll(found);
+		log.info("Preloaded [{}] principals into the cache, [{}] were ambiguous", found.size(), ambiguous.size());
+	}
 
-		return principalInfos;
+	private void scheduleSnapshots() {
+		if (snapshotExecutor != null) {
+			snapshotExecutor.shutdownNow();
+			snapshotExecutor = null;
+		}
+		if (getSnapshotPath() == null || cacheSnapshotIntervalMs <= 0) {
+			return;
+		}
+		snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "principal-cache-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshotExecutor.scheduleWithFixedDelay(this::snapshot, cacheSnapshotIntervalMs, cacheSnapshotIntervalMs,
+				TimeUnit.MILLISECONDS);
+	}
 
+	/**
+	 * Write the principal cache to the {@code cacheSnapshotFile}, if set.
+	 */
+	public void snapshot() {
+		final Path path = getSnapshotPath();
+		if (path == null || cache == null) {
+			return;
+		}
+		try {
+			final int written = PrincipalCacheSnapshot.write(path, cache);
+			log.debug("Principal cache snapshot of [{}] principals written to [{}]", written, path);
+		} catch (final IOException e) {
+			log.error("Could not write principal cache snapshot [{}]", path, e);
+		}
+	}
+
+	/**
+	 * Stops the periodic snapshots and mirror syncs, takes a final snapshot once
+	 * any running snapshot has finished, then stops the cache refreshes. If the
+	 * running snapshot does not finish in time, no final snapshot is taken, as
+	 * both would write the same temporary file.
+	 */
+	@Override
+	public void shutdown() {
+		if (directoryMirror != null) {
+			directoryMirror.stop();
+		}
+		if (awaitSnapshots()) {
+			snapshot();
+		}
+		super.shutdown();
+	}
+
+	/**
+	 * Stops the periodic snapshots, waiting for a running snapshot to finish.
+	 * 
+	 * @return true if no snapshot is running.
+	 */
+	private boolean awaitSnapshots() {
+		if (snapshotExecutor == null) {
+			return true;
+		}
+		snapshotExecutor.shutdown();
+		try {
+			if (snapshotExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS) == false) {
+				log.warn("Principal cache snapshot was still running after [{}s], not taking a final snapshot",
+						SHUTDOWN_TIMEOUT_SECONDS);
+				snapshotExecutor.shutdownNow();
+				return false;
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			snapshotExecutor.shutdownNow();
+			return false;
+		}
+		return true;
+	}
+
+	private Path getSnapshotPath() {
+		if (cacheSnapshotFile == null || cacheSnapshotFile.trim().isEmpty()) {
+			return null;
+		}
+		return Paths.get(cacheSnapshotFile.trim());
+	}
+
+	private void remember(final String principalName, final Unresolved unresolved) {
+		if (isUseCache() && negativeCache != null) {
+			negativeCache.put(principalName, unresolved);
+		}
+	}
+
+	/**
+	 * Resolve several principals with one search, OR-ing the
+	 * {@code sourcePrincipalLookupQuery} bound to each principal. Each result is
+	 * assigned to the principal that matches a value of its
+	 * {@code principalSourceAttribute}, ignoring case as LDAP does. Principals
+	 * that no result could be matched to are looked up on their own if any
+	 * result was not matched, as the {@code principalSourceAttribute} may not
+	 * hold the principal name exactly.
+	 * 
+	 * @param principalNames
+	 *            the ppns to resolve school and affiliation for.
+	 * @return a {@link Map} of principal name to the {@link PrincipalInformation}
+	 *         found for it, a principal with no results is not mapped.
+	 */
+	private Map<String, List<PrincipalInformation>> searchPrincipals(final List<String> principalNames) {
+
+		final Map<String, List<PrincipalInformation>> found = new HashMap<>();
+		if (principalNames.size() == 1 || principalSourceAttribute == null) {
+			for (final String principalName : principalNames) {
+				found.put(principalName, searchPrincipal(principalName));
+			}
+			return found;
+		}
+
+		final Map<String, String> byValue = new HashMap<>();
+		final StringBuilder filter = new StringBuilder("(|");
+		for (final String principalName : principalNames) {
+			byValue.put(principalName.toLowerCase(Locale.ROOT), principalName);
+			filter.append(bindFilter(principalName));
+		}
+		filter.append(')');
+		log.trace("LDAP Filter is [{}]", filter);
+
+		final AtomicInteger unmatched = new AtomicInteger();
+		final AtomicInteger results = new AtomicInteger();
+		final long start = System.nanoTime();
+		ldap.search(query().filter(filter.toString()), (AttributesMapper<Void>) attrs -> {
+			results.incrementAndGet();
+			final String principalName = matchPrincipal(attrs.get(principalSourceAttribute), byValue);
+			if (principalName == null) {
+				unmatched.incrementAndGet();
+			} else {
+				found.computeIfAbsent(principalName, key -> new ArrayList<>(1)).add(toPrincipalInformation(attrs));
+			}
+			return null;
+		});
+		getLookupTelemetry().record(start, results.get());
+
+		if (unmatched.get() > 0) {
+			log.warn("[{}] LDAP results could not be matched to a principal by attribute [{}], looking up separately",
+					unmatched.get(), principalSourceAttribute);
+			for (final String principalName : principalNames) {
+				if (found.containsKey(principalName) == false) {
+					found.put(principalName, searchPrincipal(principalName));
+				}
+			}
+		}
+		return found;
+	}
+
+	private String matchPrincipal(final Attribute attr, final Map<String, String> byValue) throws NamingException {
+		if (attr == null) {
+			return null;
+		}
+		final NamingEnumeration<?> values = attr.getAll();
+		while (values.hasMore()) {
+			final Object value = values.next();
+			if (value != null) {
+				final String principalName = byValue.get(value.toString().toLowerCase(Locale.ROOT));
+				if (principalName != null) {
+					return principalName;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the {@code sourcePrincipalLookupQuery} with the ?ppn variable
+	 *         replaced by the principal name, escaped for use in a filter.
+	 */
+	private String bindFilter(final String principalName) {
+		return sourcePrincipalLookupQuery.replace("?ppn", LdapEncoder.filterEncode(principalName));
+	}
+
+	private PrincipalInformation toPrincipalInformation(final Attributes attrs) throws NamingException {
+
+		final PrincipalInformation information = new PrincipalInformation();
+
+		if (principalAffiliationSourceAttribute != null) {
+			information.setAffiliation(safeGetForcedString(attrs.get(principalAffiliationSourceAttribute)));
+		}
+		if (principalSchoolSourceAttribute != null) {
+			information.setSchool(safeGetForcedString(attrs.get(principalSchoolSourceAttribute)));
+		}
+
+		return information;
 	}
 
 	private String safeGetForcedString(final Attribute attr) throws NamingException {
@@ -175,6 +717,187 @@ public class LdapEventAttributeEnricher extends AbstractEventAttributeEnricher {
 		return attr.get().toString();
 	}
 
+	/**
+	 * @return the hit and miss statistics of the principal cache, or
+	 *         {@link CacheStats#empty()} if the cache is not used.
+	 */
+	@Override
+	public CacheStats getCacheStats() {
+		return cache == null ? CacheStats.empty() : cache.stats();
+	}
+
+	/**
+	 * @return the hit and miss statistics of the negative cache, or
+	 *         {@link CacheStats#empty()} if the negative cache is not used.
+	 */
+	@Override
+	public CacheStats getNegativeCacheStats() {
+		return negativeCache == null ? CacheStats.empty() : negativeCache.stats();
+	}
+
+	@Override
+	public long getCacheEstimatedSize() {
+		return cache == null ? 0 : cache.estimatedSize();
+	}
+
+	/**
+	 * @return the cacheSnapshotFile
+	 */
+	public String getCacheSnapshotFile() {
+		return cacheSnapshotFile;
+	}
+
+	/**
+	 * @param cacheSnapshotFile
+	 *            the cacheSnapshotFile to set
+	 */
+	public void setCacheSnapshotFile(final String cacheSnapshotFile) {
+		this.cacheSnapshotFile = cacheSnapshotFile;
+	}
+
+	/**
+	 * @return the cacheSnapshotIntervalMs
+	 */
+	public long getCacheSnapshotIntervalMs() {
+		return cacheSnapshotIntervalMs;
+	}
+
+	/**
+	 * @param cacheSnapshotIntervalMs
+	 *            the cacheSnapshotIntervalMs to set
+	 */
+	public void setCacheSnapshotIntervalMs(final long cacheSnapshotIntervalMs) {
+		this.cacheSnapshotIntervalMs = cacheSnapshotIntervalMs;
+	}
+
+	/**
+	 * @return the cachePreload
+	 */
+	public boolean isCachePreload() {
+		return cachePreload;
+	}
+
+	/**
+	 * @param cachePreload
+	 *            the cachePreload to set
+	 */
+	public void setCachePreload(final boolean cachePreload) {
+		this.cachePreload = cachePreload;
+	}
+
+	/**
+	 * @return the cachePreloadFilter
+	 */
+	public String getCachePreloadFilter() {
+		return cachePreloadFilter;
+	}
+
+	/**
+	 * @param cachePreloadFilter
+	 *            the cachePreloadFilter to set
+	 */
+	public void setCachePreloadFilter(final String cachePreloadFilter) {
+		this.cachePreloadFilter = cachePreloadFilter;
+	}
+
+	/**
+	 * @return the cachePreloadPageSize
+	 */
+	public int getCachePreloadPageSize() {
+		return cachePreloadPageSize;
+	}
+
+	/**
+	 * @param cachePreloadPageSize
+	 *            the cachePreloadPageSize to set
+	 */
+	public void setCachePreloadPageSize(final int cachePreloadPageSize) {
+		this.cachePreloadPageSize = cachePreloadPageSize;
+	}
+
+	/**
+	 * @return the {@link LdapDirectoryMirror}, or null if the directory is not
+	 *         mirrored.
+	 */
+	public LdapDirectoryMirror getDirectoryMirror() {
+		return directoryMirror;
+	}
+
+	/**
+	 * @return the mirror
+	 */
+	public boolean isMirror() {
+		return mirror;
+	}
+
+	/**
+	 * @param mirror
+	 *            the mirror to set
+	 */
+	public void setMirror(final boolean mirror) {
+		this.mirror = mirror;
+	}
+
+	/**
+	 * @return the mirrorFilter
+	 */
+	public String getMirrorFilter() {
+		return mirrorFilter;
+	}
+
+	/**
+	 * @param mirrorFilter
+	 *            the mirrorFilter to set
+	 */
+	public void setMirrorFilter(final String mirrorFilter) {
+		this.mirrorFilter = mirrorFilter;
+	}
+
+	/**
+	 * @return the mirrorPageSize
+	 */
+	public int getMirrorPageSize() {
+		return mirrorPageSize;
+	}
+
+	/**
+	 * @param mirrorPageSize
+	 *            the mirrorPageSize to set
+	 */
+	public void setMirrorPageSize(final int mirrorPageSize) {
+		this.mirrorPageSize = mirrorPageSize;
+	}
+
+	/**
+	 * @return the mirrorSyncIntervalMs
+	 */
+	public long getMirrorSyncIntervalMs() {
+		return mirrorSyncIntervalMs;
+	}
+
+	/**
+	 * @param mirrorSyncIntervalMs
+	 *            the mirrorSyncIntervalMs to set
+	 */
+	public void setMirrorSyncIntervalMs(final long mirrorSyncIntervalMs) {
+		this.mirrorSyncIntervalMs = mirrorSyncIntervalMs;
+	}
+
+	/**
+	 * @return the mirrorFullSyncIntervalMs
+	 */
+	public long getMirrorFullSyncIntervalMs() {
+		return mirrorFullSyncIntervalMs;
+	}
+
+	/**
+	 * @param mirrorFullSyncIntervalMs
+	 *            the mirrorFullSyncIntervalMs to set
+	 */
+	public void setMirrorFullSyncIntervalMs(final long mirrorFullSyncIntervalMs) {
+		this.mirrorFullSyncIntervalMs = mirrorFullSyncIntervalMs;
+	}
+
 	public LdapTemplate getLdap() {
 		return ldap;
 	}
@@ -198,4 +921,54 @@ public class LdapEventAttributeEnricher extends AbstractEventAttributeEnricher {
 		this.user = user;
 	}
 
+	/**
+	 * @return the maxFilterClauses
+	 */
+	public int getMaxFilterClauses() {
+		return maxFilterClauses;
+	}
+
+	/**
+	 * @param maxFilterClauses
+	 *            the maxFilterClauses to set
+	 */
+	public void setMaxFilterClauses(final int maxFilterClauses) {
+		this.maxFilterClauses = maxFilterClauses;
+	}
+
+	/**
+	 * @return the principalSourceAttribute
+	 */
+	public String getPrincipalSourceAttribute() {
+		return principalSourceAttribute;
+	}
+
+	/**
+	 * @param principalSourceAttribute
+	 *            the principalSourceAttribute to set
+	 */
+	public void setPrincipalSourceAttribute(final String principalSourceAttribute) {
+		this.principalSourceAttribute = principalSourceAttribute;
+	}
+
+	/**
+	 * Loads the {@link PrincipalInformation} of principals missing from the
+	 * cache. A principal without exactly one LDAP result loads as null, so is not
+	 * cached.
+	 */
+	private class PrincipalInformationLoader implements CacheLoader<String, PrincipalInformation> {
+
+		@Override
+		public PrincipalInformation load(final String principalName) {
+			log.trace("Principal [{}] was not in cache, searching LDAP", principalName);
+			return unique(principalName, searchPrincipal(principalName));
+		}
+
+		@Override
+		public Map<String, PrincipalInformation> loadAll(final Iterable<? extends String> principalNames) {
+			return searchUnique(principalNames);
+		}
+
+	}
+
 }
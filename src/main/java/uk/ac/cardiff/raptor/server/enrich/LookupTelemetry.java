@@ -0,0 +1,109 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Records the latency, and number of results, of each lookup an enricher makes
+ * against its source, e.g. an LDAP search. Values are recorded into
+ * {@link ConcurrentHistogram}s, so recording does not lock and costs well
+ * under a microsecond.
+ * <p>
+ * Latencies are recorded in microseconds, to three significant digits, from 1
+ * microsecond up to a minute; a longer lookup is recorded as a minute.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+public class LookupTelemetry {
+
+	private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+	private static final long MAX_RESULTS = 100000;
+
+	private final Histogram latencies = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+
+	private final Histogram results = new ConcurrentHistogram(MAX_RESULTS, 2);
+
+	/**
+	 * Record a completed lookup.
+	 * 
+	 * @param startNanos
+	 *            the {@link System#nanoTime()} the lookup started.
+	 * @param resultCount
+	 *            the number of results the lookup returned.
+	 */
+	public void record(final long startNanos, final int resultCount) {
+		final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+		latencies.recordValue(Math.min(Math.max(micros, 1), MAX_LATENCY_MICROS));
+		results.recordValue(Math.min(resultCount, MAX_RESULTS));
+	}
+
+	/**
+	 * @return the number of lookups recorded.
+	 */
+	public long getCount() {
+		return latencies.getTotalCount();
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile, from 0 to 100.
+	 * @return the lookup latency at the percentile, in milliseconds.
+	 */
+	public double getLatencyMs(final double percentile) {
+		return latencies.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	/**
+	 * @return the longest lookup latency, in milliseconds.
+	 */
+	public double getMaxLatencyMs() {
+		return latencies.getMaxValue() / 1000.0;
+	}
+
+	/**
+	 * @return the mean number of results of a lookup.
+	 */
+	public double getMeanResults() {
+		return results.getMean();
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile, from 0 to 100.
+	 * @return the number of results of a lookup at the percentile.
+	 */
+	public long getResults(final double percentile) {
+		return results.getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * @return the number of lookups that returned no results.
+	 */
+	public long getNoResultCount() {
+		return results.getCountAtValue(0);
+	}
+
+	/**
+	 * @return the number of lookups that returned more than one result.
+	 */
+	public long getSeveralResultsCount() {
+		return results.getTotalCount() - results.getCountAtValue(0) - results.getCountAtValue(1);
+	}
+
+	/**
+	 * Clear the lookups recorded so far.
+	 */
+	public void reset() {
+		latencies.reset();
+		results.reset();
+	}
+
+}
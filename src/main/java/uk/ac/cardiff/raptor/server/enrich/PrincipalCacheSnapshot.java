@@ -0,0 +1,178 @@
+package uk.ac.cardiff.raptor.server.enrich;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+
+import uk.ac.cardiff.model.event.auxiliary.PrincipalInformation;
+
+/**
+ * Reads and writes a snapshot of a principal cache to a gzipped local file, so
+ * that the cache can be restored when raptor-server restarts. The time each
+ * entry was written to the cache is kept, so entries older than a given age
+ * are not restored. The cache can not be told the age of a restored entry, so
+ * a restored entry is kept for a full expiry period again, and the age should
+ * be well under the expiry time to limit how stale a restored entry can be.
+ * <p>
+ * A snapshot is written to a temporary file which then replaces the snapshot,
+ * so a partially written snapshot is never read.
+ * </p>
+ *
+ * @author philsmart
+ *
+ */
+public final class PrincipalCacheSnapshot {
+
+	private static final Logger log = LoggerFactory.getLogger(PrincipalCacheSnapshot.class);
+
+	/**
+	 * Marks the start of a snapshot file, followed by {@link #SNAPSHOT_VERSION}.
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x52504353;
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private PrincipalCacheSnapshot() {
+
+	}
+
+	/**
+	 * Write every entry of the cache to the snapshot file. An entry whose age
+	 * the cache can not give, as it was removed while the snapshot was taken or
+	 * the cache does not expire after write, is left out rather than written as
+	 * new.
+	 *
+	 * @param path
+	 *            the snapshot file.
+	 * @param cache
+	 *            the cache to snapshot, which should expire after write.
+	 * @return the number of entries written.
+	 * @throws IOException
+	 *             if the snapshot could not be written.
+	 */
+	public static int write(@Nonnull final Path path, @Nonnull final Cache<String, PrincipalInformation> cache)
+			throws IOException {
+
+		final long now = System.currentTimeMillis();
+		final Policy.Expiration<String, PrincipalInformation> expiration = cache.policy().expireAfterWrite()
+				.orElse(null);
+		final Map<String, PrincipalInformation> entries = new HashMap<>(cache.asMap());
+		final Map<String, Long> writtenAt = new HashMap<>(entries.size());
+		for (final String principalName : entries.keySet()) {
+			final OptionalLong age = expiration == null ? OptionalLong.empty()
+					: expiration.ageOf(principalName, TimeUnit.MILLISECONDS);
+			if (age.isPresent()) {
+				writtenAt.put(principalName, now - age.getAsLong());
+			}
+		}
+		if (writtenAt.size() < entries.size()) {
+			log.debug("[{}] principals have no known age, and are not written to the snapshot",
+					entries.size() - writtenAt.size());
+		}
+
+		if (path.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(path.toAbsolutePath().getParent());
+		}
+		final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp)), 1 << 16))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(now);
+			out.writeInt(writtenAt.size());
+			for (final Map.Entry<String, Long> entry : writtenAt.entrySet()) {
+				final PrincipalInformation principalInfo = entries.get(entry.getKey());
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+				writeNullable(out, principalInfo.getAffiliation());
+				writeNullable(out, principalInfo.getSchool());
+			}
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return writtenAt.size();
+	}
+
+	/**
+	 * Read the entries of the snapshot file written less than the maximum age
+	 * ago.
+	 *
+	 * @param path
+	 *            the snapshot file.
+	 * @param maxAgeMs
+	 *            how long after it was written an entry is no longer read.
+	 * @return the principal name to {@link PrincipalInformation} of each entry
+	 *         younger than the maximum age, empty if there is no usable
+	 *         snapshot.
+	 */
+	public static Map<String, PrincipalInformation> read(@Nonnull final Path path, final long maxAgeMs) {
+
+		final Map<String, PrincipalInformation> entries = new HashMap<>();
+		if (Files.exists(path) == false) {
+			log.info("No principal cache snapshot found at [{}]", path);
+			return entries;
+		}
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path)), 1 << 16))) {
+
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				log.warn("Principal cache snapshot [{}] is not a recognised snapshot, ignoring", path);
+				return entries;
+			}
+			final long created = in.readLong();
+			final int size = in.readInt();
+			final long now = System.currentTimeMillis();
+			int tooOld = 0;
+			for (int i = 0; i < size; i++) {
+				final String principalName = in.readUTF();
+				final long written = in.readLong();
+				final PrincipalInformation information = new PrincipalInformation();
+				information.setAffiliation(readNullable(in));
+				information.setSchool(readNullable(in));
+				if (now - written < maxAgeMs) {
+					entries.put(principalName, information);
+				} else {
+					tooOld++;
+				}
+			}
+			log.info("Read [{}] principals from cache snapshot [{}] taken at [{}], [{}] were too old",
+					entries.size(), path, created, tooOld);
+			return entries;
+
+		} catch (final IOException | RuntimeException e) {
+			log.warn("Could not read principal cache snapshot [{}], ignoring", path, e);
+			entries.clear();
+			return entries;
+		}
+	}
+
+	private static void writeNullable(final DataOutputStream out, final String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullable(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+}
@@ -7,8 +7,10 @@ import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHandlingException;
 import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.util.MessageEventHelper;
 
 /**
  * Service that processes any exception that occurred during Event processing.
@@ -18,6 +20,11 @@ import uk.ac.cardiff.model.event.Event;
  * {@link ProcessingErrorConstants#RETRY_COUNT} in the headers. Constructs a new
  * {@link Message} of type {@link Event}, and sends it onward - typically for it
  * to be re-queued.
+ * <p>
+ * When the AMQP listener container is transacted, the first failure of an
+ * event is instead rethrown so the delivery is rolled back and redelivered.
+ * Only a failure of a redelivered event is sent onward.
+ * </p>
  * 
  * @author philsmart
  *
@@ -32,9 +39,25 @@ public class EventProcessExceptionService {
 	@Value("${amqp.event.queue.retry}")
 	private String retryQueue;
 
+	/**
+	 * If true, the AMQP listener container receives events in a transaction. The
+	 * first failure of an event received in that transaction is rethrown, so the
+	 * transaction rolls back and the event is redelivered instead of re-queued.
+	 */
+	@Value("${amqp.event.listener.transacted:false}")
+	private boolean listenerTransacted;
+
 	@ServiceActivator
 	public Message<Event> handle(final Message<MessageHandlingException> eventMsg) {
 
+		final Message<?> failedMessage = eventMsg.getPayload().getFailedMessage();
+		if (listenerTransacted && TransactionSynchronizationManager.isActualTransactionActive()
+				&& MessageEventHelper.isRedelivered(failedMessage) == false) {
+			log.warn("Error processing message with headers {}, rolling back the listener transaction to redeliver",
+					failedMessage.getHeaders(), eventMsg.getPayload());
+			throw eventMsg.getPayload();
+		}
+
 		if (eventMsg.getPayload().getFailedMessage().getPayload() instanceof Event) {
 			final Event event = (Event) eventMsg.getPayload().getFailedMessage().getPayload();
 
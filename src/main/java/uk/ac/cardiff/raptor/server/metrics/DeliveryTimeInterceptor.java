@@ -0,0 +1,38 @@
+package uk.ac.cardiff.raptor.server.metrics;
+
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+
+/**
+ * Sets the {@link PipelineLatencies#DELIVERED_NANOS_HEADER} of each
+ * {@link Message} sent to the channel, from which its end to end latency is
+ * measured once stored. Any value the header already has, e.g. from an earlier
+ * delivery of the event, is replaced.
+ * 
+ * @author philsmart
+ *
+ */
+public class DeliveryTimeInterceptor extends ChannelInterceptorAdapter {
+
+	private final PipelineLatencies latencies;
+
+	public DeliveryTimeInterceptor(@Nonnull final PipelineLatencies latencies) {
+		this.latencies = Objects.requireNonNull(latencies);
+	}
+
+	@Override
+	public Message<?> preSend(final Message<?> message, final MessageChannel channel) {
+		if (latencies.isEnabled() == false) {
+			return message;
+		}
+		return MessageBuilder.fromMessage(message).setHeader(PipelineLatencies.DELIVERED_NANOS_HEADER,
+				System.nanoTime()).build();
+	}
+
+}
@@ -0,0 +1,200 @@
+package uk.ac.cardiff.raptor.server.metrics;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.MBeanExporter;
+import org.springframework.jmx.export.annotation.AnnotationJmxAttributeSource;
+import org.springframework.jmx.export.assembler.MetadataMBeanInfoAssembler;
+import org.springframework.jmx.support.JmxUtils;
+import org.springframework.jmx.support.RegistrationPolicy;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.dao.EventBatch;
+
+/**
+ * Records the latency of each {@link PipelineStage} of the event pipeline, over
+ * rolling windows of {@code windowMs}. At the end of each window the
+ * percentiles of every stage are logged, and each {@link StageLatency} is
+ * published as an MBean, e.g. raptor.server:type=PipelineLatency,stage=STORE,
+ * reporting the last completed window.
+ * <p>
+ * Stages are timed by a {@link StageLatencyAdvice} on their handler. The end
+ * to end latency is measured from the {@link #DELIVERED_NANOS_HEADER} set by a
+ * {@link DeliveryTimeInterceptor} on the AMQP event channel.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+@Component
+public class PipelineLatencies {
+
+	private static final Logger log = LoggerFactory.getLogger(PipelineLatencies.class);
+
+	/**
+	 * The {@link System#nanoTime()} a {@link Message} was delivered from AMQP.
+	 * Only meaningful within this JVM.
+	 */
+	public static final String DELIVERED_NANOS_HEADER = "x_raptor_delivered_nanos";
+
+	private final Map<PipelineStage, StageLatency> stages = new EnumMap<>(PipelineStage.class);
+
+	@Value("${raptor.latency.enabled:true}")
+	private boolean enabled;
+
+	/**
+	 * The length of each window, in milliseconds.
+	 */
+	@Value("${raptor.latency.window-ms:60000}")
+	private long windowMs;
+
+	/**
+	 * If true, the percentiles of every stage are logged at the end of each
+	 * window in which any latency was recorded.
+	 */
+	@Value("${raptor.latency.log-summary:true}")
+	private boolean logSummary;
+
+	@Value("${raptor.latency.jmx.domain:raptor.server}")
+	private String domain;
+
+	@Inject
+	private ObjectProvider<MBeanServer> mbeanServer;
+
+	private final MBeanExporter exporter = new MBeanExporter();
+
+	private ScheduledExecutorService executor;
+
+	public PipelineLatencies() {
+		for (final PipelineStage stage : PipelineStage.values()) {
+			stages.put(stage, new StageLatency(stage));
+		}
+	}
+
+	@PostConstruct
+	public void init() throws MalformedObjectNameException {
+		if (enabled == false) {
+			log.info("Pipeline latencies are disabled");
+			return;
+		}
+		log.info("Recording pipeline latencies over windows of [{}ms]", windowMs);
+
+		final MBeanServer server = mbeanServer == null ? null : mbeanServer.getIfAvailable();
+		exporter.setServer(server != null ? server : JmxUtils.locateMBeanServer());
+		exporter.setAssembler(new MetadataMBeanInfoAssembler(new AnnotationJmxAttributeSource()));
+		exporter.setRegistrationPolicy(RegistrationPolicy.REPLACE_EXISTING);
+		for (final StageLatency stage : stages.values()) {
+			exporter.registerManagedResource(stage,
+					new ObjectName(domain + ":type=PipelineLatency,stage=" + stage.getStage()));
+		}
+
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "pipeline-latencies");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(this::roll, windowMs, windowMs, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdownNow();
+		exporter.destroy();
+	}
+
+	/**
+	 * Record the latency of a stage.
+	 * 
+	 * @param stage
+	 *            the stage that has finished.
+	 * @param startNanos
+	 *            the {@link System#nanoTime()} the stage started.
+	 */
+	public void record(final PipelineStage stage, final long startNanos) {
+		if (enabled) {
+			stages.get(stage).record(startNanos);
+		}
+	}
+
+	/**
+	 * Record the end to end latency of each {@link Message} of an
+	 * {@link EventBatch} that has been stored.
+	 * 
+	 * @param batch
+	 *            the stored {@link EventBatch}.
+	 */
+	public void recordStored(final EventBatch batch) {
+		if (enabled == false) {
+			return;
+		}
+		final StageLatency endToEnd = stages.get(PipelineStage.END_TO_END);
+		final List<Message<Event>> messages = batch.getMessages();
+		for (int i = 0; i < messages.size(); i++) {
+			final Long delivered = messages.get(i).getHeaders().get(DELIVERED_NANOS_HEADER, Long.class);
+			if (delivered != null) {
+				endToEnd.record(delivered);
+			}
+		}
+	}
+
+	/**
+	 * End the current window of every stage, and log the percentiles of the
+	 * window if {@code logSummary}.
+	 */
+	public synchronized void roll() {
+		final StringBuilder summary = new StringBuilder();
+		boolean recorded = false;
+		for (final StageLatency stage : stages.values()) {
+			final Histogram window = stage.roll();
+			recorded |= window.getTotalCount() > 0;
+			summary.append(String.format("%n  %-12s count [%d] p50 [%.3fms] p99 [%.3fms] p999 [%.3fms] max [%.3fms]",
+					stage.getStage(), window.getTotalCount(), window.getValueAtPercentile(50) / 1000.0,
+					window.getValueAtPercentile(99) / 1000.0, window.getValueAtPercentile(99.9) / 1000.0,
+					window.getMaxValue() / 1000.0));
+		}
+		if (logSummary && recorded) {
+			log.info("Pipeline latencies over the last [{}ms]:{}", windowMs, summary);
+		}
+	}
+
+	/**
+	 * @param stage
+	 *            the stage.
+	 * @return the latencies of the stage.
+	 */
+	public StageLatency getStage(final PipelineStage stage) {
+		return stages.get(stage);
+	}
+
+	/**
+	 * @return true if latencies are recorded.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+}
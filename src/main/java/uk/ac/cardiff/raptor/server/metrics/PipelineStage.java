@@ -0,0 +1,39 @@
+package uk.ac.cardiff.raptor.server.metrics;
+
+/**
+ * The stages of the event pipeline whose latency is recorded by
+ * {@link PipelineLatencies}.
+ * 
+ * @author philsmart
+ *
+ */
+public enum PipelineStage {
+
+	/**
+	 * The duplicate filter on the AMQP event channel, per event.
+	 */
+	DEDUP,
+
+	/**
+	 * Enrichment of each event of a batch in turn, until their lookups finish
+	 * if enriched asynchronously. Per event if raptor.store.batch.size is 1.
+	 */
+	ENRICH,
+
+	/**
+	 * Enrichment of a whole batch at once, if attribute.enrich.batch-lookups.
+	 */
+	BATCH_ENRICH,
+
+	/**
+	 * Storing a batch of events.
+	 */
+	STORE,
+
+	/**
+	 * From AMQP delivery until the event has been stored, including the time
+	 * spent waiting for its batch to fill, per event.
+	 */
+	END_TO_END;
+
+}
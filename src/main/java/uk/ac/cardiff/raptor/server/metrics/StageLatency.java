@@ -0,0 +1,114 @@
+package uk.ac.cardiff.raptor.server.metrics;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * The latencies of one {@link PipelineStage} over a rolling window. Latencies
+ * are recorded into an HdrHistogram {@link Recorder}, which is wait free, so
+ * recording costs tens of nanoseconds and never blocks a pipeline thread.
+ * Each call to {@link #roll()} swaps out the latencies recorded since the last
+ * roll, and those become the window reported until the next roll.
+ * <p>
+ * Latencies are recorded in microseconds, to three significant digits, up to a
+ * minute; a longer latency is recorded as a minute.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+@ThreadSafe
+@ManagedResource(description = "Latency of an event pipeline stage over the last completed window")
+public class StageLatency {
+
+	private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+	private final PipelineStage stage;
+
+	private final Recorder recorder = new Recorder(MAX_LATENCY_MICROS, 3);
+
+	/**
+	 * The latencies of the last completed window. Replaced, never modified, so
+	 * it can be read without locking.
+	 */
+	private volatile Histogram window = new Histogram(MAX_LATENCY_MICROS, 3);
+
+	/**
+	 * The total number of latencies in every completed window.
+	 */
+	private volatile long totalCount;
+
+	public StageLatency(@Nonnull final PipelineStage stage) {
+		this.stage = Objects.requireNonNull(stage);
+	}
+
+	/**
+	 * Record the latency of the stage.
+	 * 
+	 * @param startNanos
+	 *            the {@link System#nanoTime()} the stage started.
+	 */
+	public void record(final long startNanos) {
+		final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+		recorder.recordValue(Math.min(Math.max(micros, 0), MAX_LATENCY_MICROS));
+	}
+
+	/**
+	 * End the current window, its latencies replace those of the previous
+	 * window. Must only be called by one thread at a time.
+	 * 
+	 * @return the latencies of the window that has just ended.
+	 */
+	public Histogram roll() {
+		final Histogram latest = recorder.getIntervalHistogram();
+		window = latest;
+		totalCount += latest.getTotalCount();
+		return latest;
+	}
+
+	/**
+	 * @return the stage
+	 */
+	public PipelineStage getStage() {
+		return stage;
+	}
+
+	@ManagedAttribute(description = "The number of latencies recorded in the window")
+	public long getCount() {
+		return window.getTotalCount();
+	}
+
+	@ManagedAttribute(description = "The number of latencies recorded in every completed window")
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	@ManagedAttribute(description = "The median latency of the window, in milliseconds")
+	public double getP50Ms() {
+		return window.getValueAtPercentile(50) / 1000.0;
+	}
+
+	@ManagedAttribute(description = "The 99th percentile latency of the window, in milliseconds")
+	public double getP99Ms() {
+		return window.getValueAtPercentile(99) / 1000.0;
+	}
+
+	@ManagedAttribute(description = "The 99.9th percentile latency of the window, in milliseconds")
+	public double getP999Ms() {
+		return window.getValueAtPercentile(99.9) / 1000.0;
+	}
+
+	@ManagedAttribute(description = "The longest latency of the window, in milliseconds")
+	public double getMaxMs() {
+		return window.getMaxValue() / 1000.0;
+	}
+
+}
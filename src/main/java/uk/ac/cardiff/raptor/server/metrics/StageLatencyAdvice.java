@@ -0,0 +1,83 @@
+package uk.ac.cardiff.raptor.server.metrics;
+
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.integration.handler.advice.AbstractRequestHandlerAdvice;
+import org.springframework.messaging.Message;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import uk.ac.cardiff.raptor.server.dao.EventBatch;
+
+/**
+ * Records the time a handler takes to handle each {@link Message} as the
+ * latency of a {@link PipelineStage}, whether or not it succeeds. Only the
+ * handler is timed, not the handlers of its output channel. If the handler
+ * replies with a {@link ListenableFuture}, as an asynchronous service activator
+ * does, the latency is recorded once the future completes.
+ * <p>
+ * If {@code stored}, the handler stores {@link EventBatch}es, and the end to
+ * end latency of each {@link Message} of the batch is also recorded once it
+ * returns successfully. A batch whose handler throws was not stored, so has
+ * no end to end latency.
+ * </p>
+ * 
+ * @author philsmart
+ *
+ */
+public class StageLatencyAdvice extends AbstractRequestHandlerAdvice {
+
+	private final PipelineLatencies latencies;
+
+	private final PipelineStage stage;
+
+	private boolean stored;
+
+	public StageLatencyAdvice(@Nonnull final PipelineLatencies latencies, @Nonnull final PipelineStage stage) {
+		this.latencies = Objects.requireNonNull(latencies);
+		this.stage = Objects.requireNonNull(stage);
+	}
+
+	@Override
+	protected Object doInvoke(final ExecutionCallback callback, final Object target, final Message<?> message)
+			throws Exception {
+		if (latencies.isEnabled() == false) {
+			return callback.execute();
+		}
+		final long start = System.nanoTime();
+		boolean completed = true;
+		try {
+			final Object result = callback.execute();
+			if (result instanceof ListenableFuture) {
+				completed = false;
+				((ListenableFuture<?>) result).addCallback(reply -> latencies.record(stage, start),
+						failure -> latencies.record(stage, start));
+			} else if (stored && message.getPayload() instanceof EventBatch) {
+				latencies.recordStored((EventBatch) message.getPayload());
+			}
+			return result;
+
+		} finally {
+			if (completed) {
+				latencies.record(stage, start);
+			}
+		}
+	}
+
+	/**
+	 * @return the stored
+	 */
+	public boolean isStored() {
+		return stored;
+	}
+
+	/**
+	 * @param stored
+	 *            the stored to set
+	 */
+	public void setStored(final boolean stored) {
+		this.stored = stored;
+	}
+
+}
@@ -2,6 +2,7 @@ package uk.ac.cardiff.raptor.server.util;
 
 import java.util.Optional;
 
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.messaging.Message;
 
 import uk.ac.cardiff.model.event.Event;
@@ -25,4 +26,17 @@ public class MessageEventHelper {
 
 	}
 
+	/**
+	 * Return true if the {@link Message} was received from AMQP and has been
+	 * delivered before, typically because the transaction it was received in was
+	 * rolled back.
+	 * 
+	 * @param msg
+	 *            the {@link Message} to check.
+	 * @return true if the {@link AmqpHeaders#REDELIVERED} header is true.
+	 */
+	public static boolean isRedelivered(final Message<?> msg) {
+		return Boolean.TRUE.equals(msg.getHeaders().get(AmqpHeaders.REDELIVERED));
+	}
+
 }
@@ -0,0 +1,128 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.inject.Inject;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.test.context.TestPropertySource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.amqp.DecompressingPostProcessor;
+import uk.ac.cardiff.raptor.server.amqp.QpidBrokerTest;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=true",
+		"amqp.event.retry.start=false", "amqp.event.retry.compression.enabled=true",
+		"amqp.event.retry.compression.type=LZ4", "amqp.event.retry.compression.min-size=0" })
+public class AmqpCompressionTest extends BaseServerTest {
+
+	private static QpidBrokerTest broker;
+
+	@Inject
+	private AmqpTemplate ampqTemplate;
+
+	@Inject
+	private ConnectionFactory rabbitConnectionFactory;
+
+	@Inject
+	private MessageConverter eventMsgConverter;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	@BeforeClass
+	public static void startup() throws Exception {
+		broker = new QpidBrokerTest();
+		broker.startBroker();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		broker.stopBroker();
+	}
+
+	/**
+	 * An event a harvester compressed with gzip is decompressed by the listener
+	 * and stored.
+	 */
+	@Test
+	public void testGzipEventIsStored() throws Exception {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+		final ObjectMapper mapper = new ObjectMapper().registerModule(new JodaModule());
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(body)) {
+			gzip.write(mapper.writeValueAsBytes(mockEvent));
+		}
+
+		final MessageProperties props = new MessageProperties();
+		props.setContentType("application/json");
+		props.setContentEncoding("gzip:UTF-8");
+		props.setHeader("__TypeId__", "uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent");
+		ampqTemplate.send("raptor.harvest.test", new Message(body.toByteArray(), props));
+
+		Thread.sleep(1000);
+		Assert.assertNotNull(repo.findOne(mockEvent.getEventId()));
+	}
+
+	/**
+	 * An event published through the retry template is compressed with LZ4 on
+	 * the wire, and is read back unchanged once decompressed.
+	 */
+	@Test
+	public void testRetryPublishIsCompressed() throws Exception {
+		final Event mockEvent = mockEzproxyEvent("usernameone");
+		ampqTemplate.convertAndSend("raptor.harvest.test-retry", mockEvent);
+
+		final Message onWire = new RabbitTemplate(rabbitConnectionFactory).receive("raptor.harvest.test-retry",
+				5000);
+		Assert.assertNotNull(onWire);
+		Assert.assertEquals("lz4:UTF-8", onWire.getMessageProperties().getContentEncoding());
+
+		final Message decompressed = new DecompressingPostProcessor().postProcessMessage(onWire);
+		Assert.assertEquals("UTF-8", decompressed.getMessageProperties().getContentEncoding());
+		final Event read = (Event) eventMsgConverter.fromMessage(decompressed);
+		Assert.assertEquals(mockEvent.getEventId(), read.getEventId());
+	}
+
+	/**
+	 * A small body that decompresses beyond the maximum size is rejected rather
+	 * than read into memory.
+	 */
+	@Test(expected = AmqpRejectAndDontRequeueException.class)
+	public void testOversizedBodyIsRejected() throws Exception {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(body)) {
+			gzip.write(new byte[2 * 1024 * 1024]);
+		}
+		final MessageProperties props = new MessageProperties();
+		props.setContentType("application/json");
+		props.setContentEncoding("gzip:UTF-8");
+
+		final DecompressingPostProcessor decompressor = new DecompressingPostProcessor();
+		decompressor.setMaxDecompressedSize(1024 * 1024);
+		decompressor.postProcessMessage(new Message(body.toByteArray(), props));
+	}
+
+}
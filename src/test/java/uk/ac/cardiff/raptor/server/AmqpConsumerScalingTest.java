@@ -0,0 +1,144 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.integration.amqp.inbound.AmqpInboundChannelAdapter;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.raptor.server.amqp.QpidBrokerTest;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.AbstractEventAttributeEnricher;
+import uk.ac.cardiff.raptor.server.enrich.EventAttributeEnricherException;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "amqp.event.consumers.max=4", "amqp.event.prefetch=10" })
+public class AmqpConsumerScalingTest extends BaseServerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(AmqpConsumerScalingTest.class);
+
+	private static final int NO_EVENTS = 200;
+
+	private static final long ENRICH_LATENCY_MS = 10;
+
+	private static QpidBrokerTest broker;
+
+	@Inject
+	private AmqpTemplate ampqTemplate;
+
+	@Inject
+	private AmqpInboundChannelAdapter eventAmqpInbound;
+
+	@Inject
+	private SimpleMessageListenerContainer lcEventInbound;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	@BeforeClass
+	public static void startup() throws Exception {
+		broker = new QpidBrokerTest();
+		broker.startBroker();
+
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		broker.stopBroker();
+	}
+
+	/**
+	 * Each consumer enriches events at the same time as the others, so a latency
+	 * bound enricher, as with a remote LDAP server, has as many events in flight
+	 * as there are consumers. Throughput itself is measured by the load test.
+	 */
+	@Test
+	public void testConcurrencyScalesWithConsumers() throws InterruptedException {
+		final List<AbstractEventAttributeEnricher> enrichers = enricher.getEnrichers();
+		final LatencyEnricher latency = new LatencyEnricher();
+		enricher.setEnrichers(Collections.singletonList(latency));
+		try {
+			final long single = timeToStore(1, "single");
+			final int singleInFlight = latency.maxSeen.getAndSet(0);
+			final long multiple = timeToStore(4, "multiple");
+			final int multipleInFlight = latency.maxSeen.get();
+
+			log.info("Stored {} events in {}ms with 1 consumer, {}ms with 4 consumers", NO_EVENTS, single, multiple);
+			log.info("Enricher had at most [{}] events in flight with 1 consumer, [{}] with 4 consumers",
+					singleInFlight, multipleInFlight);
+			Assert.assertEquals(1, singleInFlight);
+			Assert.assertEquals(4, multipleInFlight);
+
+		} finally {
+			enricher.setEnrichers(enrichers);
+		}
+	}
+
+	private long timeToStore(final int consumers, final String prefix) throws InterruptedException {
+		repo.deleteAll();
+		for (int i = 0; i < NO_EVENTS; i++) {
+			ampqTemplate.convertAndSend("raptor.harvest.test", mockShibEvent(prefix + "-user-" + i));
+		}
+
+		lcEventInbound.setConcurrentConsumers(consumers);
+		final long start = System.currentTimeMillis();
+		eventAmqpInbound.start();
+		try {
+			while (repo.count() < NO_EVENTS) {
+				Assert.assertTrue("Timed out storing events", System.currentTimeMillis() - start < 60000);
+				Thread.sleep(50);
+			}
+			return System.currentTimeMillis() - start;
+		} finally {
+			eventAmqpInbound.stop();
+		}
+	}
+
+	/**
+	 * Simulates a remote attribute source by taking a fixed time to enrich each
+	 * event, recording the most events it was asked to enrich at once.
+	 */
+	private static class LatencyEnricher extends AbstractEventAttributeEnricher {
+
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		private final AtomicInteger maxSeen = new AtomicInteger();
+
+		LatencyEnricher() {
+			setForClass(ShibbolethIdpAuthenticationEvent.class);
+		}
+
+		@Override
+		public void enrich(@Nonnull final Event event) throws EventAttributeEnricherException {
+			maxSeen.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(ENRICH_LATENCY_MS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new EventAttributeEnricherException(e);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+	}
+
+}
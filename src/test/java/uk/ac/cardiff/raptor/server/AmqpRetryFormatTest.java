@@ -0,0 +1,74 @@
+package uk.ac.cardiff.raptor.server;
+
+import javax.inject.Inject;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.raptor.server.amqp.EventFormat;
+import uk.ac.cardiff.raptor.server.amqp.QpidBrokerTest;
+import uk.ac.cardiff.raptor.server.error.ProcessingErrorConstants;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "amqp.event.retry.format=SMILE" })
+public class AmqpRetryFormatTest extends BaseServerTest {
+
+	private static QpidBrokerTest broker;
+
+	@Inject
+	private ConnectionFactory rabbitConnectionFactory;
+
+	@Inject
+	private MessageConverter eventMsgConverter;
+
+	@Inject
+	MessageChannel sendToRetryChnl;
+
+	@BeforeClass
+	public static void startup() throws Exception {
+		broker = new QpidBrokerTest();
+		broker.startBroker();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		broker.stopBroker();
+	}
+
+	/**
+	 * A failed event still carries the content type headers of the JSON
+	 * delivery it was read from. It is retried in the configured format, with a
+	 * content type that matches its body.
+	 */
+	@Test
+	public void testRetryIsPublishedInRetryFormat() throws Exception {
+		final Event mockEvent = mockShibEvent("usernameone");
+
+		sendToRetryChnl.send(MessageBuilder.withPayload(mockEvent)
+				.setHeader(AmqpHeaders.CONTENT_TYPE, "application/json")
+				.setHeader(AmqpHeaders.CONTENT_ENCODING, "UTF-8").setHeader(AmqpHeaders.CONTENT_LENGTH, 42L)
+				.setHeader(ProcessingErrorConstants.RETRY_COUNT, 1)
+				.setHeader(ProcessingErrorConstants.ERROR_HEADER, "no real error").build());
+
+		final Message onWire = new RabbitTemplate(rabbitConnectionFactory).receive("raptor.harvest.test-retry", 5000);
+		Assert.assertNotNull(onWire);
+		Assert.assertEquals(EventFormat.SMILE.getContentType(), onWire.getMessageProperties().getContentType());
+
+		final Object read = eventMsgConverter.fromMessage(onWire);
+		Assert.assertTrue(read instanceof ShibbolethIdpAuthenticationEvent);
+		Assert.assertEquals(mockEvent.getEventId(), ((Event) read).getEventId());
+	}
+
+}
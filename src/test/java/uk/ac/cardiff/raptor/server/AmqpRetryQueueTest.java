@@ -56,19 +56,7 @@ public class AmqpRetryQueueTest extends BaseServerTest {
 
 		final Event mockEvent = mockShibEvent("scmps2");
 
-		final ObjectMapper mapper = new ObjectMapper();
-		mapper.registerModule(new com.fasterxml.jackson.datatype.joda.JodaModule());
-		final String json = mapper.writeValueAsString(mockEvent);
-		log.debug("Constructed JSON {}", json);
-
-		final org.springframework.amqp.core.MessageProperties props = new org.springframework.amqp.core.MessageProperties();
-		props.setHeader(ProcessingErrorConstants.RETRY_COUNT, 1);
-		props.setHeader(ProcessingErrorConstants.ERROR_HEADER, "no real error");
-		props.setHeader(ProcessingErrorConstants.RETRY_TIMESTAMP, System.currentTimeMillis());
-		props.setContentType("application/json");
-		props.setHeader("__TypeId__", "uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent");
-
-		final Message forQueue = new Message(json.getBytes(), props);
+		final Message forQueue = retryMessage(mockEvent);
 
 		ampqTemplate.send("raptor.harvest.test-retry", forQueue);
 
@@ -85,4 +73,41 @@ public class AmqpRetryQueueTest extends BaseServerTest {
 
 	}
 
+	/**
+	 * Every due event is taken from the retry queue in one poll, rather than one
+	 * per second.
+	 */
+	@Test
+	public void testDueRetryEventsDrainInOnePoll() throws Exception {
+		final int events = 5;
+		for (int i = 0; i < events; i++) {
+			ampqTemplate.send("raptor.harvest.test-retry", retryMessage(mockShibEvent("scmps2")));
+		}
+
+		final long deadline = System.currentTimeMillis() + 2500;
+		int received = 0;
+		while (received < events && System.currentTimeMillis() < deadline) {
+			if (ampqTemplate.receive("raptor.harvest.test", 100) != null) {
+				received++;
+			}
+		}
+		org.junit.Assert.assertEquals("Due retry events were not drained within a poll or two", events, received);
+	}
+
+	private Message retryMessage(final Event event) throws Exception {
+		final ObjectMapper mapper = new ObjectMapper();
+		mapper.registerModule(new com.fasterxml.jackson.datatype.joda.JodaModule());
+		final String json = mapper.writeValueAsString(event);
+		log.debug("Constructed JSON {}", json);
+
+		final org.springframework.amqp.core.MessageProperties props = new org.springframework.amqp.core.MessageProperties();
+		props.setHeader(ProcessingErrorConstants.RETRY_COUNT, 1);
+		props.setHeader(ProcessingErrorConstants.ERROR_HEADER, "no real error");
+		props.setHeader(ProcessingErrorConstants.RETRY_TIMESTAMP, System.currentTimeMillis());
+		props.setContentType("application/json");
+		props.setHeader("__TypeId__", "uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent");
+
+		return new Message(json.getBytes(), props);
+	}
+
 }
@@ -0,0 +1,96 @@
+package uk.ac.cardiff.raptor.server;
+
+import javax.inject.Inject;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.amqp.QpidBrokerTest;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=true",
+		"amqp.event.retry.start=false", "amqp.event.listener.transacted=true", "amqp.event.listener.tx-size=5",
+		"amqp.event.prefetch=10" })
+public class AmqpTransactedListenerTest extends BaseServerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(AmqpTransactedListenerTest.class);
+
+	private static QpidBrokerTest broker;
+
+	@Inject
+	private AmqpTemplate ampqTemplate;
+
+	@Inject
+	private EventRepository eventRepo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	@BeforeClass
+	public static void startup() throws Exception {
+		broker = new QpidBrokerTest();
+		broker.startBroker();
+
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		broker.stopBroker();
+	}
+
+	/**
+	 * Every delivery is acknowledged once committed, so nothing is left on the
+	 * event queue or sent to the retry queue.
+	 */
+	@Test
+	public void testDeliveriesCommittedAndAcknowledged() throws InterruptedException {
+		enricher.setExceptionTriggersRollbqck(false);
+		eventRepo.deleteAll();
+
+		for (int i = 0; i < 7; i++) {
+			ampqTemplate.convertAndSend("raptor.harvest.test", mockShibEvent("usernameone-" + i));
+		}
+		waitForEvents(7);
+
+		Assert.assertNull(ampqTemplate.receive("raptor.harvest.test", 2000));
+		Assert.assertNull(ampqTemplate.receive("raptor.harvest.test-retry", 1000));
+	}
+
+	/**
+	 * An event that can not be stored rolls back its delivery, and is only sent
+	 * to the retry queue when it fails again after being redelivered.
+	 */
+	@Test
+	public void testFailedEventRedeliveredThenRetried() {
+		enricher.setExceptionTriggersRollbqck(false);
+		eventRepo.deleteAll();
+
+		final Event mockEvent = mockShibEventLongResourceId("scmps2");
+		ampqTemplate.convertAndSend("raptor.harvest.test", mockEvent);
+
+		final Message recMsg = ampqTemplate.receive("raptor.harvest.test-retry", 10000);
+		Assert.assertNotNull("Expected event on retry queue", recMsg);
+		Assert.assertEquals(0, eventRepo.count());
+
+		compareEvent(recMsg, mockEvent, 1);
+	}
+
+	private void waitForEvents(final long expected) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		while (eventRepo.count() < expected && System.currentTimeMillis() - start < 10000) {
+			Thread.sleep(100);
+		}
+		log.info("Has {} events in repository, expected {}", eventRepo.count(), expected);
+		Assert.assertEquals(expected, eventRepo.count());
+	}
+
+}
@@ -0,0 +1,137 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.AuthenticationEvent;
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.AbstractEventAttributeEnricher;
+import uk.ac.cardiff.raptor.server.enrich.EventAttributeEnricherException;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "attribute.enrich.async=true", "attribute.enrich.async.pool-size=4",
+		"amqp.event.ack-before-store=true" })
+public class AsyncEnrichmentTest extends BaseServerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(AsyncEnrichmentTest.class);
+
+	private static final int NO_EVENTS = 40;
+
+	@Inject
+	MessageChannel amqpEventChnl;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	@Test
+	public void testEventsEnrichedOnPool() throws InterruptedException {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+		final Event mockEventTwo = mockEzproxyEvent("ezproxy-match");
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEventTwo).build()));
+
+		waitForStored(2);
+
+		final Event mockEventFromRepo = repo.findOne(mockEvent.getEventId());
+		Assert.assertNotNull(mockEventFromRepo);
+		Assert.assertEquals("P",
+				((AuthenticationEvent) mockEventFromRepo).getPrincipalInformation().getAffiliation());
+		Assert.assertEquals("schoolOne",
+				((AuthenticationEvent) mockEventFromRepo).getPrincipalInformation().getSchool());
+
+		final Event mockEventTwoFromRepo = repo.findOne(mockEventTwo.getEventId());
+		Assert.assertNotNull(mockEventTwoFromRepo);
+		Assert.assertEquals("ezproxyTestSchool",
+				((AuthenticationEvent) mockEventTwoFromRepo).getPrincipalInformation().getSchool());
+	}
+
+	/**
+	 * The sender is released before enrichment finishes, and an enricher never
+	 * has more than its max in flight events.
+	 */
+	@Test
+	public void testInFlightLimit() throws InterruptedException {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final List<AbstractEventAttributeEnricher> enrichers = enricher.getEnrichers();
+		final LatencyEnricher latency = new LatencyEnricher(2);
+		enricher.setEnrichers(Collections.singletonList(latency));
+		try {
+			for (int i = 0; i < NO_EVENTS; i++) {
+				Assert.assertTrue(
+						amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("async-user-" + i)).build()));
+			}
+			Assert.assertTrue("Sender should not wait for every event to be enriched", repo.count() < NO_EVENTS);
+
+			waitForStored(NO_EVENTS);
+			log.info("Enricher had at most [{}] events in flight", latency.maxSeen.get());
+			Assert.assertTrue(latency.maxSeen.get() <= 2);
+			Assert.assertTrue(latency.maxSeen.get() > 1);
+
+		} finally {
+			enricher.setEnrichers(enrichers);
+		}
+	}
+
+	private void waitForStored(final long expected) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		while (repo.count() < expected) {
+			Assert.assertTrue("Timed out storing events", System.currentTimeMillis() - start < 30000);
+			Thread.sleep(50);
+		}
+		Assert.assertEquals(expected, repo.count());
+	}
+
+	/**
+	 * Takes a fixed time to enrich each event, recording the most events it was
+	 * asked to enrich at once.
+	 */
+	private static class LatencyEnricher extends AbstractEventAttributeEnricher {
+
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		private final AtomicInteger maxSeen = new AtomicInteger();
+
+		LatencyEnricher(final int maxInFlight) {
+			setForClass(ShibbolethIdpAuthenticationEvent.class);
+			setMaxInFlight(maxInFlight);
+		}
+
+		@Override
+		public void enrich(@Nonnull final Event event) throws EventAttributeEnricherException {
+			maxSeen.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(20);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new EventAttributeEnricherException(e);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+	}
+
+}
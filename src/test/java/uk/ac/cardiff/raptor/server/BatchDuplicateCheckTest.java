@@ -0,0 +1,115 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.AuthenticationEvent;
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.AbstractEventAttributeEnricher;
+import uk.ac.cardiff.raptor.server.enrich.EventAttributeEnricherException;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "raptor.dedup.mode=BATCH", "raptor.store.batch.size=3",
+		"raptor.store.batch.linger-ms=500", "amqp.event.ack-before-store=true" })
+public class BatchDuplicateCheckTest extends BaseServerTest {
+
+	@Inject
+	MessageChannel amqpEventChnl;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	/**
+	 * An event sent twice in the same batch is only stored once.
+	 */
+	@Test
+	public void testDuplicateWithinBatchRemoved() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernametwo")).build()));
+
+		Assert.assertEquals(2, repo.count());
+	}
+
+	/**
+	 * An event already stored is removed from a later batch, the rest of that
+	 * batch is stored.
+	 */
+	@Test
+	public void testStoredDuplicateRemovedFromBatch() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernametwo")).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEzproxyEvent("ezproxy-match")).build()));
+		Assert.assertEquals(3, repo.count());
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("username-not-found")).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernamethree")).build()));
+		Assert.assertEquals(5, repo.count());
+	}
+
+	/**
+	 * Duplicates are removed from a batch before it is enriched, so an enricher
+	 * never looks up an event that is already stored or repeated in the batch.
+	 */
+	@Test
+	public void testDuplicatesNotEnriched() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernametwo")).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEzproxyEvent("ezproxy-match")).build()));
+		Assert.assertEquals(3, repo.count());
+
+		final List<AbstractEventAttributeEnricher> enrichers = enricher.getEnrichers();
+		final List<Integer> seen = new ArrayList<>();
+		final AbstractEventAttributeEnricher recording = new AbstractEventAttributeEnricher() {
+			@Override
+			public void enrich(@Nonnull final Event event) throws EventAttributeEnricherException {
+				seen.add(event.getEventId());
+			}
+		};
+		recording.setForClass(AuthenticationEvent.class);
+		enricher.setEnrichers(Collections.singletonList(recording));
+		try {
+			final Event newEvent = mockShibEvent("usernamethree");
+			Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+			Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(newEvent).build()));
+			Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(newEvent).build()));
+
+			Assert.assertEquals(4, repo.count());
+			Assert.assertEquals(Collections.singletonList(newEvent.getEventId()), seen);
+
+		} finally {
+			enricher.setEnrichers(enrichers);
+		}
+	}
+
+}
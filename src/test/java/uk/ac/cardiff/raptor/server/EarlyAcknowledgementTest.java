@@ -0,0 +1,72 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+public class EarlyAcknowledgementTest {
+
+	/**
+	 * Store batches and asynchronous enrichment acknowledge a delivery, even of a
+	 * batch message, before its events are stored, so fail startup unless
+	 * amqp.event.ack-before-store is set.
+	 */
+	@Test
+	public void testStoreBatchesRequireOptIn() throws Exception {
+		assertStartupFails("--raptor.store.batch.size=3");
+	}
+
+	@Test
+	public void testAsyncEnrichmentRequiresOptIn() throws Exception {
+		assertStartupFails("--attribute.enrich.async=true");
+	}
+
+	@Test
+	public void testOptInStarts() throws Exception {
+		try (ConfigurableApplicationContext context = start("--raptor.store.batch.size=3",
+				"--attribute.enrich.async=true", "--amqp.event.ack-before-store=true")) {
+			Assert.assertTrue(context.isActive());
+		}
+	}
+
+	private void assertStartupFails(final String property) throws Exception {
+		try (ConfigurableApplicationContext context = start(property)) {
+			Assert.fail("Started with " + property + " but without amqp.event.ack-before-store");
+		} catch (final RuntimeException e) {
+			Throwable cause = e;
+			while (cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			Assert.assertTrue(cause instanceof IllegalStateException);
+			Assert.assertTrue(cause.getMessage().contains("amqp.event.ack-before-store"));
+		}
+	}
+
+	/**
+	 * Starts the server with the test properties, and the given properties, as
+	 * command line arguments, which take precedence over the application
+	 * properties as {@code @TestPropertySource} does.
+	 */
+	private ConfigurableApplicationContext start(final String... properties) throws Exception {
+		final Properties test = new Properties();
+		try (InputStream in = getClass().getResourceAsStream("/application-test.properties")) {
+			test.load(in);
+		}
+		final List<String> args = new ArrayList<>();
+		for (final String name : test.stringPropertyNames()) {
+			args.add("--" + name + "=" + test.getProperty(name));
+		}
+		args.add("--server.port=0");
+		for (final String property : properties) {
+			args.add(property);
+		}
+		return new SpringApplicationBuilder(RaptorServerApplication.class).run(args.toArray(new String[args.size()]));
+	}
+
+}
@@ -0,0 +1,150 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.amqp.QpidBrokerTest;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "raptor.store.batch.size=3", "raptor.store.batch.linger-ms=500",
+		"amqp.event.ack-before-store=true" })
+public class EventBatchStoreTest extends BaseServerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(EventBatchStoreTest.class);
+
+	private static QpidBrokerTest broker;
+
+	@Inject
+	MessageChannel amqpEventChnl;
+
+	@Inject
+	private AmqpTemplate ampqTemplate;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	@BeforeClass
+	public static void startup() throws Exception {
+		broker = new QpidBrokerTest();
+		broker.startBroker();
+
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		broker.stopBroker();
+	}
+
+	/**
+	 * A full batch is written as soon as it is released, a partial batch only
+	 * once the linger time has passed.
+	 */
+	@Test
+	public void testBatchReleasedOnSizeAndLinger() throws InterruptedException {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernameone")).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernametwo")).build()));
+		Assert.assertEquals("Partial batch should not have been stored yet", 0, repo.count());
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEzproxyEvent("ezproxy-match")).build()));
+		Assert.assertEquals(3, repo.count());
+
+		Assert.assertTrue(
+				amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("username-not-found")).build()));
+		Assert.assertEquals(3, repo.count());
+
+		Thread.sleep(2000);
+		log.info("** Has {} events in repository after linger", repo.count());
+		Assert.assertEquals(4, repo.count());
+
+	}
+
+	/**
+	 * An event repeated within a batch, as a harvester re-send would be, is
+	 * stored once without failing the batch.
+	 */
+	@Test
+	public void testRepeatWithinBatchStoredOnce() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernametwo")).build()));
+
+		Assert.assertEquals(2, repo.count());
+		Assert.assertNull("Repeated event should not be retried",
+				ampqTemplate.receive("raptor.harvest.test-retry", 1000));
+	}
+
+	/**
+	 * An event that can not be stored is sent to the retry queue on its own, the
+	 * rest of its batch is still stored.
+	 */
+	@Test
+	public void testFailedEventIsolatedFromBatch() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event badEvent = mockShibEventLongResourceId("scmps2");
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernameone")).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(badEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernametwo")).build()));
+
+		Assert.assertEquals(2, repo.count());
+
+		final org.springframework.amqp.core.Message recMsg = ampqTemplate.receive("raptor.harvest.test-retry", 5000);
+		Assert.assertNotNull("Expected event on retry queue", recMsg);
+
+		compareEvent(recMsg, badEvent, 1);
+
+	}
+
+	/**
+	 * A message holding a batch of events is split, and each event is handled
+	 * as if it had been delivered on its own.
+	 */
+	@Test
+	public void testBatchMessageSplit() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event badEvent = mockShibEventLongResourceId("scmps2");
+		final List<Event> events = Arrays.asList(mockShibEvent("usernameone"), badEvent,
+				mockEzproxyEvent("ezproxy-match"), mockShibEvent("usernametwo"));
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(events).build()));
+
+		Assert.assertEquals(3, repo.count());
+
+		final org.springframework.amqp.core.Message recMsg = ampqTemplate.receive("raptor.harvest.test-retry", 5000);
+		Assert.assertNotNull("Expected event on retry queue", recMsg);
+
+		compareEvent(recMsg, badEvent, 1);
+
+	}
+
+}
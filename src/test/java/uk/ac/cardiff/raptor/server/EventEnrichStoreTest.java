@@ -1,6 +1,13 @@
 package uk.ac.cardiff.raptor.server;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
 import javax.inject.Inject;
+import javax.management.ObjectName;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -14,8 +21,14 @@ import org.springframework.test.context.TestPropertySource;
 import uk.ac.cardiff.model.event.AuthenticationEvent;
 import uk.ac.cardiff.model.event.Event;
 import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.raptor.server.dao.EventBatch;
 import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.AbstractEventAttributeEnricher;
+import uk.ac.cardiff.raptor.server.enrich.EventAttributeEnricherException;
 import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+import uk.ac.cardiff.raptor.server.metrics.PipelineLatencies;
+import uk.ac.cardiff.raptor.server.metrics.PipelineStage;
+import uk.ac.cardiff.raptor.server.metrics.StageLatencyAdvice;
 
 @TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
 		"amqp.event.retry.start=false" })
@@ -32,6 +45,9 @@ public class EventEnrichStoreTest extends BaseServerTest {
 	@Inject
 	private EventEnricherService enricher;
 
+	@Inject
+	private PipelineLatencies latencies;
+
 	@Test
 	public void checkDuplicates() {
 		log.info("Checking duplicates are not created");
@@ -168,6 +184,127 @@ public class EventEnrichStoreTest extends BaseServerTest {
 
 	}
 
+	/**
+	 * An enricher for a superclass applies to every subclass, after the
+	 * enrichers configured before it.
+	 */
+	@Test
+	public void testEnricherForSuperclass() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final List<AbstractEventAttributeEnricher> enrichers = enricher.getEnrichers();
+		final List<Event> seen = new ArrayList<>();
+		final List<String> schools = new ArrayList<>();
+		final AbstractEventAttributeEnricher recording = new AbstractEventAttributeEnricher() {
+			@Override
+			public void enrich(@Nonnull final Event event) throws EventAttributeEnricherException {
+				seen.add(event);
+				schools.add(((AuthenticationEvent) event).getPrincipalInformation().getSchool());
+			}
+		};
+		recording.setForClass(AuthenticationEvent.class);
+		final List<AbstractEventAttributeEnricher> withRecording = new ArrayList<>(enrichers);
+		withRecording.add(recording);
+		enricher.setEnrichers(withRecording);
+		try {
+			final Event shib = mockShibEvent("usernameone");
+			final Event ezproxy = mockEzproxyEvent("ezproxy-match");
+			Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(shib).build()));
+			Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(ezproxy).build()));
+
+			Assert.assertEquals(2, seen.size());
+			Assert.assertSame(shib, seen.get(0));
+			Assert.assertSame(ezproxy, seen.get(1));
+			Assert.assertEquals("schoolOne", schools.get(0));
+			Assert.assertEquals("ezproxyTestSchool", schools.get(1));
+
+		} finally {
+			enricher.setEnrichers(enrichers);
+		}
+	}
+
+	/**
+	 * Each stage an event passes through records its latency once, the
+	 * duplicate filter twice as the second event is filtered out there.
+	 */
+	@Test
+	public void testPipelineLatenciesRecorded() throws Exception {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+		latencies.roll();
+
+		final Event mockEvent = mockEventFixedId("usernameone");
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEventFixedId("usernameone")).build()));
+		latencies.roll();
+
+		Assert.assertEquals(2, latencies.getStage(PipelineStage.DEDUP).getCount());
+		Assert.assertEquals(1, latencies.getStage(PipelineStage.ENRICH).getCount());
+		Assert.assertEquals(1, latencies.getStage(PipelineStage.STORE).getCount());
+		Assert.assertEquals(1, latencies.getStage(PipelineStage.END_TO_END).getCount());
+		Assert.assertTrue(latencies.getStage(PipelineStage.END_TO_END).getMaxMs() >= latencies
+				.getStage(PipelineStage.STORE).getMaxMs());
+
+		Assert.assertTrue(ManagementFactory.getPlatformMBeanServer()
+				.isRegistered(new ObjectName("raptor.server:type=PipelineLatency,stage=END_TO_END")));
+	}
+
+	/**
+	 * A batch whose store throws has a STORE latency, but no END_TO_END latency
+	 * as its events were not stored.
+	 */
+	@Test
+	public void testFailedStoreHasNoEndToEndLatency() throws Exception {
+		latencies.roll();
+		final Message<Event> delivered = MessageBuilder.withPayload(mockShibEvent("usernameone"))
+				.setHeader(PipelineLatencies.DELIVERED_NANOS_HEADER, System.nanoTime()).build();
+		final EventBatch batch = new EventBatch(Collections.singletonList(delivered));
+
+		final StoreAdvice advice = new StoreAdvice(latencies);
+		advice.invoke(MessageBuilder.withPayload(batch).build(), false);
+		try {
+			advice.invoke(MessageBuilder.withPayload(batch).build(), true);
+			Assert.fail("The failed store was not rethrown");
+		} catch (final IllegalStateException e) {
+			// expected.
+		}
+		latencies.roll();
+
+		Assert.assertEquals(2, latencies.getStage(PipelineStage.STORE).getCount());
+		Assert.assertEquals(1, latencies.getStage(PipelineStage.END_TO_END).getCount());
+	}
+
+	/**
+	 * Runs a store that succeeds or fails through a {@link StageLatencyAdvice}.
+	 */
+	private static class StoreAdvice extends StageLatencyAdvice {
+
+		StoreAdvice(final PipelineLatencies latencies) {
+			super(latencies, PipelineStage.STORE);
+			setStored(true);
+		}
+
+		void invoke(final Message<?> message, final boolean fail) throws Exception {
+			doInvoke(new ExecutionCallback() {
+
+				@Override
+				public Object execute() {
+					if (fail) {
+						throw new IllegalStateException("Store failed");
+					}
+					return null;
+				}
+
+				@Override
+				public Object cloneAndExecute() {
+					return execute();
+				}
+			}, null, message);
+		}
+
+	}
+
 	private void printTable() {
 		int count = 1;
 		for (final Event event : repo.findAll()) {
@@ -0,0 +1,117 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.io.File;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.dao.EventIdIndex;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "raptor.dedup.index.enabled=true",
+		"raptor.dedup.index.snapshot-file=target/test-event-id-index.bin" })
+public class EventIdIndexTest extends BaseServerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(EventIdIndexTest.class);
+
+	@Inject
+	MessageChannel amqpEventChnl;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventIdIndex index;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	@Test
+	public void testStoredEventsAreIndexed() throws InterruptedException {
+		enricher.setExceptionTriggersRollbqck(false);
+		waitForIndex();
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+		Assert.assertFalse(index.contains(mockEvent.getEventId()));
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(index.contains(mockEvent.getEventId()));
+
+		// duplicate is filtered using the index, and confirmed by the repository
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertEquals(1, repo.count());
+	}
+
+	/**
+	 * The index is not told about deleted events, so a positive match must be
+	 * confirmed against the repository.
+	 */
+	@Test
+	public void testDeletedEventIsStoredAgain() throws InterruptedException {
+		enricher.setExceptionTriggersRollbqck(false);
+		waitForIndex();
+		repo.deleteAll();
+
+		final Event mockEvent = mockEventFixedId("usernameone");
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertEquals(1, repo.count());
+
+		repo.deleteAll();
+		Assert.assertTrue(index.contains(mockEvent.getEventId()));
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertEquals(1, repo.count());
+	}
+
+	/**
+	 * An event stored by another writer is not in the index, so is passed as new.
+	 * It is dropped once it fails to insert, and its id added to the index,
+	 * rather than being retried.
+	 */
+	@Test
+	public void testEventStoredByAnotherWriterIsDropped() throws InterruptedException {
+		enricher.setExceptionTriggersRollbqck(false);
+		waitForIndex();
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+		repo.save(mockEvent);
+		Assert.assertFalse(index.contains(mockEvent.getEventId()));
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(index.contains(mockEvent.getEventId()));
+		Assert.assertEquals(1, repo.count());
+	}
+
+	@Test
+	public void testSnapshot() throws InterruptedException {
+		waitForIndex();
+		final File snapshot = new File("target/test-event-id-index.bin");
+		snapshot.delete();
+
+		index.snapshot();
+
+		log.info("Snapshot written to [{}], size [{}]", snapshot.getAbsolutePath(), snapshot.length());
+		Assert.assertTrue(snapshot.exists());
+		Assert.assertTrue(snapshot.length() > 0);
+	}
+
+	private void waitForIndex() throws InterruptedException {
+		for (int i = 0; i < 50 && index.isReady() == false; i++) {
+			Thread.sleep(100);
+		}
+		Assert.assertTrue("Event id index was not built", index.isReady());
+	}
+
+}
@@ -0,0 +1,126 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.test.context.TestPropertySource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.model.event.EzproxyAuthenticationEvent;
+import uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent;
+import uk.ac.cardiff.raptor.server.amqp.EventFormat;
+import uk.ac.cardiff.raptor.server.amqp.EventMessageConverter;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "amqp.event.retry.format=SMILE" })
+public class EventMessageConverterTest extends BaseServerTest {
+
+	@Inject
+	private MessageConverter eventMsgConverter;
+
+	@Test
+	public void testEventsRoundTrip() {
+		final Event shib = mockShibEvent("usernameone");
+		final Event ezproxy = mockEzproxyEvent("usernameone");
+
+		final Message shibMessage = eventMsgConverter.toMessage(shib, new MessageProperties());
+		Assert.assertEquals(EventFormat.SMILE.getContentType(), shibMessage.getMessageProperties().getContentType());
+		Assert.assertEquals(ShibbolethIdpAuthenticationEvent.class.getName(),
+				shibMessage.getMessageProperties().getHeaders().get(EventMessageConverter.TYPE_ID_HEADER));
+
+		final Object shibRead = eventMsgConverter.fromMessage(shibMessage);
+		Assert.assertTrue(shibRead instanceof ShibbolethIdpAuthenticationEvent);
+		Assert.assertEquals(shib.getEventId(), ((Event) shibRead).getEventId());
+
+		final Object ezproxyRead = eventMsgConverter
+				.fromMessage(eventMsgConverter.toMessage(ezproxy, new MessageProperties()));
+		Assert.assertTrue(ezproxyRead instanceof EzproxyAuthenticationEvent);
+		Assert.assertEquals(ezproxy.getEventId(), ((Event) ezproxyRead).getEventId());
+	}
+
+	/**
+	 * An event as a client publishes it, written by its own Jackson 2
+	 * {@link ObjectMapper} with the type id set by hand.
+	 */
+	@Test
+	public void testPublishedEventIsRead() throws Exception {
+		final Event shib = mockShibEvent("usernameone");
+		final ObjectMapper mapper = new ObjectMapper().registerModule(new JodaModule());
+
+		final MessageProperties props = new MessageProperties();
+		props.setContentType("application/json");
+		props.setHeader("__TypeId__", "uk.ac.cardiff.model.event.ShibbolethIdpAuthenticationEvent");
+
+		final Object read = eventMsgConverter.fromMessage(new Message(mapper.writeValueAsBytes(shib), props));
+		Assert.assertTrue(read instanceof ShibbolethIdpAuthenticationEvent);
+		Assert.assertEquals(shib.getEventId(), ((Event) read).getEventId());
+	}
+
+	/**
+	 * An event published in each binary format, read by its content type.
+	 */
+	@Test
+	public void testBinaryFormatsAreRead() throws Exception {
+		final Event ezproxy = mockEzproxyEvent("usernameone");
+		for (final EventFormat format : new EventFormat[] { EventFormat.SMILE, EventFormat.CBOR }) {
+			final MessageProperties props = new MessageProperties();
+			props.setContentType(format.getContentType());
+			props.setHeader("__TypeId__", "uk.ac.cardiff.model.event.EzproxyAuthenticationEvent");
+
+			final byte[] body = format.createMapper().writeValueAsBytes(ezproxy);
+			final Object read = eventMsgConverter.fromMessage(new Message(body, props));
+			Assert.assertTrue(read instanceof EzproxyAuthenticationEvent);
+			Assert.assertEquals(ezproxy.getEventId(), ((Event) read).getEventId());
+		}
+	}
+
+	/**
+	 * A batch is written and read as a list of events of one type.
+	 */
+	@Test
+	public void testBatchRoundTrip() {
+		final List<Event> batch = Arrays.asList(mockShibEvent("usernameone"), mockShibEvent("usernametwo"));
+
+		final Message message = eventMsgConverter.toMessage(batch, new MessageProperties());
+		Assert.assertEquals(ShibbolethIdpAuthenticationEvent.class.getName(),
+				message.getMessageProperties().getHeaders().get(EventMessageConverter.CONTENT_TYPE_ID_HEADER));
+
+		final Object read = eventMsgConverter.fromMessage(message);
+		Assert.assertTrue(read instanceof List);
+		final List<?> events = (List<?>) read;
+		Assert.assertEquals(2, events.size());
+		Assert.assertTrue(events.get(1) instanceof ShibbolethIdpAuthenticationEvent);
+		Assert.assertEquals(batch.get(1).getEventId(), ((Event) events.get(1)).getEventId());
+	}
+
+	@Test(expected = MessageConversionException.class)
+	public void testUnknownContentTypeIsRejected() {
+		final MessageProperties props = new MessageProperties();
+		props.setContentType("application/x-java-serialized-object");
+		props.setHeader("__TypeId__", "uk.ac.cardiff.model.event.EzproxyAuthenticationEvent");
+
+		eventMsgConverter.fromMessage(new Message(new byte[] { 0 }, props));
+	}
+
+	@Test(expected = MessageConversionException.class)
+	public void testTypeNotAllowedIsRejected() {
+		final MessageProperties props = new MessageProperties();
+		props.setContentType("application/json");
+		props.setHeader("__TypeId__", "java.net.URL");
+
+		eventMsgConverter.fromMessage(new Message("\"http://localhost/\"".getBytes(StandardCharsets.UTF_8), props));
+	}
+
+}
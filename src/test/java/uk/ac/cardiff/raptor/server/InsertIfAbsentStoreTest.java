@@ -0,0 +1,129 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.dao.InsertIfAbsentStatementInspector;
+import uk.ac.cardiff.raptor.server.dao.InsertIfAbsentStatementInspector.EventTable;
+import uk.ac.cardiff.raptor.server.dao.InsertIfAbsentStatementInspector.Syntax;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "raptor.dedup.mode=INSERT_IF_ABSENT", "raptor.store.batch.size=3",
+		"raptor.store.batch.linger-ms=500", "amqp.event.ack-before-store=true" })
+public class InsertIfAbsentStoreTest extends BaseServerTest {
+
+	private static final String INSERT = "insert into SHIB_EVENT (principalName, eventTime, eventId) values (?, ?, ?)";
+
+	@Inject
+	MessageChannel amqpEventChnl;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	/**
+	 * Events already stored, and events repeated within a batch, are only stored
+	 * once.
+	 */
+	@Test
+	public void testDuplicateInsertIgnored() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event mockEvent = mockShibEvent("usernameone");
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("usernametwo")).build()));
+		Assert.assertEquals(2, repo.count());
+
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockShibEvent("username-not-found")).build()));
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEzproxyEvent("ezproxy-match")).build()));
+		Assert.assertEquals(4, repo.count());
+	}
+
+	@Test
+	public void testInsertRewrittenForEachSyntax() {
+		Assert.assertEquals(INSERT + " on conflict do nothing", inspector(Syntax.ON_CONFLICT_DO_NOTHING).inspect(INSERT));
+		Assert.assertEquals(INSERT + " on duplicate key update eventId = eventId",
+				inspector(Syntax.ON_DUPLICATE_KEY_UPDATE).inspect(INSERT));
+		Assert.assertEquals("merge into SHIB_EVENT using (values (cast(? as varchar(255)), cast(? as timestamp), "
+				+ "cast(? as integer))) as v (principalName, eventTime, eventId) on SHIB_EVENT.eventId = v.eventId "
+				+ "when not matched then insert (principalName, eventTime, eventId) "
+				+ "values (v.principalName, v.eventTime, v.eventId)", inspector(Syntax.MERGE).inspect(INSERT));
+
+		final String otherInsert = "insert into OTHER_TABLE (id) values (?)";
+		Assert.assertEquals(otherInsert, inspector(Syntax.ON_CONFLICT_DO_NOTHING).inspect(otherInsert));
+	}
+
+	/**
+	 * The MySQL rewrite ignores an existing key, but an invalid value still fails
+	 * rather than being truncated and stored. Run against HSQLDB in its MySQL
+	 * syntax mode.
+	 */
+	@Test
+	public void testOnDuplicateKeyOnlyIgnoresKeyConflict() throws SQLException {
+		final String insert = "insert into SHIB_EVENT (principalName, eventId) values (?, ?)";
+		final String rewritten = inspector(Syntax.ON_DUPLICATE_KEY_UPDATE).inspect(insert);
+
+		try (Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:mysql-test;sql.syntax_mys=true",
+				"SA", "")) {
+			connection.createStatement()
+					.execute("create table SHIB_EVENT (principalName varchar(10), eventId integer primary key)");
+			try (PreparedStatement statement = connection.prepareStatement(rewritten)) {
+				statement.setString(1, "usernameon");
+				statement.setInt(2, 1);
+				statement.executeUpdate();
+				statement.setString(1, "changed");
+				statement.setInt(2, 1);
+				statement.executeUpdate();
+
+				statement.setString(1, "a principal name too long for the column");
+				statement.setInt(2, 2);
+				try {
+					statement.executeUpdate();
+					Assert.fail("An invalid event was stored");
+				} catch (final SQLException e) {
+					// expected, not turned into a warning
+				}
+			}
+			final ResultSet stored = connection.createStatement()
+					.executeQuery("select principalName from SHIB_EVENT");
+			Assert.assertTrue(stored.next());
+			Assert.assertEquals("usernameon", stored.getString(1));
+			Assert.assertFalse(stored.next());
+		}
+	}
+
+	private InsertIfAbsentStatementInspector inspector(final Syntax syntax) {
+		final Map<String, String> columnTypes = new HashMap<>();
+		columnTypes.put("principalName", "varchar(255)");
+		columnTypes.put("eventTime", "timestamp");
+		columnTypes.put("eventId", "integer");
+
+		final InsertIfAbsentStatementInspector inspector = new InsertIfAbsentStatementInspector();
+		inspector.enable(syntax, Collections.singletonMap("SHIB_EVENT", new EventTable("eventId", columnTypes)));
+		return inspector;
+	}
+
+}
@@ -0,0 +1,151 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.AuthenticationEvent;
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+import uk.ac.cardiff.raptor.server.enrich.JdbcEventAttributeEnricher;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "attribute.enrichers[1].type=JDBC",
+		"attribute.enrichers[1].url=jdbc:hsqldb:mem:hr-test", "attribute.enrichers[1].user=sa",
+		"attribute.enrichers[1].password=",
+		"attribute.enrichers[1].source-principal-lookup-query=SELECT username, dept, affiliation FROM hr_person "
+				+ "WHERE username IN (?ppn)",
+		"attribute.enrichers[1].principal-school-source-attribute=dept",
+		"attribute.enrichers[1].principal-affiliation-source-attribute=affiliation",
+		"attribute.enrichers[1].negative-cache-expire-after-write-ms=60000",
+		"attribute.enrichers[1].max-filter-clauses=4" })
+public class JdbcEnrichmentTest extends BaseServerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(JdbcEnrichmentTest.class);
+
+	@Inject
+	MessageChannel amqpEventChnl;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	private JdbcEventAttributeEnricher jdbcEnricher;
+
+	@Before
+	public void createPeople() {
+		jdbcEnricher = (JdbcEventAttributeEnricher) enricher.getEnrichers().get(1);
+		final JdbcTemplate jdbc = jdbcEnricher.getJdbc();
+		jdbc.execute("DROP TABLE hr_person IF EXISTS");
+		jdbc.execute("CREATE TABLE hr_person (username VARCHAR(64), dept VARCHAR(64), affiliation VARCHAR(8))");
+		jdbc.update("INSERT INTO hr_person VALUES ('hr-one', 'hrSchoolOne', 'S')");
+		jdbc.update("INSERT INTO hr_person VALUES ('hr-two', 'hrSchoolTwo', 'P')");
+		jdbc.update("INSERT INTO hr_person VALUES ('hr-three', 'hrSchoolThree', 'R')");
+		jdbc.update("INSERT INTO hr_person VALUES ('hr-twice', 'hrSchoolOne', 'S')");
+		jdbc.update("INSERT INTO hr_person VALUES ('hr-twice', 'hrSchoolTwo', 'S')");
+		jdbc.update("INSERT INTO hr_person VALUES ('hr-case', 'hrSchoolOne', 'S')");
+		jdbc.update("INSERT INTO hr_person VALUES ('HR-CASE', 'hrSchoolTwo', 'P')");
+		jdbcEnricher.init();
+	}
+
+	@Test
+	public void testEventEnrichedFromDatabase() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final Event mockEvent = mockEzproxyEvent("hr-one");
+		Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+
+		final AuthenticationEvent stored = (AuthenticationEvent) repo.findOne(mockEvent.getEventId());
+		Assert.assertNotNull(stored);
+		Assert.assertEquals("hrSchoolOne", stored.getPrincipalInformation().getSchool());
+		Assert.assertEquals("S", stored.getPrincipalInformation().getAffiliation());
+	}
+
+	/**
+	 * Four distinct principals are resolved with one query, then from the
+	 * caches.
+	 */
+	@Test
+	public void testBatchResolvedWithOneQuery() throws Exception {
+		final JdbcTemplate original = jdbcEnricher.getJdbc();
+		final CountingJdbcTemplate counting = new CountingJdbcTemplate(original.getDataSource());
+		jdbcEnricher.setJdbc(counting);
+		try {
+			final List<Event> events = Arrays.asList(mockEzproxyEvent("hr-one"), mockEzproxyEvent("hr-two"),
+					mockEzproxyEvent("hr-three"), mockEzproxyEvent("hr-one"), mockEzproxyEvent("hr-twice"));
+			jdbcEnricher.enrichAll(events);
+			log.info("Batch of [{}] events resolved with [{}] queries", events.size(), counting.queries.get());
+			Assert.assertEquals(1, counting.queries.get());
+
+			Assert.assertEquals("hrSchoolOne", school(events.get(0)));
+			Assert.assertEquals("hrSchoolTwo", school(events.get(1)));
+			Assert.assertEquals("hrSchoolThree", school(events.get(2)));
+			Assert.assertEquals("hrSchoolOne", school(events.get(3)));
+			Assert.assertNull("a principal with two rows is not attached", school(events.get(4)));
+
+			final List<Event> again = Arrays.asList(mockEzproxyEvent("hr-two"), mockEzproxyEvent("hr-twice"));
+			jdbcEnricher.enrichAll(again);
+			Assert.assertEquals(1, counting.queries.get());
+			Assert.assertEquals(1, jdbcEnricher.getNegativeCacheStats().hitCount());
+
+		} finally {
+			jdbcEnricher.setJdbc(original);
+		}
+	}
+
+	/**
+	 * Principals that differ only by case are matched to their own rows.
+	 */
+	@Test
+	public void testBatchMatchesPrincipalCaseExactly() throws Exception {
+		final List<Event> events = Arrays.asList(mockEzproxyEvent("hr-case"), mockEzproxyEvent("HR-CASE"));
+		jdbcEnricher.enrichAll(events);
+
+		Assert.assertEquals("hrSchoolOne", school(events.get(0)));
+		Assert.assertEquals("hrSchoolTwo", school(events.get(1)));
+	}
+
+	private String school(final Event event) {
+		return ((AuthenticationEvent) event).getPrincipalInformation().getSchool();
+	}
+
+	/**
+	 * Counts the queries made against the database.
+	 */
+	private static class CountingJdbcTemplate extends JdbcTemplate {
+
+		private final AtomicInteger queries = new AtomicInteger();
+
+		CountingJdbcTemplate(final DataSource dataSource) {
+			super(dataSource);
+		}
+
+		@Override
+		public void query(final String sql, final RowCallbackHandler rch, final Object... args)
+				throws DataAccessException {
+			queries.incrementAndGet();
+			super.query(sql, rch, args);
+		}
+
+	}
+
+}
@@ -0,0 +1,105 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.query.LdapQuery;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.model.event.AuthenticationEvent;
+import uk.ac.cardiff.model.event.Event;
+import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
+import uk.ac.cardiff.raptor.server.enrich.LdapEventAttributeEnricher;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "attribute.enrich.batch-lookups=true", "raptor.store.batch.size=3",
+		"raptor.store.batch.linger-ms=500", "attribute.enrichers[0].use-cache=false",
+		"attribute.enrichers[0].max-filter-clauses=2", "amqp.event.ack-before-store=true" })
+public class LdapBatchLookupTest extends BaseServerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(LdapBatchLookupTest.class);
+
+	@Inject
+	MessageChannel amqpEventChnl;
+
+	@Inject
+	private EventRepository repo;
+
+	@Inject
+	private EventEnricherService enricher;
+
+	/**
+	 * Three principals with at most two per filter are resolved with two
+	 * searches, and each result is attached to the event of its principal.
+	 */
+	@Test
+	public void testBatchResolvedWithOrFilters() {
+		enricher.setExceptionTriggersRollbqck(false);
+		repo.deleteAll();
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricher.getEnrichers().get(0);
+		final LdapTemplate ldap = ldapEnricher.getLdap();
+		final CountingLdapTemplate counting = new CountingLdapTemplate(ldap.getContextSource());
+		ldapEnricher.setLdap(counting);
+		try {
+			final Event mockEvent = mockShibEvent("usernameone");
+			final Event mockEventTwo = mockShibEvent("usernametwo");
+			final Event mockEventThree = mockShibEvent("username-not-found");
+
+			Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEvent).build()));
+			Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEventTwo).build()));
+			Assert.assertTrue(amqpEventChnl.send(MessageBuilder.withPayload(mockEventThree).build()));
+
+			Assert.assertEquals(3, repo.count());
+			log.info("Batch of 3 events resolved with [{}] LDAP searches", counting.searches.get());
+			Assert.assertEquals(2, counting.searches.get());
+
+			final AuthenticationEvent one = (AuthenticationEvent) repo.findOne(mockEvent.getEventId());
+			Assert.assertEquals("P", one.getPrincipalInformation().getAffiliation());
+			Assert.assertEquals("schoolOne", one.getPrincipalInformation().getSchool());
+
+			final AuthenticationEvent two = (AuthenticationEvent) repo.findOne(mockEventTwo.getEventId());
+			Assert.assertEquals("R", two.getPrincipalInformation().getAffiliation());
+			Assert.assertEquals("schoolTwo", two.getPrincipalInformation().getSchool());
+
+			final AuthenticationEvent three = (AuthenticationEvent) repo.findOne(mockEventThree.getEventId());
+			Assert.assertNotNull(three);
+			Assert.assertNull(three.getPrincipalInformation().getSchool());
+
+		} finally {
+			ldapEnricher.setLdap(ldap);
+		}
+	}
+
+	/**
+	 * Counts the searches made against the directory.
+	 */
+	private static class CountingLdapTemplate extends LdapTemplate {
+
+		private final AtomicInteger searches = new AtomicInteger();
+
+		CountingLdapTemplate(final ContextSource contextSource) {
+			super(contextSource);
+		}
+
+		@Override
+		public <T> List<T> search(final LdapQuery query, final AttributesMapper<T> mapper) {
+			searches.incrementAndGet();
+			return super.search(query, mapper);
+		}
+
+	}
+
+}
@@ -1,10 +1,22 @@
 package uk.ac.cardiff.raptor.server;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
 
@@ -13,7 +25,9 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.integration.support.MessageBuilder;
+import org.springframework.ldap.core.AttributesMapper;
 import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.query.LdapQuery;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.test.context.TestPropertySource;
@@ -22,6 +36,7 @@ import org.springframework.util.StopWatch;
 import uk.ac.cardiff.model.event.AuthenticationEvent;
 import uk.ac.cardiff.model.event.Event;
 import uk.ac.cardiff.raptor.server.dao.EventRepository;
+import uk.ac.cardiff.raptor.server.enrich.EnricherTelemetryExporter;
 import uk.ac.cardiff.raptor.server.enrich.EventEnricherService;
 import uk.ac.cardiff.raptor.server.enrich.LdapEventAttributeEnricher;
 
@@ -46,6 +61,9 @@ public class LdapCacheSpeedTest extends BaseServerTest {
 	@Inject
 	private EventRepository repo;
 
+	@Inject
+	private EnricherTelemetryExporter telemetryExporter;
+
 	/**
 	 * <p>
 	 * this tests FINISH
@@ -297,6 +315,334 @@ public class LdapCacheSpeedTest extends BaseServerTest {
 
 	}
 
+	/**
+	 * Concurrent misses for one principal should wait for a single LDAP search
+	 * rather than each searching.
+	 */
+	@Test
+	public void ldapConcurrentCacheMissesShareOneSearch() throws Exception {
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricherService.getEnrichers()
+				.get(0);
+		final LdapTemplate original = ldapEnricher.getLdap();
+		final AtomicInteger searches = new AtomicInteger();
+		ldapEnricher.setLdap(countingLdap(original, searches, 200));
+		ldapEnricher.setUseCache(true);
+		ldapEnricher.init();
+
+		final int threads = 8;
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<Event>> enriched = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				enriched.add(pool.submit(() -> {
+					final Event event = mockShibEvent("usernameone");
+					start.await();
+					ldapEnricher.enrich(event);
+					return event;
+				}));
+			}
+			start.countDown();
+
+			for (final Future<Event> event : enriched) {
+				Assert.assertEquals("schoolOne",
+						((AuthenticationEvent) event.get(10, TimeUnit.SECONDS)).getPrincipalInformation().getSchool());
+			}
+			log.info("[{}] concurrent lookups of one principal made [{}] LDAP searches", threads, searches.get());
+			Assert.assertEquals(1, searches.get());
+
+		} finally {
+			pool.shutdownNow();
+			ldapEnricher.setLdap(original);
+		}
+	}
+
+	/**
+	 * Principals with no result, or several results, are not searched for again
+	 * while in the negative cache.
+	 */
+	@Test
+	public void ldapUnresolvedPrincipalsNegativelyCached() throws Exception {
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricherService.getEnrichers()
+				.get(0);
+		final LdapTemplate original = ldapEnricher.getLdap();
+		final AtomicInteger searches = new AtomicInteger();
+		ldapEnricher.setLdap(countingLdap(original, searches, 0));
+		ldapEnricher.setUseCache(true);
+		ldapEnricher.setNegativeCacheExpiryAfterWriteMs(60000);
+		ldapEnricher.init();
+		try {
+			for (int i = 0; i < 5; i++) {
+				final Event event = mockShibEvent("username-not-found");
+				ldapEnricher.enrich(event);
+				Assert.assertNull(((AuthenticationEvent) event).getPrincipalInformation().getSchool());
+			}
+			log.info("Negative cache stats {}", ldapEnricher.getNegativeCacheStats());
+			Assert.assertEquals(1, searches.get());
+			Assert.assertEquals(4, ldapEnricher.getNegativeCacheStats().hitCount());
+			Assert.assertEquals(1, ldapEnricher.getCacheStats().missCount());
+
+		} finally {
+			ldapEnricher.setLdap(original);
+			ldapEnricher.setNegativeCacheExpiryAfterWriteMs(0);
+			ldapEnricher.init();
+		}
+	}
+
+	/**
+	 * An entry read after the refresh time is served stale while it is reloaded
+	 * in the background, then the reloaded value is served.
+	 */
+	@Test
+	public void ldapCacheRefreshedAhead() throws Exception {
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricherService.getEnrichers()
+				.get(0);
+		ldapEnricher.setUseCache(true);
+		ldapEnricher.setCacheExpiryAfterWriteMs(60000);
+		ldapEnricher.setCacheRefreshAfterWriteMs(300);
+		ldapEnricher.init();
+		try {
+			Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+
+			ldap.modifyAttributes("cn=usernameone,cn=A041991C,o=people", createModify("description", "schoolTmp"));
+			Thread.sleep(500);
+			Assert.assertEquals("stale value should be served while refreshing", "schoolOne",
+					enrichedSchool(ldapEnricher, "usernameone"));
+
+			String school = null;
+			for (int i = 0; i < 50 && "schoolTmp".equals(school) == false; i++) {
+				Thread.sleep(100);
+				school = enrichedSchool(ldapEnricher, "usernameone");
+			}
+			Assert.assertEquals("schoolTmp", school);
+			log.info("Cache stats after refresh {}", ldapEnricher.getCacheStats());
+
+		} finally {
+			ldap.modifyAttributes("cn=usernameone,cn=A041991C,o=people", createModify("description", "schoolOne"));
+			ldapEnricher.setCacheRefreshAfterWriteMs(0);
+			ldapEnricher.init();
+		}
+	}
+
+	/**
+	 * A restarted enricher restores its cache from the snapshot, so needs no
+	 * searches for principals it had cached.
+	 */
+	@Test
+	public void ldapCacheRestoredFromSnapshot() throws Exception {
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricherService.getEnrichers()
+				.get(0);
+		final LdapTemplate original = ldapEnricher.getLdap();
+		final File snapshot = new File("target/test-principal-cache.bin");
+		snapshot.delete();
+
+		ldapEnricher.setUseCache(true);
+		ldapEnricher.setCacheExpiryAfterWriteMs(60000);
+		ldapEnricher.setCacheSnapshotFile(snapshot.getPath());
+		ldapEnricher.init();
+		try {
+			Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+			ldapEnricher.shutdown();
+			Assert.assertTrue(snapshot.exists());
+
+			final AtomicInteger searches = new AtomicInteger();
+			ldapEnricher.setLdap(countingLdap(original, searches, 0));
+			ldapEnricher.init();
+			Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+			Assert.assertEquals(0, searches.get());
+
+		} finally {
+			ldapEnricher.setLdap(original);
+			ldapEnricher.setCacheSnapshotFile(null);
+			ldapEnricher.init();
+		}
+	}
+
+	/**
+	 * A restored entry is kept for a full expiry time again, so entries older
+	 * than half the expiry time are not restored and are searched for instead.
+	 */
+	@Test
+	public void ldapCacheSnapshotOlderThanHalfExpiryNotRestored() throws Exception {
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricherService.getEnrichers()
+				.get(0);
+		final LdapTemplate original = ldapEnricher.getLdap();
+		final File snapshot = new File("target/test-principal-cache-old.bin");
+		snapshot.delete();
+
+		ldapEnricher.setUseCache(true);
+		ldapEnricher.setCacheExpiryAfterWriteMs(2000);
+		ldapEnricher.setCacheSnapshotFile(snapshot.getPath());
+		ldapEnricher.init();
+		try {
+			Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+			ldapEnricher.shutdown();
+			Assert.assertTrue(snapshot.exists());
+			Thread.sleep(1200);
+
+			final AtomicInteger searches = new AtomicInteger();
+			ldapEnricher.setLdap(countingLdap(original, searches, 0));
+			ldapEnricher.init();
+			Assert.assertEquals(0, ldapEnricher.getCacheEstimatedSize());
+			Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+			Assert.assertEquals(1, searches.get());
+
+		} finally {
+			ldapEnricher.setLdap(original);
+			ldapEnricher.setCacheSnapshotFile(null);
+			ldapEnricher.setCacheExpiryAfterWriteMs(60000);
+			ldapEnricher.init();
+		}
+	}
+
+	/**
+	 * Preloading fills the cache from the directory before any event is
+	 * enriched.
+	 */
+	@Test
+	public void ldapCachePreloaded() throws Exception {
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricherService.getEnrichers()
+				.get(0);
+		final LdapTemplate original = ldapEnricher.getLdap();
+
+		ldapEnricher.setUseCache(true);
+		ldapEnricher.setCacheExpiryAfterWriteMs(60000);
+		ldapEnricher.setCachePreload(true);
+		ldapEnricher.setCachePreloadPageSize(2);
+		ldapEnricher.init();
+		try {
+			final AtomicInteger searches = new AtomicInteger();
+			ldapEnricher.setLdap(countingLdap(original, searches, 0));
+			Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+			Assert.assertEquals("schoolTwo", enrichedSchool(ldapEnricher, "usernametwo"));
+			Assert.assertEquals(0, searches.get());
+
+		} finally {
+			ldapEnricher.setLdap(original);
+			ldapEnricher.setCachePreload(false);
+			ldapEnricher.init();
+		}
+	}
+
+	/**
+	 * A mirrored directory answers the principals it holds without a search,
+	 * and picks up modified entries when it syncs. A principal it does not hold,
+	 * such as one added since it last synced, is searched for.
+	 */
+	@Test
+	public void ldapDirectoryMirrored() throws Exception {
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricherService.getEnrichers()
+				.get(0);
+		final LdapTemplate original = ldapEnricher.getLdap();
+
+		ldapEnricher.setMirror(true);
+		ldapEnricher.setMirrorPageSize(2);
+		ldapEnricher.setMirrorSyncIntervalMs(600000);
+		ldapEnricher.init();
+		try {
+			Assert.assertTrue(ldapEnricher.getDirectoryMirror().isReady());
+			log.info("Directory mirror holds [{}] principals", ldapEnricher.getDirectoryMirror().size());
+
+			final AtomicInteger searches = new AtomicInteger();
+			ldapEnricher.setLdap(countingLdap(original, searches, 0));
+			Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+			Assert.assertEquals("schoolTwo", enrichedSchool(ldapEnricher, "USERNAMETWO"));
+			Assert.assertEquals(0, searches.get());
+
+			Assert.assertNull(enrichedSchool(ldapEnricher, "username-not-found"));
+			Assert.assertEquals(1, searches.get());
+
+			final Attributes attributes = new BasicAttributes();
+			final BasicAttribute objectClass = new BasicAttribute("objectClass");
+			objectClass.add("top");
+			objectClass.add("person");
+			objectClass.add("organizationalPerson");
+			objectClass.add("inetOrgPerson");
+			attributes.put(objectClass);
+			attributes.put("cn", "username-added");
+			attributes.put("sn", "UserAdded");
+			attributes.put("description", "schoolAdded");
+			attributes.put("businessCategory", "S");
+			ldap.bind("cn=username-added,o=people", null, attributes);
+			Assert.assertEquals("schoolAdded", enrichedSchool(ldapEnricher, "username-added"));
+			Assert.assertEquals(2, searches.get());
+
+			ldap.modifyAttributes("cn=usernameone,cn=A041991C,o=people", createModify("description", "schoolTmp"));
+			ldapEnricher.getDirectoryMirror().deltaSync();
+			Assert.assertEquals("schoolTmp", enrichedSchool(ldapEnricher, "usernameone"));
+			Assert.assertEquals(2, searches.get());
+
+		} finally {
+			ldap.unbind("cn=username-added,o=people");
+			ldap.modifyAttributes("cn=usernameone,cn=A041991C,o=people", createModify("description", "schoolOne"));
+			ldapEnricher.setLdap(original);
+			ldapEnricher.setMirror(false);
+			ldapEnricher.init();
+		}
+	}
+
+	/**
+	 * The cache statistics and lookup telemetry of the enricher are published
+	 * over JMX.
+	 */
+	@Test
+	public void ldapTelemetryPublishedOverJmx() throws Exception {
+
+		final LdapEventAttributeEnricher ldapEnricher = (LdapEventAttributeEnricher) enricherService.getEnrichers()
+				.get(0);
+		ldapEnricher.setUseCache(true);
+		ldapEnricher.init();
+		ldapEnricher.getLookupTelemetry().reset();
+		telemetryExporter.register();
+
+		Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+		Assert.assertEquals("schoolOne", enrichedSchool(ldapEnricher, "usernameone"));
+		Assert.assertNull(enrichedSchool(ldapEnricher, "username-not-found"));
+
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName(
+				"raptor.server:type=EventAttributeEnricher,forClass=ShibbolethIdpAuthenticationEvent,index=0");
+		log.info("Enricher MBean [{}] lookup p99 [{}]ms, cache hit rate [{}]", name,
+				server.getAttribute(name, "LookupLatencyP99Ms"), server.getAttribute(name, "CacheHitRate"));
+		Assert.assertEquals(2L, server.getAttribute(name, "LookupCount"));
+		Assert.assertEquals(1L, server.getAttribute(name, "LookupNoResultCount"));
+		Assert.assertEquals(1L, server.getAttribute(name, "CacheHitCount"));
+		Assert.assertEquals(1L, server.getAttribute(name, "CacheEstimatedSize"));
+	}
+
+	private String enrichedSchool(final LdapEventAttributeEnricher ldapEnricher, final String principal)
+			throws Exception {
+		final Event event = mockShibEvent(principal);
+		ldapEnricher.enrich(event);
+		return ((AuthenticationEvent) event).getPrincipalInformation().getSchool();
+	}
+
+	/**
+	 * @return an {@link LdapTemplate} that counts, and delays by delayMs, its
+	 *         searches.
+	 */
+	private LdapTemplate countingLdap(final LdapTemplate original, final AtomicInteger searches, final long delayMs) {
+		return new LdapTemplate(original.getContextSource()) {
+			@Override
+			public <T> List<T> search(final LdapQuery query, final AttributesMapper<T> mapper) {
+				searches.incrementAndGet();
+				try {
+					Thread.sleep(delayMs);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.search(query, mapper);
+			}
+		};
+	}
+
 	private ModificationItem[] createModify(final String attribute, final String value) {
 
 		final ModificationItem item = new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
@@ -0,0 +1,61 @@
+package uk.ac.cardiff.raptor.server;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Queue;
+import org.springframework.test.context.TestPropertySource;
+
+import uk.ac.cardiff.raptor.server.amqp.RetryTiers;
+
+@TestPropertySource(locations = "/application-test.properties", properties = { "amqp.event.start=false",
+		"amqp.event.retry.start=false", "amqp.event.retry.tiers=1000,60000" })
+public class RetryTiersTest extends BaseServerTest {
+
+	@Inject
+	private RetryTiers retryTiers;
+
+	/**
+	 * Each retry of an event goes to the next tier, and every retry after the
+	 * last tier to the last tier.
+	 */
+	@Test
+	public void testRetryCountChoosesTier() {
+		Assert.assertEquals(Arrays.asList("raptor.harvest.test-retry.1000ms", "raptor.harvest.test-retry.60000ms"),
+				retryTiers.getQueueNames());
+
+		Assert.assertEquals("raptor.harvest.test-retry.1000ms", retryTiers.queueFor(1));
+		Assert.assertEquals("raptor.harvest.test-retry.60000ms", retryTiers.queueFor(2));
+		Assert.assertEquals("raptor.harvest.test-retry.60000ms", retryTiers.queueFor(7));
+		Assert.assertEquals("raptor.harvest.test-retry.1000ms", retryTiers.queueFor(null));
+	}
+
+	/**
+	 * Each tier queue expires its events after its delay, and dead-letters them
+	 * back to the event queue.
+	 */
+	@Test
+	public void testTierQueuesDeadLetterToEventQueue() {
+		final List<Declarable> declarables = retryTiers.getDeclarables();
+		Assert.assertEquals(4, declarables.size());
+
+		final Queue first = (Queue) declarables.get(0);
+		Assert.assertEquals("raptor.harvest.test-retry.1000ms", first.getName());
+		Assert.assertTrue(first.isDurable());
+		Assert.assertEquals(1000L, first.getArguments().get("x-message-ttl"));
+		Assert.assertEquals("raptor", first.getArguments().get("x-dead-letter-exchange"));
+		Assert.assertEquals("raptor.harvest.test", first.getArguments().get("x-dead-letter-routing-key"));
+
+		final Binding binding = (Binding) declarables.get(1);
+		Assert.assertEquals("raptor", binding.getExchange());
+		Assert.assertEquals(first.getName(), binding.getDestination());
+		Assert.assertEquals(first.getName(), binding.getRoutingKey());
+	}
+
+}